@@ -0,0 +1,56 @@
+package org.avaje.metric.elastic;
+
+import org.avaje.metric.BucketTimedMetric;
+import org.avaje.metric.CounterMetric;
+import org.avaje.metric.Metric;
+import org.avaje.metric.MetricManager;
+import org.avaje.metric.TimedMetric;
+import org.avaje.metric.report.HeaderInfo;
+import org.avaje.metric.report.ReportMetrics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Synthetic metrics for the benchmarks.
+ */
+class BenchmarkMetrics {
+
+  private static final long MILLIS_TO_NANOS = 1000000L;
+
+  /**
+   * Return report metrics with a mix of timed, bucket timed, counter and gauge metrics.
+   */
+  static ReportMetrics create(String prefix, int metricCount) {
+
+    List<Metric> metrics = new ArrayList<>(metricCount);
+    for (int i = 0; i < metricCount; i++) {
+      String name = "org.bench." + prefix + ".Metric" + i;
+      switch (i % 4) {
+        case 0:
+          TimedMetric timed = MetricManager.getTimedMetric(name + ".timed");
+          timed.addEventDuration(true, (100 + i % 50) * MILLIS_TO_NANOS);
+          timed.addEventDuration(true, 120 * MILLIS_TO_NANOS);
+          timed.addEventDuration(false, 300 * MILLIS_TO_NANOS);
+          timed.collectStatistics(metrics);
+          break;
+        case 1:
+          BucketTimedMetric bucket = MetricManager.getTimedMetric(name + ".bucket", 100, 500, 1000);
+          bucket.addEventDuration(true, 80 * MILLIS_TO_NANOS);
+          bucket.addEventDuration(true, 250 * MILLIS_TO_NANOS);
+          bucket.addEventDuration(true, 1200 * MILLIS_TO_NANOS);
+          bucket.collectStatistics(metrics);
+          break;
+        case 2:
+          CounterMetric counter = MetricManager.getCounterMetric(name + ".count");
+          counter.markEvents(1 + i % 10);
+          counter.collectStatistics(metrics);
+          break;
+        default:
+          final double value = i * 1.25d;
+          metrics.add(MetricManager.register(MetricManager.name(name + ".gauge"), () -> value));
+      }
+    }
+    return new ReportMetrics(new HeaderInfo(), System.currentTimeMillis(), metrics);
+  }
+}
@@ -0,0 +1,57 @@
+package org.avaje.metric.elastic;
+
+import okio.Buffer;
+import org.avaje.metric.report.ReportMetrics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark writing the bulk JSON for the metrics.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BulkJsonWriteVisitorBenchmark {
+
+  @Param({"100", "10000", "100000"})
+  public int metricCount;
+
+  private ReportMetrics reportMetrics;
+
+  private BulkJsonWriteVisitor visitor;
+
+  private Buffer buffer;
+
+  @Setup
+  public void setup() {
+    reportMetrics = BenchmarkMetrics.create("write" + metricCount, metricCount);
+    visitor = new BulkJsonWriteVisitor(new ElasticReporterConfig()
+      .addTag("app", "bench-app")
+      .addTag("env", "bench")
+      .addTag("host", "bench-host-01"));
+    buffer = new Buffer();
+  }
+
+  @Benchmark
+  public long write() throws IOException {
+    visitor.write(buffer, reportMetrics, "2017.01.01");
+    long size = buffer.size();
+    buffer.clear();
+    return size;
+  }
+}
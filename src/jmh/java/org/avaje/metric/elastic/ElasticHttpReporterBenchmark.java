@@ -0,0 +1,75 @@
+package org.avaje.metric.elastic;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.avaje.metric.report.ReportMetrics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark report() sending to a local MockWebServer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ElasticHttpReporterBenchmark {
+
+  @Param({"100", "10000"})
+  public int metricCount;
+
+  private MockWebServer server;
+
+  private ReportMetrics reportMetrics;
+
+  private ElasticHttpReporter reporter;
+
+  @Setup
+  public void setup() throws IOException {
+    server = new MockWebServer();
+    server.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) {
+        return new MockResponse().setResponseCode(200).setBody("{\"took\":1,\"errors\":false,\"items\":[]}");
+      }
+    });
+    server.start();
+
+    reportMetrics = BenchmarkMetrics.create("report" + metricCount, metricCount);
+
+    ElasticReporterConfig config = new ElasticReporterConfig()
+      .setUrl(server.url("").toString())
+      .setDirectory("target/bench-queued-metrics")
+      .addTag("app", "bench-app");
+    config.setTemplateName(null);
+    reporter = new ElasticHttpReporter(config);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    reporter.cleanup();
+    server.shutdown();
+  }
+
+  @Benchmark
+  public void report() {
+    reporter.report(reportMetrics);
+  }
+}
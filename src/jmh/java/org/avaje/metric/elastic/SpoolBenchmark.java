@@ -0,0 +1,105 @@
+package org.avaje.metric.elastic;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import org.avaje.metric.report.ReportMetrics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark the round trip of storing metrics for resend and then sending the queued metrics.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpoolBenchmark {
+
+  @Param({"100", "10000"})
+  public int metricCount;
+
+  private MockWebServer server;
+
+  private ReportMetrics reportMetrics;
+
+  private BulkJsonWriteVisitor visitor;
+
+  private ElasticHttpReporter reporter;
+
+  private SegmentedQueue queue;
+
+  @Setup
+  public void setup() throws IOException {
+    server = new MockWebServer();
+    server.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) {
+        return new MockResponse().setResponseCode(200).setBody("{\"took\":1,\"errors\":false,\"items\":[]}");
+      }
+    });
+    server.start();
+
+    reportMetrics = BenchmarkMetrics.create("spool" + metricCount, metricCount);
+
+    ElasticReporterConfig config = new ElasticReporterConfig()
+      .setUrl(server.url("").toString())
+      .setDirectory("target/bench-spool-metrics")
+      .addTag("app", "bench-app");
+    config.setTemplateName(null);
+    reporter = new ElasticHttpReporter(config);
+    visitor = new BulkJsonWriteVisitor(config);
+    File queueDir = new File("target/bench-spool-queue");
+    queueDir.mkdirs();
+    queue = new SegmentedQueue(queueDir, 8 * 1024 * 1024, 64 * 1024 * 1024, false, 6);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    reporter.cleanup();
+    queue.close();
+    server.shutdown();
+  }
+
+  /**
+   * Store the metrics for resend and then report which sends the queued metrics.
+   */
+  @Benchmark
+  public void storeAndSendQueued() {
+    reporter.storeForResend(new BulkRequestBody(visitor, reportMetrics, "2017.01.01"));
+    reporter.report(reportMetrics);
+    // wait for the queued metrics to be sent in the background
+    reporter.cleanup();
+  }
+
+  /**
+   * Append the metrics to the queue and then stream them back out.
+   */
+  @Benchmark
+  public long appendAndDrain() throws IOException {
+    queue.append(new BulkRequestBody(visitor, reportMetrics, "2017.01.01"));
+    SegmentedQueue.Record record = queue.next();
+    Buffer buffer = new Buffer();
+    record.body().writeTo(buffer);
+    queue.commit(record);
+    return buffer.size();
+  }
+}
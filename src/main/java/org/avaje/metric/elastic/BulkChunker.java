@@ -0,0 +1,85 @@
+package org.avaje.metric.elastic;
+
+import okio.Buffer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Buffers the bulk content splitting it into chunks bounded by size and number of documents.
+ * <p>
+ * The chunks are only ever split on document boundaries. A single document larger than
+ * the max bytes is put into a chunk by itself.
+ * </p>
+ */
+class BulkChunker {
+
+  private final long maxBytes;
+
+  private final int maxDocuments;
+
+  private final Buffer buffer = new Buffer();
+
+  private final List<Buffer> chunks = new ArrayList<>();
+
+  /**
+   * Number of complete documents in the buffer.
+   */
+  private int documents;
+
+  /**
+   * Offset of the end of the last complete document in the buffer.
+   */
+  private long documentsEnd;
+
+  /**
+   * Create with the max bytes and max documents per chunk (0 meaning no limit).
+   */
+  BulkChunker(long maxBytes, int maxDocuments) {
+    this.maxBytes = (maxBytes <= 0) ? Long.MAX_VALUE : maxBytes;
+    this.maxDocuments = (maxDocuments <= 0) ? Integer.MAX_VALUE : maxDocuments;
+  }
+
+  /**
+   * Return the buffer the documents are written to.
+   */
+  Buffer buffer() {
+    return buffer;
+  }
+
+  /**
+   * A document has been written to the buffer.
+   */
+  void documentEnd() {
+    if (buffer.size() > maxBytes && documents > 0) {
+      // this document takes the chunk over the max bytes so starts the next chunk
+      cut(documentsEnd);
+    }
+    documents++;
+    documentsEnd = buffer.size();
+    if (documents >= maxDocuments || documentsEnd >= maxBytes) {
+      cut(documentsEnd);
+    }
+  }
+
+  /**
+   * Move the bytes to a new chunk (moves the buffer segments rather than copying).
+   */
+  private void cut(long byteCount) {
+    Buffer chunk = new Buffer();
+    chunk.write(buffer, byteCount);
+    chunks.add(chunk);
+    documents = 0;
+    documentsEnd = 0;
+  }
+
+  /**
+   * Return all the chunks.
+   */
+  List<Buffer> finish() {
+    if (buffer.size() > 0) {
+      cut(buffer.size());
+    }
+    return chunks;
+  }
+}
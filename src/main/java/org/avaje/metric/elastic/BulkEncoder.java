@@ -0,0 +1,151 @@
+package org.avaje.metric.elastic;
+
+import okhttp3.MediaType;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ByteString;
+
+import java.io.IOException;
+
+/**
+ * Encodes the bulk documents in the format of the bulk request (JSON or SMILE).
+ * <p>
+ * The visitor describes each document as keys and values and the encoder writes them
+ * to the sink. Keys are created once up front such that their encoding is reused and
+ * numbers are written without creating garbage.
+ * </p>
+ * <p>
+ * Not thread safe, expected to only be used by the reporting thread.
+ * </p>
+ */
+abstract class BulkEncoder {
+
+  /**
+   * A field name known up front.
+   */
+  static final class Key {
+
+    /**
+     * Sequential id (per encoder) used to track shared name references.
+     */
+    final int id;
+
+    /**
+     * The encoded field name.
+     */
+    final ByteString bytes;
+
+    Key(int id, ByteString bytes) {
+      this.id = id;
+      this.bytes = bytes;
+    }
+  }
+
+  protected BufferedSink sink;
+
+  protected int keyCount;
+
+  /**
+   * Return the encoder for the format.
+   */
+  static BulkEncoder of(ElasticReporterConfig.BulkFormat format, int decimalPlaces) {
+    if (format == ElasticReporterConfig.BulkFormat.SMILE) {
+      return new SmileBulkEncoder(decimalPlaces);
+    }
+    return new JsonBulkEncoder(decimalPlaces);
+  }
+
+  /**
+   * Set the sink the documents are written to.
+   */
+  void sink(BufferedSink sink) {
+    this.sink = sink;
+  }
+
+  /**
+   * Return the content type of the bulk request.
+   */
+  abstract MediaType contentType();
+
+  /**
+   * Create a key for the field name.
+   */
+  abstract Key newKey(String name);
+
+  /**
+   * Return the encoded string value (for values known up front).
+   */
+  abstract ByteString string(String value);
+
+  /**
+   * Start a document (the bulk action or the source).
+   */
+  abstract void startDocument() throws IOException;
+
+  /**
+   * End a document (the bulk action or the source).
+   */
+  abstract void endDocument() throws IOException;
+
+  abstract void startObject() throws IOException;
+
+  abstract void endObject() throws IOException;
+
+  abstract void startArray() throws IOException;
+
+  abstract void endArray() throws IOException;
+
+  abstract void key(Key key) throws IOException;
+
+  /**
+   * Write a field name that is not known up front.
+   */
+  abstract void key(String name) throws IOException;
+
+  /**
+   * Write a string value encoded by {@link #string(String)}.
+   */
+  abstract void value(ByteString encoded) throws IOException;
+
+  abstract void value(String value) throws IOException;
+
+  abstract void value(long value) throws IOException;
+
+  /**
+   * Write the double value rounded to the decimal places (null when NaN or infinite).
+   */
+  abstract void decimal(double value) throws IOException;
+
+  /**
+   * Mark the current state as that at the end of the document prefix.
+   */
+  abstract void mark();
+
+  /**
+   * Write the document prefix and restore the state to that marked at its end.
+   */
+  abstract void prefix(ByteString prefix) throws IOException;
+
+  /**
+   * Encode a complete document (or part) written by the writer.
+   */
+  ByteString encode(Writer writer) throws IOException {
+    BufferedSink previous = this.sink;
+    Buffer buffer = new Buffer();
+    this.sink = buffer;
+    try {
+      writer.write(this);
+      return buffer.readByteString();
+    } finally {
+      this.sink = previous;
+    }
+  }
+
+  /**
+   * Writes to the encoder.
+   */
+  interface Writer {
+
+    void write(BulkEncoder encoder) throws IOException;
+  }
+}
@@ -1,6 +1,10 @@
 package org.avaje.metric.elastic;
 
 
+import okhttp3.MediaType;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ByteString;
 import org.avaje.metric.BucketTimedMetric;
 import org.avaje.metric.CounterMetric;
 import org.avaje.metric.CounterStatistics;
@@ -11,89 +15,361 @@ import org.avaje.metric.MetricVisitor;
 import org.avaje.metric.TimedMetric;
 import org.avaje.metric.ValueMetric;
 import org.avaje.metric.ValueStatistics;
-import org.avaje.metric.report.NumFormat;
 import org.avaje.metric.report.ReportMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.Writer;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Writes the metric information as JSON to a buffer for sending.
+ * Writes the metric information as bulk JSON (or SMILE) to a sink for sending.
+ * <p>
+ * The constant parts of the documents (keys, tags) are encoded once when this is
+ * constructed and numbers are written directly to the sink such that writing the
+ * metrics does not create garbage. The format is determined by the encoder.
+ * </p>
+ * <p>
+ * This is reused for each report and is not thread safe. It is expected to
+ * only be used by the reporting thread.
+ * </p>
  */
 class BulkJsonWriteVisitor implements MetricVisitor {
 
-  private final int decimalPlaces;
+  private static final Logger logger = LoggerFactory.getLogger(BulkJsonWriteVisitor.class);
 
-  private final Writer buffer;
-
-  private final ReportMetrics reportMetrics;
+  /**
+   * Minimum time between warnings of metrics dropped over the max names.
+   */
+  private static final long DROPPED_WARN_MILLIS = TimeUnit.MINUTES.toMillis(10);
 
-  private final String header;
+  private static final double[] PERCENTILES = {0.5d, 0.9d, 0.95d, 0.99d};
 
   private final ElasticReporterConfig config;
 
-  private final Map<String,String> tags;
+  private final BulkEncoder encoder;
+
+  private final BulkEncoder.Key normKey;
+  private final BulkEncoder.Key errorKey;
+  private final BulkEncoder.Key bucketKey;
+  private final BulkEncoder.Key countKey;
+  private final BulkEncoder.Key avgKey;
+  private final BulkEncoder.Key maxKey;
+  private final BulkEncoder.Key sumKey;
+  private final BulkEncoder.Key durKey;
+  private final BulkEncoder.Key valKey;
+  private final BulkEncoder.Key histKey;
+  private final BulkEncoder.Key valuesKey;
+  private final BulkEncoder.Key countsKey;
+  private final BulkEncoder.Key pctKey;
+  private final BulkEncoder.Key bucketsKey;
+  private final BulkEncoder.Key[] percentileKeys;
+
+  private final BulkEncoder.Key timestampKey;
+
+  private final BulkEncoder.Key typeKey;
+
+  private final BulkEncoder.Key nameKey;
+
+  private final ByteString typeTimed;
+  private final ByteString typeValue;
+  private final ByteString typeCounter;
+  private final ByteString typeGauge;
+  private final ByteString typeGaugeLong;
+
+  /**
+   * The tags (snapshot taken at construction) encoded as keys and values.
+   */
+  private final BulkEncoder.Key[] tagKeys;
+
+  private final ByteString[] tagValues;
+
+  /**
+   * Last reported values when suppressing unchanged values (otherwise null).
+   */
+  private final LastValueCache lastValues;
+
+  /**
+   * Accumulates metrics over a number of cycles when roll-up rules are defined (otherwise null).
+   */
+  private final RollupStore rollup;
+
+  /**
+   * Filters the metrics by name, type sample and max names (otherwise null).
+   */
+  private final MetricFilter filter;
+
+  /**
+   * Metrics of the reporter (or null).
+   */
+  private final ReporterMetrics reporterMetrics;
+
+  private long nextDroppedWarn;
+
+  /**
+   * True to write BucketTimedMetric as one document with a histogram.
+   */
+  private final boolean bucketHistogram;
+
+  /**
+   * True to write BucketTimedMetric as one document with the buckets nested.
+   */
+  private final boolean bucketCompact;
+
+  /**
+   * Histogram values, counts and bounds reused for each BucketTimedMetric.
+   */
+  private long[] histValues = new long[16];
+  private long[] histCounts = new long[16];
+  private long[] histLower = new long[16];
+  private long[] histUpper = new long[16];
+
+  /**
+   * Notified of the end of each document when splitting into chunks (otherwise null).
+   */
+  private BulkChunker chunker;
+
+  private String indexSuffix;
+
+  private ByteString header;
 
-  private final long epochNow = System.currentTimeMillis();
+  private long collectionTime;
+
+  /**
+   * The bulk action, timestamp and tags that start every document for this cycle.
+   */
+  private ByteString documentPrefix;
+
+  private long epochNow;
 
   /**
    * Construct with default formatting of 2 decimal places.
    */
-  BulkJsonWriteVisitor(Writer writer, ReportMetrics metrics, ElasticReporterConfig config, String indexSuffix) {
-    this(2, writer, metrics, config, indexSuffix);
+  BulkJsonWriteVisitor(ElasticReporterConfig config) {
+    this(config, null);
+  }
+
+  /**
+   * Construct with the reporter metrics that include the metrics dropped by filtering.
+   */
+  BulkJsonWriteVisitor(ElasticReporterConfig config, ReporterMetrics reporterMetrics) {
+    this(2, config, reporterMetrics);
   }
 
-  private BulkJsonWriteVisitor(int decimalPlaces, Writer writer, ReportMetrics metrics, ElasticReporterConfig config, String indexSuffix) {
-    this.decimalPlaces = decimalPlaces;
-    this.buffer = writer;
-    this.reportMetrics = metrics;
-    //this.collectionTime = reportMetrics.getCollectionTime();
+  private BulkJsonWriteVisitor(int decimalPlaces, ElasticReporterConfig config, ReporterMetrics reporterMetrics) {
+    if (!config.getRollups().isEmpty() && (config.isBucketHistogram() || config.isBucketCompact())) {
+      throw new IllegalArgumentException("Roll-ups (addRollup) can not be combined with bucketHistogram or bucketCompact"
+        + " as bucket documents are not rolled up");
+    }
     this.config = config;
-    this.header = deriveHeader(config, indexSuffix);
-    this.tags = config.getTags();
+    this.reporterMetrics = reporterMetrics;
+    this.encoder = BulkEncoder.of(config.getBulkFormat(), decimalPlaces);
+    this.normKey = encoder.newKey("norm");
+    this.errorKey = encoder.newKey("error");
+    this.bucketKey = encoder.newKey("bucket");
+    this.countKey = encoder.newKey("count");
+    this.avgKey = encoder.newKey("avg");
+    this.maxKey = encoder.newKey("max");
+    this.sumKey = encoder.newKey("sum");
+    this.durKey = encoder.newKey("dur");
+    this.valKey = encoder.newKey("val");
+    this.histKey = encoder.newKey("hist");
+    this.valuesKey = encoder.newKey("values");
+    this.countsKey = encoder.newKey("counts");
+    this.pctKey = encoder.newKey("pct");
+    this.bucketsKey = encoder.newKey("buckets");
+    this.percentileKeys = new BulkEncoder.Key[]{encoder.newKey("p50"), encoder.newKey("p90"), encoder.newKey("p95"), encoder.newKey("p99")};
+    this.timestampKey = encoder.newKey(config.getTimestampField());
+    this.typeKey = encoder.newKey(config.getTypeField());
+    this.nameKey = encoder.newKey(config.getNameField());
+    this.typeTimed = encoder.string("timed");
+    this.typeValue = encoder.string("value");
+    this.typeCounter = encoder.string("counter");
+    this.typeGauge = encoder.string("gauge");
+    this.typeGaugeLong = encoder.string("gaugeLong");
+    Map<String, String> tags = config.getTags();
+    int tagCount = (tags == null) ? 0 : tags.size();
+    this.tagKeys = new BulkEncoder.Key[tagCount];
+    this.tagValues = new ByteString[tagCount];
+    if (tags != null) {
+      int i = 0;
+      for (Map.Entry<String, String> entry : tags.entrySet()) {
+        tagKeys[i] = encoder.newKey(entry.getKey());
+        tagValues[i++] = encoder.string(entry.getValue());
+      }
+    }
+    this.lastValues = config.isSuppressUnchanged() ? new LastValueCache(config.getSuppressHeartbeat()) : null;
+    this.rollup = config.getRollups().isEmpty() ? null : new RollupStore(config.getRollups());
+    this.filter = MetricFilter.isConfigured(config) ? new MetricFilter(config.getIncludeNames(), config.getExcludeNames(),
+      config.getAllowedNames(), config.getMaxNames(), config.getSampling()) : null;
+    this.bucketHistogram = config.isBucketHistogram();
+    this.bucketCompact = config.isBucketCompact();
+  }
+
+  /**
+   * Return the content type of the bulk request (JSON or SMILE).
+   */
+  MediaType contentType() {
+    return encoder.contentType();
+  }
+
+  /**
+   * Return true if writing moves state on (suppression, roll-up or filtering) such that
+   * the metrics of a report must only be written once.
+   * <p>
+   * When false writing the same report again writes the same documents.
+   * </p>
+   */
+  boolean isStateful() {
+    return lastValues != null || rollup != null || filter != null;
+  }
+
+  /**
+   * Write all the metrics and flush to the sink.
+   */
+  void write(BufferedSink sink, ReportMetrics reportMetrics, String indexSuffix) throws IOException {
+    this.epochNow = System.currentTimeMillis();
+    derivePrefix(indexSuffix, reportMetrics.getCollectionTime());
+    if (lastValues != null) {
+      lastValues.nextCycle();
+    }
+    if (rollup != null) {
+      rollup.nextCycle();
+    }
+    if (filter != null) {
+      filter.nextCycle();
+    }
+    encoder.sink(sink);
+    try {
+      List<Metric> metrics = reportMetrics.getMetrics();
+      for (int i = 0; i < metrics.size(); i++) {
+        Metric metric = metrics.get(i);
+        if (filter == null || filter.accept(metric)) {
+          metric.visit(this);
+        }
+      }
+      if (rollup != null) {
+        writeRollup();
+      }
+      sink.flush();
+    } finally {
+      encoder.sink(null);
+    }
+    if (filter != null) {
+      reportDropped();
+    }
   }
 
   /**
-   * Write all the metrics and flush to the writer.
+   * Report the metrics dropped by the filter, warning (at most every 10 minutes) when over the max names.
    */
-  void write() throws IOException {
-    for (Metric metric : reportMetrics.getMetrics()) {
-      metric.visit(this);
+  private void reportDropped() {
+    int excluded = filter.dropped(MetricFilter.EXCLUDED);
+    int sampled = filter.dropped(MetricFilter.SAMPLED);
+    int overMax = filter.dropped(MetricFilter.OVER_MAX);
+    long namesEstimate = filter.namesEstimate();
+    if (reporterMetrics != null) {
+      reporterMetrics.filtered(excluded, sampled, overMax, namesEstimate);
+    }
+    if (overMax > 0 && epochNow >= nextDroppedWarn) {
+      nextDroppedWarn = epochNow + DROPPED_WARN_MILLIS;
+      logger.warn("Max names [{}] reached, {} metrics dropped with an estimated {} distinct metric names",
+        config.getMaxNames(), overMax, namesEstimate);
+    } else if (logger.isDebugEnabled()) {
+      logger.debug("Metrics dropped excluded:{} sampled:{} maxNames:{} estimated names:{}", excluded, sampled, overMax, namesEstimate);
     }
-    buffer.flush();
   }
 
-  private String deriveHeader(ElasticReporterConfig config, String indexSuffix) {
-    return "{\"index\":{\"_type\":\""+config.getIndexType()+"\",\"_index\":\""+ config.getIndexPrefix() + indexSuffix +"\"}}";
+  /**
+   * Write all the metrics to the chunker which splits them into chunks.
+   */
+  void write(BulkChunker chunker, ReportMetrics reportMetrics, String indexSuffix) throws IOException {
+    this.chunker = chunker;
+    try {
+      write(chunker.buffer(), reportMetrics, indexSuffix);
+    } finally {
+      this.chunker = null;
+    }
   }
 
-  private void appendBulkHeader() throws IOException {
-    buffer.append(header);
+  /**
+   * Encode the static start of each document once per cycle.
+   */
+  private void derivePrefix(String indexSuffix, long collectionTime) throws IOException {
+    boolean newIndex = !indexSuffix.equals(this.indexSuffix);
+    if (newIndex) {
+      // only changes when the index period rolls over
+      this.indexSuffix = indexSuffix;
+      this.header = encoder.encode(this::writeHeader);
+    }
+    if (newIndex || documentPrefix == null || collectionTime != this.collectionTime) {
+      this.collectionTime = collectionTime;
+      ByteString sourceStart = encoder.encode(this::writeSourceStart);
+      encoder.mark();
+      this.documentPrefix = new Buffer()
+        .write(header)
+        .write(sourceStart)
+        .readByteString();
+    }
   }
 
-  private void appendTags() throws IOException {
-    writeHeader(config.getTimestampField(), reportMetrics.getCollectionTime());
-    if (tags != null) {
-      Set<Map.Entry<String, String>> entries = tags.entrySet();
-      for (Map.Entry<String, String> entry : entries) {
-        writeHeader(entry.getKey(), entry.getValue());
+  /**
+   * Write the bulk action.
+   */
+  private void writeHeader(BulkEncoder encoder) throws IOException {
+    encoder.startDocument();
+    encoder.startObject();
+    if (config.getDataStream() != null) {
+      // data streams only accept create (append only) actions
+      encoder.key("create");
+      encoder.startObject();
+    } else {
+      encoder.key("index");
+      encoder.startObject();
+      String indexType = config.getIndexType();
+      if (indexType != null && !indexType.isEmpty()) {
+        encoder.key("_type");
+        encoder.value(indexType);
       }
     }
+    encoder.key("_index");
+    encoder.value(config.getDataStream() != null ? config.getDataStream() : config.getIndexPrefix() + indexSuffix);
+    encoder.endObject();
+    encoder.endObject();
+    encoder.endDocument();
   }
 
-  private void writeMetricStart(String type, Metric metric) throws IOException {
+  /**
+   * Write the start of the source with the timestamp and tags.
+   */
+  private void writeSourceStart(BulkEncoder encoder) throws IOException {
+    encoder.startDocument();
+    encoder.startObject();
+    encoder.key(timestampKey);
+    encoder.value(collectionTime);
+    for (int i = 0; i < tagKeys.length; i++) {
+      encoder.key(tagKeys[i]);
+      encoder.value(tagValues[i]);
+    }
+  }
+
+  private void writeMetricStart(ByteString type, Metric metric) throws IOException {
 
-    appendBulkHeader();
-    buffer.append("\n{");
-    appendTags();
-    writeHeader(config.getTypeField(), type);
-    writeHeader(config.getNameField(), metric.getName().getSimpleName());
+    encoder.prefix(documentPrefix);
+    encoder.key(typeKey);
+    encoder.value(type);
+    encoder.key(nameKey);
+    encoder.value(metric.getName().getSimpleName());
   }
 
   private void writeMetricEnd() throws IOException {
-    buffer.append("}\n");
+    encoder.endObject();
+    encoder.endDocument();
+    if (chunker != null) {
+      chunker.documentEnd();
+    }
   }
 
   @Override
@@ -108,126 +384,324 @@ class BulkJsonWriteVisitor implements MetricVisitor {
       // a bucket range with no counts at all so skip the whole metric
       return;
     }
-
-    writeMetricStart("timed", metric);
-    if (metric.isBucket()) {
-      writeHeader("bucket", metric.getBucketRange());
+    if (rollup != null && rollup.addTimed(metric, normStats, errorStats)) {
+      return;
     }
+
+    writeTimedStart(metric);
     if (count > 0) {
-      writeSummary("norm", normStats);
-      if (errCount > 0) {
-        buffer.append(",");
-      }
+      writeSummary(normKey, normStats);
     }
     if (errCount > 0) {
-      writeSummary("error", errorStats);
+      writeSummary(errorKey, errorStats);
     }
     writeMetricEnd();
   }
 
+  private void writeTimedStart(TimedMetric metric) throws IOException {
+    writeMetricStart(typeTimed, metric);
+    if (metric.isBucket()) {
+      encoder.key(bucketKey);
+      encoder.value(metric.getBucketRange());
+    }
+  }
+
   @Override
   public void visit(BucketTimedMetric metric) throws IOException {
+    if (bucketHistogram || bucketCompact) {
+      writeBucketDocument(metric);
+      return;
+    }
     for (TimedMetric bucket : metric.getBuckets()) {
       visit(bucket);
     }
   }
 
+  /**
+   * Write the buckets as one document with the statistics merged.
+   * <p>
+   * With bucketHistogram a histogram of the success durations (bucket mean and count)
+   * and percentiles estimated from the histogram are included. With bucketCompact the
+   * statistics of each non-empty bucket are included keyed by the bucket range.
+   * </p>
+   */
+  private void writeBucketDocument(BucketTimedMetric metric) throws IOException {
+
+    TimedMetric[] buckets = metric.getBuckets();
+    int[] ranges = metric.getBucketRanges();
+    if (histValues.length < buckets.length) {
+      histValues = new long[buckets.length];
+      histCounts = new long[buckets.length];
+      histLower = new long[buckets.length];
+      histUpper = new long[buckets.length];
+    }
+    long count = 0, sum = 0, max = 0, start = Long.MAX_VALUE;
+    long errCount = 0, errSum = 0, errMax = 0, errStart = Long.MAX_VALUE;
+    int size = 0;
+    for (int i = 0; i < buckets.length; i++) {
+      ValueStatistics norm = buckets[i].getCollectedSuccessStatistics();
+      if (norm != null && norm.getCount() > 0) {
+        count += norm.getCount();
+        sum += norm.getTotal();
+        max = Math.max(max, norm.getMax());
+        start = Math.min(start, norm.getStartTime());
+        // bucket ranges are millis and the durations micros
+        long lower = (i == 0) ? 0 : ranges[i - 1] * 1000L;
+        long upper = (i < ranges.length) ? Math.min(ranges[i] * 1000L, norm.getMax()) : norm.getMax();
+        if (size > 0 && norm.getMean() <= histValues[size - 1]) {
+          // histogram values must be increasing
+          histCounts[size - 1] += norm.getCount();
+          histUpper[size - 1] = Math.max(histUpper[size - 1], upper);
+        } else {
+          histValues[size] = norm.getMean();
+          histCounts[size] = norm.getCount();
+          histLower[size] = lower;
+          histUpper[size] = Math.max(lower, upper);
+          size++;
+        }
+      }
+      ValueStatistics error = buckets[i].getCollectedErrorStatistics();
+      if (error != null && error.getCount() > 0) {
+        errCount += error.getCount();
+        errSum += error.getTotal();
+        errMax = Math.max(errMax, error.getMax());
+        errStart = Math.min(errStart, error.getStartTime());
+      }
+    }
+    if (count == 0 && errCount == 0) {
+      return;
+    }
+
+    writeMetricStart(typeTimed, metric);
+    if (count > 0) {
+      writeSummary(normKey, count, sum / count, max, sum, start);
+    }
+    if (errCount > 0) {
+      writeSummary(errorKey, errCount, errSum / errCount, errMax, errSum, errStart);
+    }
+    if (bucketHistogram && count > 0) {
+      encoder.key(histKey);
+      encoder.startObject();
+      writeArray(valuesKey, histValues, size);
+      writeArray(countsKey, histCounts, size);
+      encoder.endObject();
+      encoder.key(pctKey);
+      encoder.startObject();
+      for (int i = 0; i < PERCENTILES.length; i++) {
+        writeKeyNumber(percentileKeys[i], percentile(PERCENTILES[i], size, histLower, histUpper, histCounts, count));
+      }
+      encoder.endObject();
+    }
+    if (bucketCompact) {
+      writeBuckets(buckets);
+    }
+    writeMetricEnd();
+  }
+
+  /**
+   * Write the non-empty buckets as an object keyed by bucket range.
+   */
+  private void writeBuckets(TimedMetric[] buckets) throws IOException {
+    encoder.key(bucketsKey);
+    encoder.startObject();
+    for (TimedMetric bucket : buckets) {
+      ValueStatistics norm = bucket.getCollectedSuccessStatistics();
+      ValueStatistics error = bucket.getCollectedErrorStatistics();
+      long count = (norm == null) ? 0 : norm.getCount();
+      long errCount = (error == null) ? 0 : error.getCount();
+      if (count == 0 && errCount == 0) {
+        continue;
+      }
+      encoder.key(bucket.getBucketRange());
+      encoder.startObject();
+      if (count > 0) {
+        writeSummary(normKey, norm);
+      }
+      if (errCount > 0) {
+        writeSummary(errorKey, error);
+      }
+      encoder.endObject();
+    }
+    encoder.endObject();
+  }
+
+  private void writeArray(BulkEncoder.Key key, long[] values, int size) throws IOException {
+    encoder.key(key);
+    encoder.startArray();
+    for (int i = 0; i < size; i++) {
+      encoder.value(values[i]);
+    }
+    encoder.endArray();
+  }
+
+  /**
+   * Return the percentile estimated by linear interpolation within the histogram bucket.
+   */
+  static long percentile(double quantile, int size, long[] lower, long[] upper, long[] counts, long total) {
+    double rank = quantile * total;
+    long cumulative = 0;
+    for (int i = 0; i < size; i++) {
+      if (cumulative + counts[i] >= rank) {
+        double fraction = (rank - cumulative) / counts[i];
+        return lower[i] + Math.round(fraction * (upper[i] - lower[i]));
+      }
+      cumulative += counts[i];
+    }
+    return size == 0 ? 0 : upper[size - 1];
+  }
+
   @Override
   public void visit(ValueMetric metric) throws IOException {
 
-    writeMetricStart("value", metric);
-    writeSummary("norm", metric.getCollectedStatistics());
+    ValueStatistics valueStatistics = metric.getCollectedStatistics();
+    if (lastValues != null && lastValues.idle(metric, valueStatistics == null ? 0 : valueStatistics.getCount())) {
+      return;
+    }
+    if (rollup != null && rollup.addValue(metric, valueStatistics)) {
+      return;
+    }
+    writeMetricStart(typeValue, metric);
+    writeSummary(normKey, valueStatistics);
     writeMetricEnd();
   }
 
   @Override
   public void visit(CounterMetric metric) throws IOException {
 
-    writeMetricStart("counter", metric);
     CounterStatistics counterStatistics = metric.getCollectedStatistics();
-    writeKeyNumber("count", counterStatistics.getCount());
-    buffer.append(",");
-    writeKeyNumber("dur", getDuration(counterStatistics.getStartTime()));
+    if (lastValues != null && lastValues.idle(metric, counterStatistics.getCount())) {
+      return;
+    }
+    if (rollup != null && rollup.addCounter(metric, counterStatistics.getCount(), counterStatistics.getStartTime())) {
+      return;
+    }
+    writeCounter(metric, counterStatistics.getCount(), counterStatistics.getStartTime());
+  }
+
+  private void writeCounter(Metric metric, long count, long startTime) throws IOException {
+    writeMetricStart(typeCounter, metric);
+    writeKeyNumber(countKey, count);
+    writeKeyNumber(durKey, getDuration(startTime));
     writeMetricEnd();
   }
 
   @Override
   public void visit(GaugeDoubleMetric metric) throws IOException {
 
-    writeMetricStart("gauge", metric);
-    writeKeyNumber("val", format(metric.getValue()));
+    double value = metric.getValue();
+    if (rollup != null && rollup.setGauge(metric, RollupStore.GAUGE_DOUBLE, Double.doubleToLongBits(value))) {
+      return;
+    }
+    writeGaugeDouble(metric, value);
+  }
+
+  private void writeGaugeDouble(Metric metric, double value) throws IOException {
+    if (lastValues != null && lastValues.unchanged(metric, Double.doubleToLongBits(value))) {
+      return;
+    }
+    writeMetricStart(typeGauge, metric);
+    encoder.key(valKey);
+    encoder.decimal(value);
     writeMetricEnd();
   }
 
   @Override
   public void visit(GaugeLongMetric metric) throws IOException {
 
-    writeMetricStart("gaugeLong", metric);
-    writeKeyNumber("val", metric.getValue());
-    writeMetricEnd();
+    long value = metric.getValue();
+    if (rollup != null && rollup.setGauge(metric, RollupStore.GAUGE_LONG, value)) {
+      return;
+    }
+    writeGaugeLong(metric, value);
   }
 
-  private void writeSummary(String prefix, ValueStatistics valueStats) throws IOException {
-
-    // valueStats == null when BucketTimedMetric and the bucket is empty
-    long count = (valueStats == null) ? 0 : valueStats.getCount();
-
-    writeKey(prefix);
-    buffer.append("{");
-    writeKeyNumber("count", count);
-    if (count != 0) {
-      buffer.append(",");
-      writeKeyNumber("avg", valueStats.getMean());
-      buffer.append(",");
-      writeKeyNumber("max", valueStats.getMax());
-      buffer.append(",");
-      writeKeyNumber("sum", valueStats.getTotal());
-      buffer.append(",");
-      writeKeyNumber("dur", getDuration(valueStats.getStartTime()));
+  private void writeGaugeLong(Metric metric, long value) throws IOException {
+    if (lastValues != null && lastValues.unchanged(metric, value)) {
+      return;
     }
-
-    buffer.append("}");
+    writeMetricStart(typeGaugeLong, metric);
+    writeKeyNumber(valKey, value);
+    writeMetricEnd();
   }
 
-  private String format(double value) {
-    return NumFormat.dp(decimalPlaces, value);
+  /**
+   * Write the merged documents for the metrics whose roll-up window ends this cycle.
+   */
+  private void writeRollup() throws IOException {
+    for (int slot = 0; slot < rollup.capacity(); slot++) {
+      if (rollup.due(slot)) {
+        writeRollup(slot);
+        rollup.reset(slot);
+      }
+    }
   }
 
-  private void writeKeyNumber(String key, long numberValue) throws IOException {
-    writeKeyNumber(key, String.valueOf(numberValue));
+  private void writeRollup(int slot) throws IOException {
+    Metric metric = rollup.metric(slot);
+    switch (rollup.type(slot)) {
+      case RollupStore.TIMED:
+        writeTimedStart((TimedMetric) metric);
+        if (rollup.get(slot, RollupStore.NORM_COUNT) > 0) {
+          writeSummary(normKey, slot, RollupStore.NORM_COUNT);
+        }
+        if (rollup.get(slot, RollupStore.ERROR_COUNT) > 0) {
+          writeSummary(errorKey, slot, RollupStore.ERROR_COUNT);
+        }
+        writeMetricEnd();
+        break;
+      case RollupStore.VALUE:
+        writeMetricStart(typeValue, metric);
+        writeSummary(normKey, slot, RollupStore.NORM_COUNT);
+        writeMetricEnd();
+        break;
+      case RollupStore.COUNTER:
+        writeCounter(metric, rollup.get(slot, RollupStore.NORM_COUNT), rollup.get(slot, RollupStore.NORM_START));
+        break;
+      case RollupStore.GAUGE_DOUBLE:
+        writeGaugeDouble(metric, Double.longBitsToDouble(rollup.get(slot, RollupStore.NORM_COUNT)));
+        break;
+      default:
+        writeGaugeLong(metric, rollup.get(slot, RollupStore.NORM_COUNT));
+    }
   }
 
-  private void writeKeyNumber(String key, String numberValue) throws IOException {
-    writeKey(key);
-    writeNumberValue(numberValue);
-  }
+  private void writeSummary(BulkEncoder.Key prefix, ValueStatistics valueStats) throws IOException {
 
-  private void writeHeader(String key, String value) throws IOException {
-    writeKey(key);
-    writeValue(value);
-    buffer.append(",");
+    // valueStats == null when BucketTimedMetric and the bucket is empty
+    if (valueStats == null) {
+      writeSummary(prefix, 0, 0, 0, 0, 0);
+    } else {
+      writeSummary(prefix, valueStats.getCount(), valueStats.getMean(), valueStats.getMax(), valueStats.getTotal(), valueStats.getStartTime());
+    }
   }
 
-  private void writeHeader(String key, long value) throws IOException {
-    writeKey(key);
-    buffer.append(String.valueOf(value));
-    buffer.append(",");
+  /**
+   * Write the summary from the rolled up statistics.
+   */
+  private void writeSummary(BulkEncoder.Key prefix, int slot, int offset) throws IOException {
+    long count = rollup.get(slot, offset);
+    long sum = rollup.get(slot, offset + RollupStore.NORM_SUM);
+    long mean = (count == 0) ? 0 : sum / count;
+    writeSummary(prefix, count, mean, rollup.get(slot, offset + RollupStore.NORM_MAX), sum, rollup.get(slot, offset + RollupStore.NORM_START));
   }
 
-  private void writeKey(String key) throws IOException {
-    buffer.append("\"");
-    buffer.append(key);
-    buffer.append("\":");
-  }
+  private void writeSummary(BulkEncoder.Key prefix, long count, long mean, long max, long sum, long startTime) throws IOException {
 
-  private void writeValue(String val) throws IOException {
-    buffer.append("\"");
-    buffer.append(val);
-    buffer.append("\"");
+    encoder.key(prefix);
+    encoder.startObject();
+    writeKeyNumber(countKey, count);
+    if (count != 0) {
+      writeKeyNumber(avgKey, mean);
+      writeKeyNumber(maxKey, max);
+      writeKeyNumber(sumKey, sum);
+      writeKeyNumber(durKey, getDuration(startTime));
+    }
+    encoder.endObject();
   }
 
-  private void writeNumberValue(String val) throws IOException {
-    buffer.append(val);
+  private void writeKeyNumber(BulkEncoder.Key key, long numberValue) throws IOException {
+    encoder.key(key);
+    encoder.value(numberValue);
   }
 
   private long getDuration(long startTime) {
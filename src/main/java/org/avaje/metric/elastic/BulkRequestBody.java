@@ -0,0 +1,292 @@
+package org.avaje.metric.elastic;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.Okio;
+import org.avaje.metric.report.ReportMetrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Request body for the bulk API that writes the metrics directly to the request sink.
+ * <p>
+ * The bulk JSON is encoded once as it is written to the sink rather than building
+ * an intermediate String and then encoding that to bytes.
+ * </p>
+ * <p>
+ * Streaming is only used when the visitor is not stateful (and the reporter metrics are
+ * not enabled) as the body is written again on failover, retry and when queued. Otherwise
+ * the metrics are written once to a buffer.
+ * </p>
+ */
+class BulkRequestBody extends RequestBody {
+
+  static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+  static final MediaType SMILE = MediaType.parse("application/smile");
+
+  private final BulkJsonWriteVisitor visitor;
+
+  private final ReportMetrics reportMetrics;
+
+  private final String indexSuffix;
+
+  private final ReporterMetrics metrics;
+
+  BulkRequestBody(BulkJsonWriteVisitor visitor, ReportMetrics reportMetrics, String indexSuffix) {
+    this(visitor, reportMetrics, indexSuffix, null);
+  }
+
+  /**
+   * Create with the metrics measuring the write time and bytes (or null).
+   */
+  BulkRequestBody(BulkJsonWriteVisitor visitor, ReportMetrics reportMetrics, String indexSuffix, ReporterMetrics metrics) {
+    this.visitor = visitor;
+    this.reportMetrics = reportMetrics;
+    this.indexSuffix = indexSuffix;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Return a request body for bulk JSON that has already been written to a buffer.
+   * <p>
+   * The buffer is not consumed so the body can be written more than once (retries).
+   * </p>
+   */
+  static RequestBody of(Buffer buffer) {
+    return of(buffer, JSON);
+  }
+
+  /**
+   * Return a request body for bulk content of the given type already written to a buffer.
+   */
+  static RequestBody of(Buffer buffer, MediaType contentType) {
+    return new RequestBody() {
+      @Override
+      public MediaType contentType() {
+        return contentType;
+      }
+
+      @Override
+      public long contentLength() {
+        return buffer.size();
+      }
+
+      @Override
+      public void writeTo(BufferedSink sink) throws IOException {
+        // clone shares the underlying segments rather than copying the bytes
+        sink.write(buffer.clone(), buffer.size());
+      }
+    };
+  }
+
+  /**
+   * Return a request body for bulk content of the given type staged in a (direct) buffer.
+   * <p>
+   * The buffer is not consumed so the body can be written more than once (retries).
+   * </p>
+   */
+  static RequestBody of(ByteBuffer staged, MediaType contentType) {
+    return new RequestBody() {
+      @Override
+      public MediaType contentType() {
+        return contentType;
+      }
+
+      @Override
+      public long contentLength() {
+        return staged.remaining();
+      }
+
+      @Override
+      public void writeTo(BufferedSink sink) throws IOException {
+        // copied a part at a time via the scratch array (writing a ByteBuffer requires okio 1.14)
+        ByteBuffer content = staged.duplicate();
+        byte[] copy = StagingPool.scratch();
+        while (content.hasRemaining()) {
+          int count = Math.min(copy.length, content.remaining());
+          content.get(copy, 0, count);
+          sink.write(copy, 0, count);
+        }
+      }
+    };
+  }
+
+  /**
+   * Return a copy of the content staged in the buffer (which is not consumed).
+   */
+  static Buffer copy(ByteBuffer staged) {
+    ByteBuffer content = staged.duplicate();
+    byte[] copy = StagingPool.scratch();
+    Buffer buffer = new Buffer();
+    while (content.hasRemaining()) {
+      int count = Math.min(copy.length, content.remaining());
+      content.get(copy, 0, count);
+      buffer.write(copy, 0, count);
+    }
+    return buffer;
+  }
+
+  /**
+   * Return true if the content type is SMILE.
+   */
+  static boolean isSmile(MediaType contentType) {
+    return contentType != null && "smile".equals(contentType.subtype());
+  }
+
+  /**
+   * Return the documents (action and source lines) at the given positions.
+   *
+   * @param bulk  the bulk content (not consumed)
+   * @param items the positions of the documents in ascending order
+   */
+  static Buffer documents(Buffer bulk, int[] items) {
+    return documents(bulk, items, JSON);
+  }
+
+  /**
+   * Return the documents at the given positions of bulk content of the given type.
+   * <p>
+   * JSON documents end with a newline and SMILE documents with the 0xFF separator.
+   * </p>
+   */
+  static Buffer documents(Buffer bulk, int[] items, MediaType contentType) {
+    byte separator = isSmile(contentType) ? SmileBulkEncoder.SEPARATOR : (byte) '\n';
+    Buffer documents = new Buffer();
+    long size = bulk.size();
+    long pos = 0;
+    int position = 0;
+    int next = 0;
+    while (next < items.length && pos < size) {
+      long end = documentEnd(bulk, separator, pos);
+      if (position == items[next]) {
+        bulk.copyTo(documents, pos, end - pos);
+        next++;
+      }
+      pos = end;
+      position++;
+    }
+    return documents;
+  }
+
+  /**
+   * Split the bulk content of the given type into parts (used when rejected as too large).
+   * <p>
+   * When the content is larger than max bytes (greater than 0) it is split into parts of
+   * at most max bytes, otherwise it is split in half by the number of documents. Content
+   * with a single document is returned as the only part.
+   * </p>
+   *
+   * @param bulk the bulk content (not consumed)
+   */
+  static List<Buffer> split(Buffer bulk, MediaType contentType, long maxBytes) {
+    byte separator = isSmile(contentType) ? SmileBulkEncoder.SEPARATOR : (byte) '\n';
+    long size = bulk.size();
+    int maxDocuments = 0;
+    if (maxBytes <= 0 || size <= maxBytes) {
+      int documents = 0;
+      for (long pos = 0; pos < size; pos = documentEnd(bulk, separator, pos)) {
+        documents++;
+      }
+      maxBytes = 0;
+      maxDocuments = Math.max(1, (documents + 1) / 2);
+    }
+    return chunks(bulk, contentType, maxBytes, maxDocuments);
+  }
+
+  /**
+   * Split the bulk content of the given type into chunks bounded by max bytes and max documents.
+   *
+   * @param bulk the bulk content (not consumed)
+   */
+  static List<Buffer> chunks(Buffer bulk, MediaType contentType, long maxBytes, int maxDocuments) {
+    byte separator = isSmile(contentType) ? SmileBulkEncoder.SEPARATOR : (byte) '\n';
+    long size = bulk.size();
+    BulkChunker chunker = new BulkChunker(maxBytes, maxDocuments);
+    long pos = 0;
+    while (pos < size) {
+      long end = documentEnd(bulk, separator, pos);
+      bulk.copyTo(chunker.buffer(), pos, end - pos);
+      chunker.documentEnd();
+      pos = end;
+    }
+    return chunker.finish();
+  }
+
+  /**
+   * Return the offset after the document (action and source lines) starting at the position.
+   */
+  private static long documentEnd(Buffer bulk, byte separator, long pos) {
+    long actionEnd = bulk.indexOf(separator, pos);
+    long sourceEnd = (actionEnd == -1) ? -1 : bulk.indexOf(separator, actionEnd + 1);
+    return (sourceEnd == -1) ? bulk.size() : sourceEnd + 1;
+  }
+
+  @Override
+  public MediaType contentType() {
+    return visitor.contentType();
+  }
+
+  /**
+   * Write the metrics as bulk JSON (or SMILE) to the sink.
+   * <p>
+   * Streamed to the request so the write time and bytes are not measured here (as that
+   * includes writing to the connection and happens again on retry). With the reporter
+   * metrics enabled the metrics are written once using toChunks() or toStaged() instead.
+   * </p>
+   */
+  @Override
+  public void writeTo(BufferedSink sink) throws IOException {
+    visitor.write(sink, reportMetrics, indexSuffix);
+  }
+
+  /**
+   * Write the metrics as bulk JSON to buffers split by max bytes and max documents
+   * (0 meaning no limit).
+   * <p>
+   * Used when the metrics are sent asynchronously (as the collected statistics can
+   * change once report() has returned) or split into multiple bulk requests.
+   * </p>
+   */
+  List<Buffer> toChunks(long maxBytes, int maxDocuments) throws IOException {
+    long start = (metrics == null) ? 0 : metrics.start();
+    BulkChunker chunker = new BulkChunker(maxBytes, maxDocuments);
+    visitor.write(chunker, reportMetrics, indexSuffix);
+    List<Buffer> chunks = chunker.finish();
+    if (metrics != null && metrics.isEnabled()) {
+      long bytes = 0;
+      for (Buffer chunk : chunks) {
+        bytes += chunk.size();
+      }
+      metrics.written(start, bytes);
+    }
+    return chunks;
+  }
+
+  /**
+   * Write the metrics to a direct buffer taken from the staging pool.
+   * <p>
+   * Used when the metrics are sent asynchronously or to multiple sinks. The returned
+   * buffer is released to the pool by the caller once it has been sent.
+   * </p>
+   */
+  ByteBuffer toStaged(StagingPool pool) throws IOException {
+    long start = (metrics == null) ? 0 : metrics.start();
+    StagingSink staging = new StagingSink(pool);
+    try {
+      visitor.write(Okio.buffer(staging), reportMetrics, indexSuffix);
+    } catch (IOException | RuntimeException e) {
+      staging.release();
+      throw e;
+    }
+    ByteBuffer staged = staging.finish();
+    if (metrics != null) {
+      metrics.written(start, staged.remaining());
+    }
+    return staged;
+  }
+}
@@ -0,0 +1,169 @@
+package org.avaje.metric.elastic;
+
+import okio.BufferedSource;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The outcome of a bulk request read from the response.
+ * <p>
+ * The response is read as a stream (rather than parsed into a tree). When the response
+ * has <code>"errors":false</code> reading stops there, otherwise the status of each
+ * item is read to determine the items that were rejected and can be retried
+ * (429 or 503 such as es_rejected_execution_exception) and those that failed permanently
+ * (for example mapping errors).
+ * </p>
+ */
+class BulkResponse {
+
+  private int[] retryItems = new int[0];
+
+  private int retryCount;
+
+  private int failedCount;
+
+  private String firstError;
+
+  /**
+   * Read the bulk response from the source.
+   */
+  static BulkResponse parse(BufferedSource source) throws IOException {
+    BulkResponse response = new BulkResponse();
+    new Reader(source, response).readResponse();
+    return response;
+  }
+
+  /**
+   * Return true if any items were rejected or failed.
+   */
+  boolean hasErrors() {
+    return retryCount > 0 || failedCount > 0;
+  }
+
+  /**
+   * Return the positions (in ascending order) of the items that can be retried.
+   */
+  int[] retryItems() {
+    return Arrays.copyOf(retryItems, retryCount);
+  }
+
+  /**
+   * Return the number of items that failed and should not be retried.
+   */
+  int failedCount() {
+    return failedCount;
+  }
+
+  /**
+   * Return the first error (type and reason) or null if there were no errors.
+   */
+  String firstError() {
+    return firstError;
+  }
+
+  private void item(int position, long status, String error) {
+    if (status >= 200 && status < 300) {
+      return;
+    }
+    if (firstError == null) {
+      firstError = "status:" + status + " " + error;
+    }
+    if (status == 429 || status == 503) {
+      if (retryCount == retryItems.length) {
+        retryItems = Arrays.copyOf(retryItems, Math.max(16, retryCount * 2));
+      }
+      retryItems[retryCount++] = position;
+    } else {
+      failedCount++;
+    }
+  }
+
+  /**
+   * Streaming reader for the bulk response.
+   */
+  private static class Reader extends JsonStreamReader {
+
+    private final BulkResponse response;
+
+    Reader(BufferedSource source, BulkResponse response) {
+      super(source);
+      this.response = response;
+    }
+
+    void readResponse() throws IOException {
+      if (source.exhausted()) {
+        return;
+      }
+      beginObject();
+      while (hasNext('}')) {
+        String name = readString();
+        expect(':');
+        if ("errors".equals(name)) {
+          if (!readBoolean()) {
+            // all items successful so no need to read the rest
+            return;
+          }
+        } else if ("items".equals(name)) {
+          readItems();
+        } else {
+          skipValue();
+        }
+      }
+    }
+
+    private void readItems() throws IOException {
+      expect('[');
+      int position = 0;
+      while (hasNext(']')) {
+        // {"index":{...}} or {"create":{...}}
+        beginObject();
+        while (hasNext('}')) {
+          readString();
+          expect(':');
+          readItem(position);
+        }
+        position++;
+      }
+    }
+
+    private void readItem(int position) throws IOException {
+      long status = 0;
+      String error = null;
+      beginObject();
+      while (hasNext('}')) {
+        String name = readString();
+        expect(':');
+        if ("status".equals(name)) {
+          status = readLong();
+        } else if ("error".equals(name)) {
+          error = readError();
+        } else {
+          skipValue();
+        }
+      }
+      response.item(position, status, error);
+    }
+
+    private String readError() throws IOException {
+      if (peek() != '{') {
+        return readScalar();
+      }
+      String type = null;
+      String reason = null;
+      beginObject();
+      while (hasNext('}')) {
+        String name = readString();
+        expect(':');
+        if ("type".equals(name)) {
+          type = readScalar();
+        } else if ("reason".equals(name)) {
+          reason = readScalar();
+        } else {
+          skipValue();
+        }
+      }
+      return type + " " + reason;
+    }
+  }
+}
@@ -0,0 +1,46 @@
+package org.avaje.metric.elastic;
+
+import okhttp3.MediaType;
+import okio.ByteString;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A destination for the bulk content that {@link FanOutReporter} writes once per report.
+ */
+public interface BulkSink {
+
+  /**
+   * Send the bulk content.
+   * <p>
+   * The content is shared by all the sinks and is immutable.
+   * </p>
+   *
+   * @param bulk        the bulk content (action and source documents)
+   * @param contentType the content type (JSON or SMILE)
+   */
+  void send(ByteString bulk, MediaType contentType) throws IOException;
+
+  /**
+   * Send the bulk content staged in a (direct) buffer.
+   * <p>
+   * The buffer is shared by all the sinks and released to the staging pool once they
+   * have all returned so it must not be used after this returns. By default the content
+   * is copied to a ByteString.
+   * </p>
+   *
+   * @param bulk        the bulk content (read using a duplicate, not consumed)
+   * @param contentType the content type (JSON or SMILE)
+   */
+  default void send(ByteBuffer bulk, MediaType contentType) throws IOException {
+    send(ByteString.of(bulk.duplicate()), contentType);
+  }
+
+  /**
+   * Wait for any pending work to complete.
+   */
+  default void cleanup() {
+    // nothing by default
+  }
+}
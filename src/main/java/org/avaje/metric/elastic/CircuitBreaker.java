@@ -0,0 +1,113 @@
+package org.avaje.metric.elastic;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.LongSupplier;
+
+/**
+ * Circuit breaker around the Elastic endpoint.
+ * <p>
+ * After a number of consecutive failures the circuit opens and requests are not attempted
+ * (the metrics are queued to be sent later) until a backoff period has passed. Then a single
+ * request is allowed (half open) and if that succeeds the circuit closes, otherwise it opens
+ * again with the backoff doubled up to the maximum. The backoff is jittered such that many
+ * reporters do not all retry at the same time.
+ * </p>
+ */
+class CircuitBreaker {
+
+  private static final Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+
+  enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  private final int failureThreshold;
+
+  private final long initialBackoffMillis;
+
+  private final long maxBackoffMillis;
+
+  private final LongSupplier clock;
+
+  private State state = State.CLOSED;
+
+  private int failures;
+
+  private long backoffMillis;
+
+  private long openUntil;
+
+  CircuitBreaker(int failureThreshold, long initialBackoffMillis, long maxBackoffMillis) {
+    this(failureThreshold, initialBackoffMillis, maxBackoffMillis, System::currentTimeMillis);
+  }
+
+  CircuitBreaker(int failureThreshold, long initialBackoffMillis, long maxBackoffMillis, LongSupplier clock) {
+    this.failureThreshold = Math.max(1, failureThreshold);
+    this.initialBackoffMillis = initialBackoffMillis;
+    this.maxBackoffMillis = Math.max(initialBackoffMillis, maxBackoffMillis);
+    this.clock = clock;
+  }
+
+  /**
+   * Return true if a request should be attempted.
+   */
+  synchronized boolean allowRequest() {
+    switch (state) {
+      case CLOSED:
+        return true;
+      case OPEN:
+        if (clock.getAsLong() >= openUntil) {
+          // allow a single request to probe the endpoint
+          state = State.HALF_OPEN;
+          return true;
+        }
+        return false;
+      default:
+        // the probe request is in flight
+        return false;
+    }
+  }
+
+  /**
+   * Record the outcome of a request.
+   */
+  synchronized void record(boolean success) {
+    if (success) {
+      if (state != State.CLOSED) {
+        logger.info("Elastic available, circuit closed");
+      }
+      state = State.CLOSED;
+      failures = 0;
+      backoffMillis = 0;
+    } else {
+      failures++;
+      if (state == State.HALF_OPEN) {
+        open(Math.min(maxBackoffMillis, backoffMillis * 2));
+      } else if (state == State.CLOSED && failures >= failureThreshold) {
+        open(initialBackoffMillis);
+      }
+    }
+  }
+
+  private void open(long backoff) {
+    backoffMillis = backoff;
+    // equal jitter, between half and the full backoff
+    long half = backoff / 2;
+    long delay = half + ThreadLocalRandom.current().nextLong(half + 1);
+    openUntil = clock.getAsLong() + delay;
+    state = State.OPEN;
+    logger.info("Elastic unavailable after {} failures, circuit open for {} millis", failures, delay);
+  }
+
+  /**
+   * Return the current state.
+   */
+  synchronized State state() {
+    return state;
+  }
+}
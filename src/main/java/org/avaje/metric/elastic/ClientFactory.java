@@ -0,0 +1,102 @@
+package org.avaje.metric.elastic;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates the OkHttp client from the configuration (when a client is not supplied).
+ * <p>
+ * The connection pool keeps the connections alive between reports such that each report
+ * reuses a connection rather than connecting (and performing a TLS handshake) again.
+ * </p>
+ */
+class ClientFactory {
+
+  /**
+   * Return the client supplied by the configuration or otherwise create one.
+   */
+  static OkHttpClient create(ElasticReporterConfig config) {
+
+    OkHttpClient client = config.getClient();
+    if (client != null) {
+      return client;
+    }
+    int maxRequestsPerHost = Math.max(1, config.getMaxRequestsPerHost());
+    Dispatcher dispatcher = new Dispatcher();
+    dispatcher.setMaxRequests(Math.max(dispatcher.getMaxRequests(), maxRequestsPerHost));
+    dispatcher.setMaxRequestsPerHost(maxRequestsPerHost);
+
+    OkHttpClient.Builder builder = new OkHttpClient.Builder()
+      .connectTimeout(config.getConnectTimeout(), TimeUnit.SECONDS)
+      .readTimeout(config.getReadTimeout(), TimeUnit.SECONDS)
+      .writeTimeout(config.getWriteTimeout(), TimeUnit.SECONDS)
+      .connectionPool(new ConnectionPool(config.getMaxIdleConnections(), config.getKeepAlive(), TimeUnit.SECONDS))
+      .dispatcher(dispatcher)
+      .protocols(protocols(config.getHttpProtocol()));
+
+    if (config.getTlsSessionCacheSize() > 0 || config.getTlsSessionTimeout() > 0) {
+      tlsSessionCache(builder, config.getTlsSessionCacheSize(), config.getTlsSessionTimeout());
+    }
+    return builder.build();
+  }
+
+  /**
+   * Return the protocols for the configured HTTP protocol.
+   */
+  static List<Protocol> protocols(ElasticReporterConfig.HttpProtocol httpProtocol) {
+    switch (httpProtocol) {
+      case HTTP_1_1:
+        return Collections.singletonList(Protocol.HTTP_1_1);
+      default:
+        return Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1);
+    }
+  }
+
+  /**
+   * Use an SSL context with the TLS session cache configured for session resumption.
+   */
+  private static void tlsSessionCache(OkHttpClient.Builder builder, int cacheSize, int timeout) {
+    try {
+      TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+      factory.init((KeyStore) null);
+      X509TrustManager trustManager = trustManager(factory.getTrustManagers());
+
+      SSLContext context = SSLContext.getInstance("TLS");
+      context.init(null, new TrustManager[]{trustManager}, null);
+      SSLSessionContext sessions = context.getClientSessionContext();
+      if (cacheSize > 0) {
+        sessions.setSessionCacheSize(cacheSize);
+      }
+      if (timeout > 0) {
+        sessions.setSessionTimeout(timeout);
+      }
+      builder.sslSocketFactory(context.getSocketFactory(), trustManager);
+
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Unable to create SSL context for TLS session cache", e);
+    }
+  }
+
+  private static X509TrustManager trustManager(TrustManager[] trustManagers) {
+    for (TrustManager trustManager : trustManagers) {
+      if (trustManager instanceof X509TrustManager) {
+        return (X509TrustManager) trustManager;
+      }
+    }
+    throw new IllegalStateException("No X509TrustManager in " + Arrays.toString(trustManagers));
+  }
+}
@@ -0,0 +1,32 @@
+package org.avaje.metric.elastic;
+
+import okio.Buffer;
+import okio.ForwardingSink;
+import okio.Sink;
+
+import java.io.IOException;
+
+/**
+ * Sink that counts the bytes written to it.
+ */
+class CountingSink extends ForwardingSink {
+
+  private long count;
+
+  CountingSink(Sink delegate) {
+    super(delegate);
+  }
+
+  @Override
+  public void write(Buffer source, long byteCount) throws IOException {
+    super.write(source, byteCount);
+    count += byteCount;
+  }
+
+  /**
+   * Return the number of bytes written.
+   */
+  long count() {
+    return count;
+  }
+}
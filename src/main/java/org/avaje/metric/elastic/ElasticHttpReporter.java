@@ -1,60 +1,146 @@
 package org.avaje.metric.elastic;
 
+import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.GzipSource;
 import org.avaje.metric.report.MetricReporter;
 import org.avaje.metric.report.ReportMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.StringWriter;
 import java.net.ConnectException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
-import java.nio.file.Files;
-import java.time.LocalDate;
-import java.time.format.DateTimeFormatter;
-import java.time.format.DateTimeFormatterBuilder;
+import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Http(s) based Reporter that sends JSON formatted metrics directly to Elastic.
+ * <p>
+ * This is also a {@link BulkSink} such that it can be one of the sinks of a
+ * {@link FanOutReporter}.
+ * </p>
  */
-public class ElasticHttpReporter implements MetricReporter {
+public class ElasticHttpReporter implements MetricReporter, BulkSink {
 
   private static final Logger logger = LoggerFactory.getLogger(ElasticHttpReporter.class);
 
-  private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+  private static final String SUFFIX = ".metric";
 
-  private static final DateTimeFormatter todayFormat
-    = new DateTimeFormatterBuilder()
-    .appendPattern("yyyy.MM.dd")
-    .toFormatter();
+  private static final String GZIP_SUFFIX = ".metric.gz";
 
 
   private final File directory;
 
   private final OkHttpClient client;
 
-  private final String bulkUrl;
+  /**
+   * The Elastic nodes the bulk requests are sent to.
+   */
+  private final ElasticNodes nodes;
 
   private final ElasticReporterConfig config;
 
+  /**
+   * Writes the bulk JSON (reused by the reporting thread).
+   */
+  private final BulkJsonWriteVisitor bulkVisitor;
+
+  /**
+   * The index name suffix (used by the reporting thread).
+   */
+  private final IndexSuffix indexSuffix;
+
+  /**
+   * Permits for bulk requests in flight (null when sending synchronously).
+   */
+  private final Semaphore inFlight;
+
+  private final int maxInFlight;
+
+  /**
+   * True when the metrics are split into multiple bulk requests.
+   */
+  private final boolean splitBulk;
+
+  private final CircuitBreaker circuitBreaker;
+
+  /**
+   * Time of the next discovery of the nodes (used by the reporting thread).
+   */
+  private long nextSniff;
+
+  /**
+   * Bulk payloads that failed to be sent, queued to be sent later.
+   */
+  private final SegmentedQueue queue;
+
+  /**
+   * Sends the queued metrics in the background.
+   */
+  private final QueueDrain drain;
+
+  /**
+   * Metrics of this reporter (which do nothing unless enabled).
+   */
+  private final ReporterMetrics metrics;
+
+  /**
+   * Pool of direct buffers the bulk content is staged in when sent asynchronously (null when not used).
+   */
+  private final StagingPool staging;
+
+  /**
+   * Puts the template to Elastic, the metrics are queued until it is in place (or holdUntil).
+   */
+  private final TemplateApply templateApply;
+
+  /**
+   * Time after which sending is no longer held waiting for the template.
+   */
+  private final long holdUntil;
+
   public ElasticHttpReporter(ElasticReporterConfig config) {
-    this.client = getClient(config);
+    this.client = ClientFactory.create(config);
     this.config = config;
-    this.bulkUrl = config.getUrl() + "/_bulk";
+    this.indexSuffix = new IndexSuffix(config.getIndexPeriod(), config.getIndexPattern(), config.getIndexZone());
+    this.nodes = new ElasticNodes(config.getUrls(), config.getNodeSelection() == ElasticReporterConfig.NodeSelection.LEAST_IN_FLIGHT,
+      config.getNodeFailures(), TimeUnit.SECONDS.toMillis(config.getNodeRetryTime()));
     this.directory = checkDirectory(config.getDirectory());
-
-    // put the template to elastic if it is not already there
-    new TemplateApply(client, config.getUrl(), config.getTemplateName()).run();
+    this.maxInFlight = Math.max(1, config.getMaxInFlight());
+    this.inFlight = config.isSendAsync() ? new Semaphore(maxInFlight) : null;
+    this.splitBulk = config.getMaxBulkBytes() > 0 || config.getMaxBulkDocuments() > 0;
+    this.circuitBreaker = new CircuitBreaker(config.getCircuitBreakerFailures(),
+      TimeUnit.SECONDS.toMillis(config.getBackoffInitial()), TimeUnit.SECONDS.toMillis(config.getBackoffMax()));
+    this.metrics = new ReporterMetrics(config);
+    this.bulkVisitor = new BulkJsonWriteVisitor(config, metrics);
+    this.staging = config.getStagingPoolMaxBytes() > 0 ? new StagingPool(config.getStagingPoolMaxBytes()) : null;
+    this.queue = openQueue(config);
+    metrics.register(queue);
+    this.drain = new QueueDrain(queue, this::sendQueued, config.getDrainParallelism(),
+      config.getMaxQueuedPerReport(), config.getDrainMaxBytes(), TimeUnit.SECONDS.toMillis(config.getDrainMaxTime()));
+
+    // put the template to elastic in the background if it is not already there
+    // and then send the metrics queued while it was applied
+    this.holdUntil = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(config.getTemplateWait());
+    this.templateApply = new TemplateApply(client, config.getUrl(), config.getTemplateName(), config.getDataStream() != null, directory);
+    templateApply.start(TimeUnit.SECONDS.toMillis(config.getBackoffInitial()), TimeUnit.SECONDS.toMillis(config.getBackoffMax()), drain::request);
+    if (config.isWarmUp()) {
+      warmUp();
+    }
   }
 
   private File checkDirectory(String directory) {
@@ -65,17 +151,58 @@ public class ElasticHttpReporter implements MetricReporter {
     return dir;
   }
 
-  private OkHttpClient getClient(ElasticReporterConfig config) {
+  private SegmentedQueue openQueue(ElasticReporterConfig config) {
+    SegmentedQueue queue;
+    try {
+      queue = new SegmentedQueue(directory, config.getQueueSegmentSize(), config.getQueueMaxSize(),
+        config.isCompression(), config.getCompressionLevel());
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to open queued metrics in directory [" + directory + "]", e);
+    }
+    migrateQueuedFiles(queue);
+    return queue;
+  }
 
-    OkHttpClient client = config.getClient();
-    if (client != null) {
-      return client;
-    } else {
-      return new OkHttpClient.Builder()
-        .connectTimeout(config.getConnectTimeout(), TimeUnit.SECONDS)
-        .readTimeout(config.getReadTimeout(), TimeUnit.SECONDS)
-        .writeTimeout(config.getWriteTimeout(), TimeUnit.SECONDS)
-        .build();
+  /**
+   * Move metrics files queued by earlier versions (one file per failure) into the queue.
+   */
+  private void migrateQueuedFiles(SegmentedQueue queue) {
+    File[] files = directory.listFiles(pathname -> isQueuedFile(pathname.getName()));
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      try {
+        queue.append(RequestBody.create(BulkRequestBody.JSON, file), file.getName().endsWith(GZIP_SUFFIX));
+        if (!file.delete()) {
+          logger.error("Queued but unable to delete metrics file, possible duplicate metrics for file:{}", file);
+        }
+      } catch (IOException e) {
+        logger.warn("Failed to queue metrics file {}", file, e);
+      }
+    }
+  }
+
+  /**
+   * Open a connection to each node sending a HEAD request asynchronously.
+   * <p>
+   * The connections are kept in the connection pool to be used by the first report.
+   * </p>
+   */
+  private void warmUp() {
+    for (String url : config.getUrls()) {
+      Request request = new Request.Builder().url(url + "/").head().build();
+      client.newCall(request).enqueue(new Callback() {
+        @Override
+        public void onFailure(Call call, IOException e) {
+          logger.info("Failed to warm up connection to {} - {}", url, e.getMessage());
+        }
+
+        @Override
+        public void onResponse(Call call, Response response) {
+          response.close();
+        }
+      });
     }
   }
 
@@ -88,122 +215,520 @@ public class ElasticHttpReporter implements MetricReporter {
     if (reportMetrics.getMetrics().isEmpty()) {
       return;
     }
+    if (config.isSniff()) {
+      sniff();
+    }
+
+    BulkRequestBody bulkBody = new BulkRequestBody(bulkVisitor, reportMetrics, indexSuffix.suffix(reportMetrics.getCollectionTime()), metrics);
+    if (inFlight == null && !splitBulk && !bulkVisitor.isStateful() && !metrics.isEnabled()) {
+      // bulk JSON streamed directly to the request (written again the same on retry)
+      sendMetrics(bulkBody);
+      return;
+    }
 
-    StringWriter writer = new StringWriter(1000);
-    BulkJsonWriteVisitor jsonVisitor = new BulkJsonWriteVisitor(writer, reportMetrics, config, today());
+    // write the metrics once as the collected statistics change after report() and
+    // suppression, roll-up and filtering move on each time the metrics are written
+    // (and such that the write time and bytes are measured once without the network)
+    if (inFlight != null && staging != null && !splitBulk) {
+      sendStaged(bulkBody);
+      return;
+    }
+    List<Buffer> chunks;
     try {
-      jsonVisitor.write();
+      chunks = bulkBody.toChunks(config.getMaxBulkBytes(), config.getMaxBulkDocuments());
     } catch (IOException e) {
       logger.error("Failed to write Bulk JSON for metrics", e);
       return;
     }
-    String bulkJson = writer.toString();
-    if (!bulkJson.isEmpty()) {
-      sendMetrics(bulkJson, true);
+    sendChunks(chunks, bulkBody.contentType());
+  }
+
+  /**
+   * Send the chunks of bulk content synchronously or asynchronously queuing those that fail.
+   */
+  private void sendChunks(List<Buffer> chunks, MediaType contentType) {
+    boolean sent = false;
+    for (Buffer chunk : chunks) {
+      RequestBody body = BulkRequestBody.of(chunk, contentType);
+      if (heldForTemplate(body)) {
+        continue;
+      }
+      if (inFlight != null) {
+        sendMetricsAsync(body, null);
+      } else if (send(body, false)) {
+        sent = true;
+      } else {
+        storeForResend(body);
+      }
+    }
+    if (sent) {
+      drain.request();
     }
   }
 
   /**
-   * Send the bulk message to ElasticSearch.
+   * Send bulk content already written (by a FanOutReporter) queuing it if that fails.
+   * <p>
+   * As with report() the content is split by max bulk bytes and documents and sent
+   * asynchronously when sendAsync is set.
+   * </p>
    */
-  private void sendMetrics(String bulkMessage, boolean withQueued) {
-    String json = bulkMessage;
-    if (logger.isTraceEnabled()) {
-      logger.trace("Sending:\n{}", json);
+  @Override
+  public void send(ByteString bulk, MediaType contentType) {
+    if (config.isSniff()) {
+      sniff();
+    }
+    if (inFlight == null && !splitBulk) {
+      sendMetrics(RequestBody.create(contentType, bulk));
+      return;
+    }
+    sendChunks(new Buffer().write(bulk), contentType);
+  }
+
+  /**
+   * Send bulk content staged in a buffer (by a FanOutReporter) queuing it if that fails.
+   * <p>
+   * When sent synchronously as a single request the content is copied from the buffer as
+   * the request is written. Otherwise it is copied first (as the buffer is released when
+   * this returns) and then split and sent as with report().
+   * </p>
+   */
+  @Override
+  public void send(ByteBuffer bulk, MediaType contentType) {
+    if (config.isSniff()) {
+      sniff();
+    }
+    if (inFlight == null && !splitBulk) {
+      sendMetrics(BulkRequestBody.of(bulk, contentType));
+      return;
     }
+    sendChunks(BulkRequestBody.copy(bulk), contentType);
+  }
 
-    RequestBody body = RequestBody.create(JSON, json);
-    Request request = new Request.Builder()
-      .url(bulkUrl)
-      .post(body)
-      .build();
+  /**
+   * Split the bulk content when max bulk bytes or documents are set and send the chunks.
+   */
+  private void sendChunks(Buffer bulk, MediaType contentType) {
+    if (!splitBulk) {
+      sendChunks(Collections.singletonList(bulk), contentType);
+    } else {
+      sendChunks(BulkRequestBody.chunks(bulk, contentType, config.getMaxBulkBytes(), config.getMaxBulkDocuments()), contentType);
+    }
+  }
 
+  /**
+   * Write the metrics to a direct buffer from the staging pool and send them asynchronously.
+   * <p>
+   * The buffer is released to the pool when the request completes (or the metrics are queued).
+   * </p>
+   */
+  private void sendStaged(BulkRequestBody bulkBody) {
+    ByteBuffer staged;
     try {
-      try (Response response = client.newCall(request).execute()) {
-        if (!response.isSuccessful()) {
-          logger.warn("Unsuccessful sending metrics payload to server - {}", response.body().string());
-          storeJsonForResend(json);
-        } else {
-          if (logger.isTraceEnabled()) {
-            logger.trace("Bulk Response - {}", response.body().string());
-          }
-          if (withQueued) {
-            sendQueued();
+      staged = bulkBody.toStaged(staging);
+    } catch (IOException | RuntimeException e) {
+      // including content too large for a buffer, not thrown into the reporting thread
+      logger.error("Failed to write Bulk JSON for metrics", e);
+      return;
+    }
+    if (!staged.hasRemaining()) {
+      // all the metrics suppressed or filtered
+      staging.release(staged);
+      return;
+    }
+    sendMetricsAsync(BulkRequestBody.of(staged, bulkBody.contentType()), () -> staging.release(staged));
+  }
+
+  /**
+   * Discover the Elastic nodes using _nodes/http if the sniff interval has passed.
+   */
+  private void sniff() {
+    long now = System.currentTimeMillis();
+    if (now < nextSniff) {
+      return;
+    }
+    nextSniff = now + TimeUnit.SECONDS.toMillis(config.getSniffInterval());
+    ElasticNodes.Node node = nodes.acquire(null);
+    Request request = new Request.Builder().url(node.url() + "/_nodes/http").get().build();
+    client.newCall(request).enqueue(new Callback() {
+      @Override
+      public void onFailure(Call call, IOException e) {
+        nodes.release(node, false);
+        logger.info("Failed to discover Elastic nodes: " + e.getMessage());
+      }
+
+      @Override
+      public void onResponse(Call call, Response response) throws IOException {
+        boolean success = false;
+        try (Response res = response) {
+          if (res.isSuccessful()) {
+            nodes.update(ElasticNodes.parseHttpNodes(res.body().string(), node.url()));
+            success = true;
+          } else {
+            logger.warn("Failed to discover Elastic nodes, status {}", res.code());
           }
+        } finally {
+          nodes.release(node, success);
         }
       }
+    });
+  }
 
-    } catch (UnknownHostException e) {
-      logger.info("UnknownHostException trying to sending metrics to server: " + e.getMessage());
-      storeJsonForResend(json);
+  /**
+   * Build the bulk request with the body compressed if configured.
+   *
+   * @param gzipped true if the body content is already gzip compressed
+   */
+  private Request bulkRequest(ElasticNodes.Node node, RequestBody body, boolean gzipped) {
+    boolean smile = BulkRequestBody.isSmile(body.contentType());
+    if (logger.isTraceEnabled() && !gzipped && !smile) {
+      logger.trace("Sending:\n{}", traceContent(body));
+    }
+    Request.Builder builder = new Request.Builder().url(node.bulkUrl());
+    if (smile) {
+      // the response is otherwise in the format of the request
+      builder.header("Accept", "application/json");
+    }
+    if (!gzipped && config.isCompression()) {
+      body = new GzipRequestBody(body, config.getCompressionLevel());
+      gzipped = true;
+    }
+    if (gzipped) {
+      builder.header("Content-Encoding", "gzip");
+    }
+    return builder.post(body).build();
+  }
 
-    } catch (ConnectException | SocketTimeoutException e) {
-      logger.info("Connection error sending metrics to server: " + e.getMessage());
-      storeJsonForResend(json);
+  private String traceContent(RequestBody body) {
+    try {
+      Buffer buffer = new Buffer();
+      body.writeTo(buffer);
+      return buffer.readUtf8();
+    } catch (IOException e) {
+      return e.getMessage();
+    }
+  }
 
-    } catch (Exception e) {
-      logger.warn("Unexpected error sending metrics to server, metrics queued to be sent later", e);
-      storeJsonForResend(json);
+  /**
+   * Queue the metrics returning true if the template is not yet in place.
+   * <p>
+   * Sending is held (queued metrics are not drained) until the template is applied such
+   * that the indexes are not created with dynamically mapped fields, for at most the
+   * template wait.
+   * </p>
+   */
+  private boolean heldForTemplate(RequestBody body) {
+    if (!isHeldForTemplate()) {
+      return false;
     }
+    storeForResend(body);
+    return true;
+  }
+
+  private boolean isHeldForTemplate() {
+    return !templateApply.isDone() && System.currentTimeMillis() < holdUntil;
   }
 
   /**
-   * Send any metrics files that have been queued (as they failed initial send to elasticsearch).
+   * Send the bulk message to ElasticSearch storing it for resend if that fails.
    */
-  private void sendQueued() {
+  private void sendMetrics(RequestBody body) {
+    if (heldForTemplate(body)) {
+      return;
+    }
+    if (send(body, false)) {
+      drain.request();
+    } else {
+      storeForResend(body);
+    }
+  }
 
-    File[] files = directory.listFiles(pathname -> pathname.getName().endsWith(".metric"));
-    if (files == null) {
+  /**
+   * Send the bulk message returning true if it was sent (false meaning it should be queued).
+   * <p>
+   * If sending to the selected node fails it is sent to another node.
+   * </p>
+   */
+  private boolean send(RequestBody body, boolean gzipped) {
+    if (!circuitBreaker.allowRequest()) {
+      // Elastic unavailable so don't attempt to send
+      metrics.circuitOpen();
+      return false;
+    }
+    boolean sent = false;
+    ElasticNodes.Node node = null;
+    for (int attempt = 0; attempt < 2 && !sent; attempt++) {
+      node = nodes.acquire(node);
+      if (node == null) {
+        // no other node to fail over to
+        break;
+      }
+      sent = send(node, body, gzipped);
+    }
+    circuitBreaker.record(sent);
+    return sent;
+  }
+
+  private boolean send(ElasticNodes.Node node, RequestBody body, boolean gzipped) {
+    boolean sent = false;
+    long start = metrics.start();
+    try (Response response = client.newCall(bulkRequest(node, body, gzipped)).execute()) {
+      sent = handleResponse(response, body, gzipped);
+    } catch (Exception e) {
+      logFailure(e);
+    } finally {
+      nodes.release(node, sent);
+      metrics.sent(start, sent);
+    }
+    return sent;
+  }
+
+  /**
+   * Send the bulk message to ElasticSearch asynchronously.
+   * <p>
+   * If the maximum number of requests are already in flight the metrics are queued
+   * to be sent later rather than adding to the load on a slow server.
+   * </p>
+   *
+   * @param completed run when the body is no longer used (or null)
+   */
+  private void sendMetricsAsync(RequestBody body, Runnable completed) {
+    if (heldForTemplate(body)) {
+      completed(completed);
       return;
     }
-    for (File heldFile : files) {
-      try {
-        sendMetrics(readQueuedFile(heldFile), false);
-        if (!heldFile.delete()) {
-          logger.error("Sent but unable to deleted queued metrics file, possible duplicate metrics for file:{}", heldFile);
-        } else {
-          logger.info("Sent queued metrics file {}", heldFile.getName());
+    if (!inFlight.tryAcquire()) {
+      logger.info("Max in flight bulk requests [{}] reached, metrics queued to be sent later", maxInFlight);
+      storeForResend(body);
+      completed(completed);
+      return;
+    }
+    if (!circuitBreaker.allowRequest()) {
+      // Elastic unavailable so don't attempt to send
+      inFlight.release();
+      metrics.circuitOpen();
+      storeForResend(body);
+      completed(completed);
+      return;
+    }
+    ElasticNodes.Node node = nodes.acquire(null);
+    long start = metrics.start();
+    try {
+      client.newCall(bulkRequest(node, body, false)).enqueue(new Callback() {
+        @Override
+        public void onFailure(Call call, IOException e) {
+          try {
+            nodes.release(node, false);
+            metrics.sent(start, false);
+            circuitBreaker.record(false);
+            logFailure(e);
+            storeForResend(body);
+          } finally {
+            inFlight.release();
+            completed(completed);
+          }
         }
-      } catch (IOException e) {
-        // just successfully sent metrics so not really expecting this
-        logger.warn("Failed to sent queued metrics file " + heldFile.getName(), e);
-        return;
+
+        @Override
+        public void onResponse(Call call, Response response) {
+          try (Response res = response) {
+            boolean sent = handleResponse(res, body, false);
+            nodes.release(node, sent);
+            metrics.sent(start, sent);
+            circuitBreaker.record(sent);
+            if (sent) {
+              drain.request();
+            } else {
+              storeForResend(body);
+            }
+          } catch (Exception e) {
+            nodes.release(node, false);
+            metrics.sent(start, false);
+            circuitBreaker.record(false);
+            logFailure(e);
+            storeForResend(body);
+          } finally {
+            inFlight.release();
+            completed(completed);
+          }
+        }
+      });
+    } catch (RuntimeException e) {
+      // the dispatcher rejected the call (shutdown)
+      nodes.release(node, false);
+      inFlight.release();
+      circuitBreaker.record(false);
+      logFailure(e);
+      storeForResend(body);
+      completed(completed);
+    }
+  }
+
+  private static void completed(Runnable completed) {
+    if (completed != null) {
+      completed.run();
+    }
+  }
+
+  /**
+   * Return true if the bulk request was sent, false if it should be queued to be sent later.
+   * <p>
+   * A 429 or 5xx response means the whole request should be sent later. A 413 response
+   * means the request is too large so it is split (by max bulk bytes or in half) and the
+   * parts queued to be sent later. A 400 response (or 413 with a single document) means
+   * the request will never succeed so it is dropped. With a successful
+   * response any items rejected with 429 or 503 are queued to be sent later and other
+   * failed items are dropped.
+   * </p>
+   */
+  private boolean handleResponse(Response response, RequestBody body, boolean gzipped) throws IOException {
+    int code = response.code();
+    if (!response.isSuccessful()) {
+      metrics.failureStatus();
+      if (code == 413) {
+        MediaType contentType = body.contentType();
+        List<Buffer> parts = BulkRequestBody.split(content(body, gzipped), contentType, config.getMaxBulkBytes());
+        if (parts.size() > 1) {
+          logger.warn("Bulk request too large (413) split into {} requests queued to be sent", parts.size());
+          for (Buffer part : parts) {
+            storeForResend(BulkRequestBody.of(part, contentType));
+          }
+          return true;
+        }
+      }
+      if (code == 400 || code == 413) {
+        logger.error("Bulk request rejected with status {} and dropped - {}", code, response.body().string());
+        return true;
       }
+      logger.warn("Unsuccessful sending metrics payload to server - {}", response.body().string());
+      return false;
+    }
+    BufferedSource source = response.body().source();
+    if (logger.isTraceEnabled()) {
+      String content = response.body().string();
+      logger.trace("Bulk Response - {}", content);
+      source = new Buffer().writeUtf8(content);
+    }
+    BulkResponse bulkResponse;
+    try {
+      bulkResponse = BulkResponse.parse(source);
+    } catch (IOException e) {
+      // the request was accepted so don't queue it
+      logger.warn("Failed to read bulk response", e);
+      return true;
+    }
+    if (bulkResponse.hasErrors()) {
+      int[] retryItems = bulkResponse.retryItems();
+      metrics.rejected(retryItems.length + bulkResponse.failedCount());
+      logger.warn("Bulk items rejected:{} (queued to resend) failed:{} (dropped) first error - {}",
+        retryItems.length, bulkResponse.failedCount(), bulkResponse.firstError());
+      if (retryItems.length > 0) {
+        MediaType contentType = body.contentType();
+        storeForResend(BulkRequestBody.of(BulkRequestBody.documents(content(body, gzipped), retryItems, contentType), contentType));
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Return the uncompressed bulk content of the request body.
+   */
+  private Buffer content(RequestBody body, boolean gzipped) throws IOException {
+    Buffer content = new Buffer();
+    body.writeTo(content);
+    if (!gzipped) {
+      return content;
+    }
+    Buffer uncompressed = new Buffer();
+    uncompressed.writeAll(new GzipSource(content));
+    return uncompressed;
+  }
+
+  private void logFailure(Exception e) {
+    metrics.failure(e);
+    if (e instanceof UnknownHostException) {
+      logger.info("UnknownHostException trying to sending metrics to server: " + e.getMessage());
+    } else if (e instanceof ConnectException || e instanceof SocketTimeoutException) {
+      logger.info("Connection error sending metrics to server: " + e.getMessage());
+    } else {
+      logger.warn("Unexpected error sending metrics to server, metrics queued to be sent later", e);
     }
   }
 
   /**
-   * Read and return the content from queued metrics file.
+   * Send a queued bulk payload returning true if it was sent.
+   * <p>
+   * The payload is streamed from the queue segment file as stored, gzip compressed
+   * payloads are sent without being decompressed.
+   * </p>
    */
-  private String readQueuedFile(File heldFile) throws IOException {
-    StringBuilder sb = new StringBuilder(1000);
-    List<String> lines = Files.readAllLines(heldFile.toPath());
-    for (String line : lines) {
-      sb.append(line).append("\n");
+  private boolean sendQueued(SegmentedQueue.Record record) {
+    if (isHeldForTemplate()) {
+      // held until the template is in place
+      return false;
+    }
+    boolean sent = send(record.body(), record.isGzipped());
+    if (sent) {
+      metrics.drained(record.length());
     }
-    return sb.toString();
+    return sent;
   }
 
-  private String today() {
-    return todayFormat.format(LocalDate.now());
+  private boolean isQueuedFile(String name) {
+    return name.endsWith(SUFFIX) || name.endsWith(GZIP_SUFFIX);
   }
 
-  protected void storeJsonForResend(String json) {
+  /**
+   * Append the bulk content to the queue to be sent later.
+   * <p>
+   * With compression the content is gzip compressed.
+   * </p>
+   */
+  protected void storeForResend(RequestBody body) {
     try {
-      // will be unique file name
-      File out = new File(directory, "metrics-" + System.currentTimeMillis() + ".metric");
-      FileWriter fw = new FileWriter(out);
-      fw.write(json);
-      fw.flush();
-      fw.close();
+      queue.append(body);
     } catch (IOException e) {
-      logger.warn("Failed to store metrics file for resending", e);
+      logger.warn("Failed to queue metrics for resending", e);
     }
   }
 
+  /**
+   * Wait for any bulk requests in flight and sending of queued metrics to complete and
+   * then stop the background threads and close the queue.
+   */
   @Override
   public void cleanup() {
-    // Do nothing
+    try {
+      awaitPending();
+    } finally {
+      templateApply.stop();
+      drain.shutdown();
+      try {
+        queue.close();
+      } catch (IOException e) {
+        logger.warn("Failed to close queued metrics", e);
+      }
+    }
+  }
+
+  private void awaitPending() {
+    try {
+      drain.await(config.getReadTimeout(), TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+    if (inFlight != null) {
+      try {
+        if (inFlight.tryAcquire(maxInFlight, config.getReadTimeout(), TimeUnit.SECONDS)) {
+          inFlight.release(maxInFlight);
+        } else {
+          logger.warn("Timeout waiting for in flight bulk requests to complete");
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
   }
 
 }
@@ -0,0 +1,222 @@
+package org.avaje.metric.elastic;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.LongSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The Elastic nodes that bulk requests are sent to.
+ * <p>
+ * A node is selected for each request either round robin or the node with the least
+ * requests in flight. Node health is tracked passively, after a number of consecutive
+ * failures a node is marked down and not selected until the retry time has passed when
+ * it is tried again. If all the nodes are down the node that has been down the longest
+ * is selected.
+ * </p>
+ */
+class ElasticNodes {
+
+  private static final Logger logger = LoggerFactory.getLogger(ElasticNodes.class);
+
+  private static final Pattern PUBLISH_ADDRESS = Pattern.compile("\"publish_address\"\\s*:\\s*\"([^\"]+)\"");
+
+  private final boolean leastInFlight;
+
+  private final int failureThreshold;
+
+  private final long retryMillis;
+
+  private final LongSupplier clock;
+
+  private List<Node> nodes;
+
+  private int next;
+
+  ElasticNodes(List<String> urls, boolean leastInFlight, int failureThreshold, long retryMillis) {
+    this(urls, leastInFlight, failureThreshold, retryMillis, System::currentTimeMillis);
+  }
+
+  ElasticNodes(List<String> urls, boolean leastInFlight, int failureThreshold, long retryMillis, LongSupplier clock) {
+    this.leastInFlight = leastInFlight;
+    this.failureThreshold = Math.max(1, failureThreshold);
+    this.retryMillis = retryMillis;
+    this.clock = clock;
+    this.nodes = toNodes(urls, Collections.emptyList());
+    if (nodes.isEmpty()) {
+      throw new IllegalArgumentException("No Elastic urls specified");
+    }
+  }
+
+  private static List<Node> toNodes(List<String> urls, List<Node> existing) {
+    List<Node> list = new ArrayList<>(urls.size());
+    for (String url : urls) {
+      list.add(existing.stream().filter(node -> node.url.equals(url)).findFirst().orElseGet(() -> new Node(url)));
+    }
+    return list;
+  }
+
+  /**
+   * Select a node for a request incrementing its requests in flight.
+   *
+   * @param exclude a node that just failed the request (or null)
+   * @return the node or null when the only node is the excluded one
+   */
+  synchronized Node acquire(Node exclude) {
+    long now = clock.getAsLong();
+    int size = nodes.size();
+    int start = next++ & Integer.MAX_VALUE;
+    Node selected = null;
+    Node longestDown = null;
+    for (int i = 0; i < size; i++) {
+      Node node = nodes.get((start + i) % size);
+      if (node == exclude) {
+        continue;
+      }
+      if (node.downUntil > now) {
+        if (longestDown == null || node.downUntil < longestDown.downUntil) {
+          longestDown = node;
+        }
+      } else if (selected == null || (leastInFlight && node.inFlight < selected.inFlight)) {
+        selected = node;
+        if (!leastInFlight) {
+          break;
+        }
+      }
+    }
+    if (selected == null) {
+      selected = longestDown;
+    }
+    if (selected != null) {
+      selected.inFlight++;
+    }
+    return selected;
+  }
+
+  /**
+   * The request to the node completed, recording the outcome for the node health.
+   */
+  synchronized void release(Node node, boolean success) {
+    node.inFlight--;
+    if (success) {
+      if (node.downUntil != 0) {
+        logger.info("Elastic node {} available", node.url);
+      }
+      node.failures = 0;
+      node.downUntil = 0;
+    } else if (++node.failures >= failureThreshold) {
+      node.downUntil = clock.getAsLong() + retryMillis;
+      logger.info("Elastic node {} marked down after {} failures", node.url, node.failures);
+    }
+  }
+
+  /**
+   * Return the number of nodes.
+   */
+  synchronized int size() {
+    return nodes.size();
+  }
+
+  /**
+   * Return the urls of the nodes.
+   */
+  synchronized List<String> urls() {
+    List<String> urls = new ArrayList<>(nodes.size());
+    for (Node node : nodes) {
+      urls.add(node.url);
+    }
+    return urls;
+  }
+
+  /**
+   * Replace the nodes with the discovered nodes (keeping the state of known nodes).
+   */
+  synchronized void update(List<String> urls) {
+    if (!urls.isEmpty() && !urls.equals(urls())) {
+      logger.info("Elastic nodes {}", urls);
+      nodes = toNodes(urls, nodes);
+    }
+  }
+
+  /**
+   * Return the node urls from the <code>_nodes/http</code> response.
+   * <p>
+   * The urls keep the scheme, user info and path prefix of the seed url (such as a
+   * proxy path) with the host and port replaced by the publish address of each node.
+   * </p>
+   *
+   * @param seedUrl the base url of the node the response came from
+   */
+  static List<String> parseHttpNodes(String json, String seedUrl) {
+    int schemeEnd = seedUrl.indexOf("://");
+    int hostStart = (schemeEnd == -1) ? 0 : schemeEnd + 3;
+    int authorityEnd = seedUrl.indexOf('/', hostStart);
+    if (authorityEnd == -1) {
+      authorityEnd = seedUrl.length();
+    }
+    int at = seedUrl.lastIndexOf('@', authorityEnd - 1);
+    if (at >= hostStart) {
+      // keep the user info
+      hostStart = at + 1;
+    }
+    String prefix = (schemeEnd == -1) ? "http://" : seedUrl.substring(0, hostStart);
+    String path = seedUrl.substring(authorityEnd);
+
+    Set<String> urls = new LinkedHashSet<>();
+    Matcher matcher = PUBLISH_ADDRESS.matcher(json);
+    while (matcher.find()) {
+      // host:port or hostname/ip:port
+      String address = matcher.group(1);
+      int slash = address.indexOf('/');
+      if (slash > 0) {
+        address = address.substring(0, slash) + address.substring(address.lastIndexOf(':'));
+      } else if (slash == 0) {
+        address = address.substring(1);
+      }
+      urls.add(prefix + address + path);
+    }
+    return new ArrayList<>(urls);
+  }
+
+  /**
+   * An Elastic node.
+   */
+  static class Node {
+
+    private final String url;
+
+    private final String bulkUrl;
+
+    private int inFlight;
+
+    private int failures;
+
+    private long downUntil;
+
+    Node(String url) {
+      this.url = url;
+      this.bulkUrl = url + "/_bulk";
+    }
+
+    /**
+     * Return the base url of the node.
+     */
+    String url() {
+      return url;
+    }
+
+    /**
+     * Return the bulk url of the node.
+     */
+    String bulkUrl() {
+      return bulkUrl;
+    }
+  }
+}
@@ -2,7 +2,12 @@ package org.avaje.metric.elastic;
 
 import okhttp3.OkHttpClient;
 
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -10,222 +15,1498 @@ import java.util.Map;
  */
 public class ElasticReporterConfig {
 
-  private String timestampField = "ts";
+  /**
+   * The period of each index (the index name suffix).
+   */
+  public enum IndexPeriod {
+
+    /**
+     * An index per day, for example metric-2017.01.31.
+     */
+    DAILY,
+
+    /**
+     * An index per hour, for example metric-2017.01.31.23.
+     */
+    HOURLY,
+
+    /**
+     * An index per ISO week, for example metric-2017.w05.
+     */
+    WEEKLY
+  }
+
+  /**
+   * How the Elastic node is selected for each bulk request.
+   */
+  public enum NodeSelection {
+
+    /**
+     * Each node in turn.
+     */
+    ROUND_ROBIN,
+
+    /**
+     * The node with the least bulk requests in flight.
+     */
+    LEAST_IN_FLIGHT
+  }
+
+  /**
+   * The format of the bulk request body.
+   */
+  public enum BulkFormat {
+
+    /**
+     * Newline delimited JSON.
+     */
+    JSON,
+
+    /**
+     * SMILE (binary JSON) documents separated by the 0xFF stream separator.
+     */
+    SMILE
+  }
+
+  /**
+   * The HTTP protocol used by the created client.
+   */
+  public enum HttpProtocol {
+
+    /**
+     * HTTP/1.1 only.
+     */
+    HTTP_1_1,
+
+    /**
+     * HTTP/2 when negotiated by TLS (ALPN) otherwise HTTP/1.1.
+     */
+    HTTP_2
+  }
+
+  /**
+   * The timestamp field (null for the default which depends on the data stream).
+   */
+  private String timestampField;
   private String typeField = "type";
   private String nameField = "name";
   private String indexType = "metric";
   private String indexPrefix = "metric-";
   private String url = "http://localhost:9200";
-  private String templateName = "metric-1";
+  /**
+   * The template name (used when templateNameSet, otherwise the default depends on the data stream).
+   */
+  private String templateName;
+
+  private boolean templateNameSet;
+
+  /**
+   * Maximum time in seconds sending is held waiting for the template - default 60 seconds.
+   */
+  private int templateWait = 60;
+
+  private IndexPeriod indexPeriod = IndexPeriod.DAILY;
+
+  /**
+   * DateTimeFormatter pattern of the index name suffix (null for the default of the period).
+   */
+  private String indexPattern;
+
+  private ZoneId indexZone = ZoneOffset.UTC;
+
+  /**
+   * The data stream written to (null for daily indexes).
+   */
+  private String dataStream;
+
+  /**
+   * The urls of multiple Elastic nodes (empty when just the url is used).
+   */
+  private List<String> urls = new ArrayList<>();
+
+  private NodeSelection nodeSelection = NodeSelection.ROUND_ROBIN;
+
+  /**
+   * Consecutive failures before a node is marked down - default 2.
+   */
+  private int nodeFailures = 2;
+
+  /**
+   * Time in seconds before a node that is down is tried again - default 30 seconds.
+   */
+  private int nodeRetryTime = 30;
+
+  /**
+   * Discover the nodes using _nodes/http - default false.
+   */
+  private boolean sniff;
+
+  /**
+   * Interval in seconds between discovering the nodes - default 5 minutes.
+   */
+  private int sniffInterval = 300;
+
+  /**
+   * Directory holding metrics that failed to be sent at report time.
+   */
+  private String directory = "queued-metrics";
+
+  /**
+   * Connect timeout - default 10 seconds.
+   */
+  private int connectTimeout = 10;
+
+  /**
+   * Read timeout - default 30 seconds.
+   */
+  private int readTimeout = 30;
+
+  /**
+   * Write timeout - default 30 seconds.
+   */
+  private int writeTimeout = 30;
+
+  /**
+   * Maximum idle connections kept by the created client - default 5.
+   */
+  private int maxIdleConnections = 5;
+
+  /**
+   * Time in seconds idle connections are kept alive - default 300.
+   */
+  private int keepAlive = 300;
+
+  /**
+   * Maximum concurrent requests per host of the created client - default 5.
+   */
+  private int maxRequestsPerHost = 5;
+
+  private HttpProtocol httpProtocol = HttpProtocol.HTTP_2;
+
+  /**
+   * Number of TLS sessions cached for resumption - default 0 (platform default).
+   */
+  private int tlsSessionCacheSize;
+
+  /**
+   * Time in seconds TLS sessions are cached for resumption - default 0 (platform default).
+   */
+  private int tlsSessionTimeout;
+
+  /**
+   * Open a connection to each node at startup - default false.
+   */
+  private boolean warmUp;
+
+  /**
+   * Send the bulk requests asynchronously - default false.
+   */
+  private boolean sendAsync;
+
+  /**
+   * Maximum number of bulk requests in flight when sending asynchronously - default 2.
+   */
+  private int maxInFlight = 2;
+
+  /**
+   * Consecutive failures before the circuit breaker opens - default 3.
+   */
+  private int circuitBreakerFailures = 3;
+
+  /**
+   * Initial backoff in seconds when the circuit breaker opens - default 30 seconds.
+   */
+  private int backoffInitial = 30;
+
+  /**
+   * Maximum backoff in seconds when the circuit breaker opens - default 10 minutes.
+   */
+  private int backoffMax = 600;
+
+  /**
+   * Maximum number of queued bulk payloads sent per report - default 100.
+   */
+  private int maxQueuedPerReport = 100;
+
+  /**
+   * Size in bytes at which queued metrics segment files are rolled - default 8MB.
+   */
+  private long queueSegmentSize = 8 * 1024 * 1024;
+
+  /**
+   * Maximum total size in bytes of the queued metrics - default 256MB.
+   */
+  private long queueMaxSize = 256 * 1024 * 1024;
+
+  /**
+   * Number of queued bulk payloads sent in parallel - default 2.
+   */
+  private int drainParallelism = 2;
+
+  /**
+   * Maximum bytes of queued metrics sent per report - default 0 (no limit).
+   */
+  private long drainMaxBytes;
+
+  /**
+   * Maximum time in seconds spent sending queued metrics per report - default 60 seconds.
+   */
+  private int drainMaxTime = 60;
+
+  /**
+   * Maximum bytes per bulk request - default 0 (no limit).
+   */
+  private long maxBulkBytes;
+
+  /**
+   * Maximum documents per bulk request - default 0 (no limit).
+   */
+  private int maxBulkDocuments;
+
+  /**
+   * Gzip compress the bulk requests and queued metrics - default false.
+   */
+  private boolean compression;
+
+  /**
+   * The gzip compression level - default 6.
+   */
+  private int compressionLevel = 6;
+
+  private BulkFormat bulkFormat = BulkFormat.JSON;
+
+  /**
+   * Maximum reports waiting to be sent per sink of a FanOutReporter - default 10.
+   */
+  private int sinkMaxPending = 10;
+
+  /**
+   * Register metrics of the reporter itself - default false.
+   */
+  private boolean reporterMetrics;
+
+  private String reporterMetricsPrefix = "metric.elastic";
+
+  /**
+   * Max bytes of direct buffers kept to stage the bulk content - default 0 (not used).
+   */
+  private long stagingPoolMaxBytes;
+
+  /**
+   * Suppress gauges that are unchanged and counters that are zero - default false.
+   */
+  private boolean suppressUnchanged;
+
+  /**
+   * Report suppressed metrics at least every this number of reports - default 10.
+   */
+  private int suppressHeartbeat = 10;
+
+  /**
+   * Write BucketTimedMetric as one document with a histogram - default false.
+   */
+  private boolean bucketHistogram;
+
+  /**
+   * Write BucketTimedMetric as one document with the buckets nested - default false.
+   */
+  private boolean bucketCompact;
+
+  /**
+   * Metric name prefix to the number of reports rolled up into one document.
+   */
+  private Map<String, Integer> rollups = new LinkedHashMap<>();
+
+  /**
+   * Metric name patterns to report (all when empty).
+   */
+  private List<String> includeNames = new ArrayList<>();
+
+  /**
+   * Metric name patterns not reported.
+   */
+  private List<String> excludeNames = new ArrayList<>();
+
+  /**
+   * Metric name prefixes not sampled or counted towards the max names.
+   */
+  private List<String> allowedNames = new ArrayList<>();
+
+  /**
+   * Maximum number of distinct metric names reported - default 0 (no limit).
+   */
+  private int maxNames;
+
+  /**
+   * Metric type to the fraction of metrics of that type reported.
+   */
+  private Map<String, Double> sampling = new LinkedHashMap<>();
+
+  private Map<String, String> tags = new LinkedHashMap<>();
+
+  private OkHttpClient client;
+
+  /**
+   * Return the base url for the ElasticSearch instance.
+   */
+  public String getUrl() {
+    return url;
+  }
+
+  /**
+   * Set the base url for the ElasticSearch instance.
+   */
+  public ElasticReporterConfig setUrl(String url) {
+    this.url = normalise(url);
+    this.urls = new ArrayList<>();
+    return this;
+  }
+
+  /**
+   * Return the base urls of the Elastic nodes.
+   */
+  public List<String> getUrls() {
+    return urls.isEmpty() ? Collections.singletonList(url) : urls;
+  }
+
+  /**
+   * Set the base urls of multiple Elastic nodes.
+   * <p>
+   * The bulk requests are spread across the nodes and when a node fails it is marked
+   * down with the requests sent to the other nodes. The first url is used to check
+   * and set the template.
+   * </p>
+   */
+  public ElasticReporterConfig setUrls(List<String> urls) {
+    List<String> list = new ArrayList<>(urls.size());
+    for (String nodeUrl : urls) {
+      list.add(normalise(nodeUrl));
+    }
+    this.urls = list;
+    if (!list.isEmpty()) {
+      this.url = list.get(0);
+    }
+    return this;
+  }
+
+  /**
+   * Return how the node is selected for each bulk request.
+   */
+  public NodeSelection getNodeSelection() {
+    return nodeSelection;
+  }
+
+  /**
+   * Set how the node is selected for each bulk request (defaults to ROUND_ROBIN).
+   */
+  public ElasticReporterConfig setNodeSelection(NodeSelection nodeSelection) {
+    this.nodeSelection = nodeSelection;
+    return this;
+  }
+
+  /**
+   * Return the number of consecutive failures before a node is marked down.
+   */
+  public int getNodeFailures() {
+    return nodeFailures;
+  }
+
+  /**
+   * Set the number of consecutive failures before a node is marked down.
+   */
+  public ElasticReporterConfig setNodeFailures(int nodeFailures) {
+    this.nodeFailures = nodeFailures;
+    return this;
+  }
+
+  /**
+   * Return the time in seconds before a node that is down is tried again.
+   */
+  public int getNodeRetryTime() {
+    return nodeRetryTime;
+  }
+
+  /**
+   * Set the time in seconds before a node that is down is tried again.
+   */
+  public ElasticReporterConfig setNodeRetryTime(int nodeRetryTime) {
+    this.nodeRetryTime = nodeRetryTime;
+    return this;
+  }
+
+  /**
+   * Return true if the nodes are discovered using _nodes/http.
+   */
+  public boolean isSniff() {
+    return sniff;
+  }
+
+  /**
+   * Set to true to discover the nodes using _nodes/http.
+   * <p>
+   * The nodes are discovered on the first report and then every sniffInterval
+   * replacing the configured urls. The discovered urls keep the scheme, user info
+   * and path of the url the nodes were discovered from.
+   * </p>
+   */
+  public ElasticReporterConfig setSniff(boolean sniff) {
+    this.sniff = sniff;
+    return this;
+  }
+
+  /**
+   * Return the interval in seconds between discovering the nodes.
+   */
+  public int getSniffInterval() {
+    return sniffInterval;
+  }
+
+  /**
+   * Set the interval in seconds between discovering the nodes.
+   */
+  public ElasticReporterConfig setSniffInterval(int sniffInterval) {
+    this.sniffInterval = sniffInterval;
+    return this;
+  }
+
+  /**
+   * Trim trailing slash if supplied.
+   */
+  String normalise(String url) {
+    if (url.endsWith("/")) {
+      url = url.substring(0, url.length() - 1);
+    }
+    return url;
+  }
+
+  /**
+   * Return the index type (defaults to "metric").
+   */
+  public String getIndexType() {
+    return indexType;
+  }
+
+  /**
+   * Set the index type.
+   * <p>
+   * Set this to null for Elastic 7 and later where the _type is deprecated (and rejected
+   * by Elastic 8).
+   * </p>
+   */
+  public ElasticReporterConfig setIndexType(String indexType) {
+    this.indexType = indexType;
+    return this;
+  }
+
+  /**
+   * Return the index name prefix (defaults to "metric-").
+   */
+  public String getIndexPrefix() {
+    return indexPrefix;
+  }
+
+  /**
+   * Set the index name prefix (defaults to "metric-").
+   */
+  public ElasticReporterConfig setIndexPrefix(String indexPrefix) {
+    this.indexPrefix = indexPrefix;
+    return this;
+  }
+
+  /**
+   * Return the period of each index.
+   */
+  public IndexPeriod getIndexPeriod() {
+    return indexPeriod;
+  }
+
+  /**
+   * Set the period of each index (defaults to DAILY).
+   * <p>
+   * The index name is the index prefix plus the period of the metrics collection time.
+   * </p>
+   */
+  public ElasticReporterConfig setIndexPeriod(IndexPeriod indexPeriod) {
+    this.indexPeriod = indexPeriod;
+    return this;
+  }
+
+  /**
+   * Return the DateTimeFormatter pattern of the index name suffix (null for the default).
+   */
+  public String getIndexPattern() {
+    return indexPattern;
+  }
+
+  /**
+   * Set the DateTimeFormatter pattern used to format the start of the index period as the
+   * index name suffix.
+   * <p>
+   * Defaults to "yyyy.MM.dd" for DAILY, "yyyy.MM.dd.HH" for HOURLY and the ISO week based
+   * year and week (for example "2017.w05") for WEEKLY.
+   * </p>
+   */
+  public ElasticReporterConfig setIndexPattern(String indexPattern) {
+    this.indexPattern = indexPattern;
+    return this;
+  }
+
+  /**
+   * Return the time zone of the index periods.
+   */
+  public ZoneId getIndexZone() {
+    return indexZone;
+  }
+
+  /**
+   * Set the time zone of the index periods (defaults to UTC).
+   * <p>
+   * Using UTC means reporters in different time zones write to the same index.
+   * </p>
+   */
+  public ElasticReporterConfig setIndexZone(ZoneId indexZone) {
+    this.indexZone = indexZone;
+    return this;
+  }
+
+  /**
+   * Add a name value pair to include in each metric entry.
+   */
+  public ElasticReporterConfig addTag(String key, String value) {
+    this.tags.put(key, value);
+    return this;
+  }
+
+  /**
+   * Return all the tags.
+   */
+  public Map<String, String> getTags() {
+    return tags;
+  }
+
+  public ElasticReporterConfig setTags(Map<String, String> tags) {
+    this.tags = tags;
+    return this;
+  }
+
+  /**
+   * Return the name of the timestamp field (defaults to "ts" or "@timestamp" with a data stream).
+   */
+  public String getTimestampField() {
+    if (timestampField != null) {
+      return timestampField;
+    }
+    return dataStream != null ? "@timestamp" : "ts";
+  }
+
+  /**
+   * Set the name of the timestamp field.
+   */
+  public ElasticReporterConfig setTimestampField(String timestampField) {
+    this.timestampField = timestampField;
+    return this;
+  }
+
+  /**
+   * Return the name of the metric type field (defaults to "type").
+   */
+  public String getTypeField() {
+    return typeField;
+  }
+
+  /**
+   * Set the name of the metric type field (defaults to "type").
+   */
+  public ElasticReporterConfig setTypeField(String typeField) {
+    this.typeField = typeField;
+    return this;
+  }
+
+  /**
+   * Return the name of the field that holds the metric name (defaults to "name").
+   */
+  public String getNameField() {
+    return nameField;
+  }
+
+  /**
+   * Set the name of the field that holds the metric name.
+   */
+  public ElasticReporterConfig setNameField(String nameField) {
+    this.nameField = nameField;
+    return this;
+  }
+
+  /**
+   * Return the name of the elastic template (defaults to "metric-1" or "metrics-avaje" with a data stream).
+   */
+  public String getTemplateName() {
+    if (templateNameSet) {
+      return templateName;
+    }
+    return dataStream != null ? "metrics-avaje" : "metric-1";
+  }
+
+  /**
+   * Set the name of the Elastic template.
+   * <p>
+   * Set this to null means the template will not be checked and set on startup.
+   * </p>
+   * <p>
+   * When changing this value you may want to add a template as a resource under
+   * the elastic-template path such that it is checked and set if it does not exist
+   * in ElasticSearch.
+   * </p>
+   * <p>
+   * The template is applied in the background (retrying with the backoff until it is in
+   * place) and is put when missing or when its "version" is lower than the version of
+   * the resource. A marker file in the directory records the template last applied so
+   * that it is not checked again while unchanged. Until the template is in place (for
+   * up to the template wait) the metrics are queued and then sent once it is applied.
+   * </p>
+   */
+  public void setTemplateName(String templateName) {
+    this.templateName = templateName;
+    this.templateNameSet = true;
+  }
+
+  /**
+   * Return the maximum time in seconds sending is held waiting for the template (0 for not held).
+   */
+  public int getTemplateWait() {
+    return templateWait;
+  }
+
+  /**
+   * Set the maximum time in seconds sending is held waiting for the template (0 for not held).
+   * <p>
+   * While the template is being applied the metrics are queued such that the indexes are
+   * not created with dynamically mapped fields. After this time (or when the template
+   * fails with an error that retrying will not fix) the metrics are sent regardless.
+   * </p>
+   */
+  public ElasticReporterConfig setTemplateWait(int templateWait) {
+    this.templateWait = templateWait;
+    return this;
+  }
+
+  /**
+   * Return the data stream the metrics are written to (null when writing to daily indexes).
+   */
+  public String getDataStream() {
+    return dataStream;
+  }
+
+  /**
+   * Set the data stream to write the metrics to rather than daily indexes.
+   * <p>
+   * The metrics are written using <code>create</code> bulk actions (append only) without
+   * a _type and the backing indexes are rolled over by the lifecycle policy rather than daily.
+   * Data streams require Elastic 7.9 or later and a <code>@timestamp</code> field so unless
+   * set the timestamp field defaults to <code>@timestamp</code>.
+   * </p>
+   * <p>
+   * Unless set the template name defaults to the composable index template "metrics-avaje"
+   * (with lifecycle policy) which matches data streams named <code>metrics-avaje-*</code>,
+   * for example "metrics-avaje-default".
+   * </p>
+   */
+  public ElasticReporterConfig setDataStream(String dataStream) {
+    this.dataStream = dataStream;
+    return this;
+  }
+
+  /**
+   * Return the connect timeout in seconds.
+   */
+  public int getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  /**
+   * Set the connect timeout in seconds.
+   */
+  public ElasticReporterConfig setConnectTimeout(int connectTimeout) {
+    this.connectTimeout = connectTimeout;
+    return this;
+  }
+
+  /**
+   * Return the read timeout in seconds.
+   */
+  public int getReadTimeout() {
+    return readTimeout;
+  }
+
+  /**
+   * Set the read timeout in seconds.
+   */
+  public ElasticReporterConfig setReadTimeout(int readTimeout) {
+    this.readTimeout = readTimeout;
+    return this;
+  }
+
+  /**
+   * Return the write timeout in seconds.
+   */
+  public int getWriteTimeout() {
+    return writeTimeout;
+  }
+
+  /**
+   * Set the write timeout in seconds.
+   */
+  public ElasticReporterConfig setWriteTimeout(int writeTimeout) {
+    this.writeTimeout = writeTimeout;
+    return this;
+  }
+
+  /**
+   * Return the maximum idle connections kept by the created client.
+   */
+  public int getMaxIdleConnections() {
+    return maxIdleConnections;
+  }
+
+  /**
+   * Set the maximum idle connections kept by the created client (defaults to 5).
+   */
+  public ElasticReporterConfig setMaxIdleConnections(int maxIdleConnections) {
+    this.maxIdleConnections = maxIdleConnections;
+    return this;
+  }
+
+  /**
+   * Return the time in seconds idle connections are kept alive.
+   */
+  public int getKeepAlive() {
+    return keepAlive;
+  }
+
+  /**
+   * Set the time in seconds idle connections are kept alive (defaults to 300).
+   * <p>
+   * Set this longer than the reporting interval such that each report reuses the
+   * connection of the previous one rather than connecting (and with https performing
+   * a TLS handshake) each time.
+   * </p>
+   */
+  public ElasticReporterConfig setKeepAlive(int keepAlive) {
+    this.keepAlive = keepAlive;
+    return this;
+  }
+
+  /**
+   * Return the maximum concurrent requests per host of the created client.
+   */
+  public int getMaxRequestsPerHost() {
+    return maxRequestsPerHost;
+  }
+
+  /**
+   * Set the maximum concurrent requests per host of the created client (defaults to 5).
+   * <p>
+   * This limits the asynchronous requests (bulk requests when sending asynchronously
+   * and node discovery) with further requests waiting in the client dispatcher.
+   * </p>
+   */
+  public ElasticReporterConfig setMaxRequestsPerHost(int maxRequestsPerHost) {
+    this.maxRequestsPerHost = maxRequestsPerHost;
+    return this;
+  }
+
+  /**
+   * Return the HTTP protocol used by the created client.
+   */
+  public HttpProtocol getHttpProtocol() {
+    return httpProtocol;
+  }
+
+  /**
+   * Set the HTTP protocol used by the created client (defaults to HTTP_2).
+   * <p>
+   * HTTP_2 is negotiated with https and otherwise HTTP/1.1 is used.
+   * </p>
+   */
+  public ElasticReporterConfig setHttpProtocol(HttpProtocol httpProtocol) {
+    this.httpProtocol = httpProtocol;
+    return this;
+  }
+
+  /**
+   * Return the number of TLS sessions cached for resumption (0 meaning the platform default).
+   */
+  public int getTlsSessionCacheSize() {
+    return tlsSessionCacheSize;
+  }
+
+  /**
+   * Set the number of TLS sessions cached for resumption by the created client.
+   * <p>
+   * When this or the TLS session timeout is set the client uses its own SSL context
+   * (with the default trust managers) with the session cache configured. A resumed
+   * session avoids the full handshake when a connection has to be re-established.
+   * </p>
+   */
+  public ElasticReporterConfig setTlsSessionCacheSize(int tlsSessionCacheSize) {
+    this.tlsSessionCacheSize = tlsSessionCacheSize;
+    return this;
+  }
+
+  /**
+   * Return the time in seconds TLS sessions are cached for resumption (0 meaning the platform default).
+   */
+  public int getTlsSessionTimeout() {
+    return tlsSessionTimeout;
+  }
+
+  /**
+   * Set the time in seconds TLS sessions are cached for resumption by the created client.
+   */
+  public ElasticReporterConfig setTlsSessionTimeout(int tlsSessionTimeout) {
+    this.tlsSessionTimeout = tlsSessionTimeout;
+    return this;
+  }
+
+  /**
+   * Return true if a connection is opened to each node at startup.
+   */
+  public boolean isWarmUp() {
+    return warmUp;
+  }
+
+  /**
+   * Set to true to open a connection to each node at startup (default false).
+   * <p>
+   * A HEAD request is sent asynchronously to each node such that the first report
+   * reuses a pooled connection rather than paying for the connect and TLS handshake.
+   * </p>
+   */
+  public ElasticReporterConfig setWarmUp(boolean warmUp) {
+    this.warmUp = warmUp;
+    return this;
+  }
+
+  /**
+   * Return true if bulk requests are sent asynchronously.
+   */
+  public boolean isSendAsync() {
+    return sendAsync;
+  }
+
+  /**
+   * Set to true to send the bulk requests asynchronously.
+   * <p>
+   * When true report() returns as soon as the metrics have been serialised and
+   * the bulk request is sent using the OkHttp dispatcher threads.
+   * </p>
+   */
+  public ElasticReporterConfig setSendAsync(boolean sendAsync) {
+    this.sendAsync = sendAsync;
+    return this;
+  }
+
+  /**
+   * Return the maximum number of bulk requests in flight when sending asynchronously.
+   */
+  public int getMaxInFlight() {
+    return maxInFlight;
+  }
+
+  /**
+   * Set the maximum number of bulk requests in flight when sending asynchronously.
+   * <p>
+   * When this limit is reached (Elastic is slow or not responding) the metrics are
+   * not sent but instead put into the directory to be sent later.
+   * </p>
+   */
+  public ElasticReporterConfig setMaxInFlight(int maxInFlight) {
+    this.maxInFlight = maxInFlight;
+    return this;
+  }
+
+  /**
+   * Return the number of consecutive failures before the circuit breaker opens.
+   */
+  public int getCircuitBreakerFailures() {
+    return circuitBreakerFailures;
+  }
+
+  /**
+   * Set the number of consecutive failures before the circuit breaker opens.
+   * <p>
+   * While the circuit breaker is open no attempt is made to send to Elastic and the
+   * metrics are queued to be sent later.
+   * </p>
+   */
+  public ElasticReporterConfig setCircuitBreakerFailures(int circuitBreakerFailures) {
+    this.circuitBreakerFailures = circuitBreakerFailures;
+    return this;
+  }
+
+  /**
+   * Return the initial backoff in seconds when the circuit breaker opens.
+   */
+  public int getBackoffInitial() {
+    return backoffInitial;
+  }
+
+  /**
+   * Set the initial backoff in seconds when the circuit breaker opens.
+   * <p>
+   * The backoff doubles (with jitter) each time the endpoint is tried and still fails.
+   * </p>
+   */
+  public ElasticReporterConfig setBackoffInitial(int backoffInitial) {
+    this.backoffInitial = backoffInitial;
+    return this;
+  }
+
+  /**
+   * Return the maximum backoff in seconds when the circuit breaker opens.
+   */
+  public int getBackoffMax() {
+    return backoffMax;
+  }
+
+  /**
+   * Set the maximum backoff in seconds when the circuit breaker opens.
+   */
+  public ElasticReporterConfig setBackoffMax(int backoffMax) {
+    this.backoffMax = backoffMax;
+    return this;
+  }
 
   /**
-   * Directory holding metrics that failed to be sent at report time.
+   * Return the maximum number of queued bulk payloads sent per report.
    */
-  private String directory = "queued-metrics";
+  public int getMaxQueuedPerReport() {
+    return maxQueuedPerReport;
+  }
 
   /**
-   * Connect timeout - default 10 seconds.
+   * Set the maximum number of queued bulk payloads sent per report (0 for no limit).
+   * <p>
+   * This limits the rate at which a backlog of queued metrics is sent such that
+   * a cluster that has just recovered is not overloaded.
+   * </p>
    */
-  private int connectTimeout = 10;
+  public ElasticReporterConfig setMaxQueuedPerReport(int maxQueuedPerReport) {
+    this.maxQueuedPerReport = maxQueuedPerReport;
+    return this;
+  }
 
   /**
-   * Read timeout - default 30 seconds.
+   * Return the size in bytes at which queued metrics segment files are rolled.
    */
-  private int readTimeout = 30;
+  public long getQueueSegmentSize() {
+    return queueSegmentSize;
+  }
 
   /**
-   * Write timeout - default 30 seconds.
+   * Set the size in bytes at which queued metrics segment files are rolled.
+   * <p>
+   * Metrics that fail to be sent are appended to segment files in the directory and
+   * a segment file is deleted once all the metrics in it have been sent.
+   * </p>
    */
-  private int writeTimeout = 30;
+  public ElasticReporterConfig setQueueSegmentSize(long queueSegmentSize) {
+    this.queueSegmentSize = queueSegmentSize;
+    return this;
+  }
 
-  private Map<String, String> tags = new LinkedHashMap<>();
+  /**
+   * Return the maximum total size in bytes of the queued metrics.
+   */
+  public long getQueueMaxSize() {
+    return queueMaxSize;
+  }
 
-  private OkHttpClient client;
+  /**
+   * Set the maximum total size in bytes of the queued metrics.
+   * <p>
+   * When exceeded the oldest segment files are deleted, dropping the oldest queued metrics.
+   * </p>
+   */
+  public ElasticReporterConfig setQueueMaxSize(long queueMaxSize) {
+    this.queueMaxSize = queueMaxSize;
+    return this;
+  }
 
   /**
-   * Return the base url for the ElasticSearch instance.
+   * Return the number of queued bulk payloads sent in parallel.
    */
-  public String getUrl() {
-    return url;
+  public int getDrainParallelism() {
+    return drainParallelism;
   }
 
   /**
-   * Set the base url for the ElasticSearch instance.
+   * Set the number of queued bulk payloads sent in parallel.
+   * <p>
+   * Queued metrics are sent in the background (oldest first) after metrics are
+   * successfully sent at report time.
+   * </p>
    */
-  public ElasticReporterConfig setUrl(String url) {
-    this.url = normalise(url);
+  public ElasticReporterConfig setDrainParallelism(int drainParallelism) {
+    this.drainParallelism = drainParallelism;
     return this;
   }
 
   /**
-   * Trim trailing slash if supplied.
+   * Return the maximum bytes of queued metrics sent per report (0 for no limit).
    */
-  String normalise(String url) {
-    if (url.endsWith("/")) {
-      url = url.substring(0, url.length() - 1);
-    }
-    return url;
+  public long getDrainMaxBytes() {
+    return drainMaxBytes;
   }
 
   /**
-   * Return the index type (defaults to "metric").
+   * Set the maximum bytes of queued metrics sent per report (0 for no limit).
    */
-  public String getIndexType() {
-    return indexType;
+  public ElasticReporterConfig setDrainMaxBytes(long drainMaxBytes) {
+    this.drainMaxBytes = drainMaxBytes;
+    return this;
   }
 
   /**
-   * Set the index type.
+   * Return the maximum time in seconds spent sending queued metrics per report (0 for no limit).
    */
-  public ElasticReporterConfig setIndexType(String indexType) {
-    this.indexType = indexType;
+  public int getDrainMaxTime() {
+    return drainMaxTime;
+  }
+
+  /**
+   * Set the maximum time in seconds spent sending queued metrics per report (0 for no limit).
+   * <p>
+   * The remaining queued metrics are sent after the next report.
+   * </p>
+   */
+  public ElasticReporterConfig setDrainMaxTime(int drainMaxTime) {
+    this.drainMaxTime = drainMaxTime;
     return this;
   }
 
   /**
-   * Return the index name prefix (defaults to "metric-").
+   * Return the maximum bytes (uncompressed) per bulk request (0 for no limit).
    */
-  public String getIndexPrefix() {
-    return indexPrefix;
+  public long getMaxBulkBytes() {
+    return maxBulkBytes;
   }
 
   /**
-   * Set the index name prefix (defaults to "metric-").
+   * Set the maximum bytes (uncompressed) per bulk request.
+   * <p>
+   * When set the metrics are split into multiple bulk requests each no larger than this
+   * (unless a single document is larger). Each bulk request is sent, and if it fails queued
+   * to be sent later, independently. With sendAsync the bulk requests are sent in parallel
+   * up to maxInFlight.
+   * </p>
    */
-  public ElasticReporterConfig setIndexPrefix(String indexPrefix) {
-    this.indexPrefix = indexPrefix;
+  public ElasticReporterConfig setMaxBulkBytes(long maxBulkBytes) {
+    this.maxBulkBytes = maxBulkBytes;
     return this;
   }
 
   /**
-   * Add a name value pair to include in each metric entry.
+   * Return the maximum documents per bulk request (0 for no limit).
    */
-  public ElasticReporterConfig addTag(String key, String value) {
-    this.tags.put(key, value);
+  public int getMaxBulkDocuments() {
+    return maxBulkDocuments;
+  }
+
+  /**
+   * Set the maximum documents per bulk request.
+   * <p>
+   * When set the metrics are split into multiple bulk requests each with at most this
+   * number of documents.
+   * </p>
+   */
+  public ElasticReporterConfig setMaxBulkDocuments(int maxBulkDocuments) {
+    this.maxBulkDocuments = maxBulkDocuments;
     return this;
   }
 
   /**
-   * Return all the tags.
+   * Return true if the bulk requests and queued metrics are gzip compressed.
    */
-  public Map<String, String> getTags() {
-    return tags;
+  public boolean isCompression() {
+    return compression;
   }
 
-  public ElasticReporterConfig setTags(Map<String, String> tags) {
-    this.tags = tags;
+  /**
+   * Set to true to gzip compress the bulk requests (Content-Encoding: gzip) and the
+   * metrics queued to be sent later.
+   * <p>
+   * The bulk JSON is very repetitive and typically compresses 10 to 20 times.
+   * </p>
+   */
+  public ElasticReporterConfig setCompression(boolean compression) {
+    this.compression = compression;
     return this;
   }
 
   /**
-   * Return the name of the timestamp field (defaults to "ts").
+   * Return the gzip compression level.
    */
-  public String getTimestampField() {
-    return timestampField;
+  public int getCompressionLevel() {
+    return compressionLevel;
   }
 
   /**
-   * Set the name of the timestamp field.
+   * Set the gzip compression level from 1 (fastest) to 9 (best compression) - default 6.
    */
-  public ElasticReporterConfig setTimestampField(String timestampField) {
-    this.timestampField = timestampField;
+  public ElasticReporterConfig setCompressionLevel(int compressionLevel) {
+    this.compressionLevel = compressionLevel;
     return this;
   }
 
   /**
-   * Return the name of the metric type field (defaults to "type").
+   * Return the format of the bulk requests.
    */
-  public String getTypeField() {
-    return typeField;
+  public BulkFormat getBulkFormat() {
+    return bulkFormat;
   }
 
   /**
-   * Set the name of the metric type field (defaults to "type").
+   * Set the format of the bulk requests (defaults to JSON).
+   * <p>
+   * SMILE writes numbers in binary and field names repeated within a document as one
+   * byte references which reduces the bytes sent and the parsing on the Elastic side.
+   * </p>
    */
-  public ElasticReporterConfig setTypeField(String typeField) {
-    this.typeField = typeField;
+  public ElasticReporterConfig setBulkFormat(BulkFormat bulkFormat) {
+    this.bulkFormat = bulkFormat;
     return this;
   }
 
   /**
-   * Return the name of the field that holds the metric name (defaults to "name").
+   * Return the maximum reports waiting to be sent per sink of a FanOutReporter.
    */
-  public String getNameField() {
-    return nameField;
+  public int getSinkMaxPending() {
+    return sinkMaxPending;
   }
 
   /**
-   * Set the name of the field that holds the metric name.
+   * Set the maximum reports waiting to be sent per sink of a FanOutReporter - default 10.
+   * <p>
+   * When a sink is slow and this is reached further reports are dropped for that sink
+   * rather than holding up the other sinks.
+   * </p>
    */
-  public ElasticReporterConfig setNameField(String nameField) {
-    this.nameField = nameField;
+  public ElasticReporterConfig setSinkMaxPending(int sinkMaxPending) {
+    this.sinkMaxPending = sinkMaxPending;
     return this;
   }
 
   /**
-   * Return the name of the elastic template (defaults to "metric-1").
+   * Return true if metrics of the reporter itself are registered.
    */
-  public String getTemplateName() {
-    return templateName;
+  public boolean isReporterMetrics() {
+    return reporterMetrics;
   }
 
   /**
-   * Set the name of the Elastic template.
+   * Set to true to register metrics of the reporter itself (default false).
    * <p>
-   * Set this to null means the template will not be checked and set on startup.
+   * The metrics are registered with avaje-metric and so are reported with the application
+   * metrics on the next cycle. They include the time and bytes to write the bulk content,
+   * the bulk request latency, failures by cause and the size, segment files and age of
+   * the oldest queued metrics such that a growing backlog can be alerted on.
    * </p>
    * <p>
-   * When changing this value you may want to add a template as a resource under
-   * the elastic-template path such that it is checked and set if it does not exist
-   * in ElasticSearch.
+   * With these enabled the bulk content is written to a buffer before it is sent (rather
+   * than streamed to the request) such that the write is measured once per report and
+   * without the time writing to the connection.
    * </p>
    */
-  public void setTemplateName(String templateName) {
-    this.templateName = templateName;
+  public ElasticReporterConfig setReporterMetrics(boolean reporterMetrics) {
+    this.reporterMetrics = reporterMetrics;
+    return this;
   }
 
   /**
-   * Return the connect timeout in seconds.
+   * Return the name prefix of the reporter metrics.
    */
-  public int getConnectTimeout() {
-    return connectTimeout;
+  public String getReporterMetricsPrefix() {
+    return reporterMetricsPrefix;
   }
 
   /**
-   * Set the connect timeout in seconds.
+   * Set the name prefix of the reporter metrics (defaults to "metric.elastic").
    */
-  public ElasticReporterConfig setConnectTimeout(int connectTimeout) {
-    this.connectTimeout = connectTimeout;
+  public ElasticReporterConfig setReporterMetricsPrefix(String reporterMetricsPrefix) {
+    this.reporterMetricsPrefix = reporterMetricsPrefix;
     return this;
   }
 
   /**
-   * Return the read timeout in seconds.
+   * Return the max bytes of direct buffers kept to stage the bulk content (0 meaning not used).
    */
-  public int getReadTimeout() {
-    return readTimeout;
+  public long getStagingPoolMaxBytes() {
+    return stagingPoolMaxBytes;
   }
 
   /**
-   * Set the read timeout in seconds.
+   * Set the max bytes of direct buffers kept to stage the bulk content - default 0 (not used).
+   * <p>
+   * When the metrics are sent asynchronously (and not split into multiple bulk requests)
+   * or by a FanOutReporter the bulk content is written before it is sent. With this set
+   * it is written to a direct (off heap) buffer taken from a pool and returned to the pool
+   * once sent, rather than to a byte array on the heap allocated each report. The total
+   * capacity of the direct buffers (pooled and in use) is bounded by the max bytes, when
+   * that is reached the content is buffered on the heap instead. The max bytes should
+   * allow for maxInFlight buffers of the size of the largest bulk content.
+   * </p>
    */
-  public ElasticReporterConfig setReadTimeout(int readTimeout) {
-    this.readTimeout = readTimeout;
+  public ElasticReporterConfig setStagingPoolMaxBytes(long stagingPoolMaxBytes) {
+    this.stagingPoolMaxBytes = stagingPoolMaxBytes;
     return this;
   }
 
   /**
-   * Return the write timeout in seconds.
+   * Return true if unchanged gauges and zero counters are suppressed.
    */
-  public int getWriteTimeout() {
-    return writeTimeout;
+  public boolean isSuppressUnchanged() {
+    return suppressUnchanged;
   }
 
   /**
-   * Set the write timeout in seconds.
+   * Set to true to suppress gauges whose value is unchanged since last reported and
+   * counter and value metrics with a zero count.
+   * <p>
+   * Suppressed metrics are still reported every suppressHeartbeat reports such that
+   * they continue to show in Elastic. This significantly reduces the documents indexed
+   * when most gauges are flat.
+   * </p>
    */
-  public ElasticReporterConfig setWriteTimeout(int writeTimeout) {
-    this.writeTimeout = writeTimeout;
+  public ElasticReporterConfig setSuppressUnchanged(boolean suppressUnchanged) {
+    this.suppressUnchanged = suppressUnchanged;
+    return this;
+  }
+
+  /**
+   * Return the number of reports after which a suppressed metric is reported anyway.
+   */
+  public int getSuppressHeartbeat() {
+    return suppressHeartbeat;
+  }
+
+  /**
+   * Set the number of reports after which a suppressed metric is reported anyway - default 10.
+   */
+  public ElasticReporterConfig setSuppressHeartbeat(int suppressHeartbeat) {
+    this.suppressHeartbeat = suppressHeartbeat;
+    return this;
+  }
+
+  /**
+   * Return true if BucketTimedMetric is written as one document with a histogram.
+   */
+  public boolean isBucketHistogram() {
+    return bucketHistogram;
+  }
+
+  /**
+   * Set to true to write each BucketTimedMetric as one document with a histogram and
+   * percentiles rather than a document per bucket.
+   * <p>
+   * The document has the statistics merged over all the buckets, a <code>hist</code>
+   * field with the mean duration and count of each bucket (the values and counts of the
+   * Elastic histogram field type) and a <code>pct</code> field with the 50th, 90th, 95th
+   * and 99th percentiles estimated from the buckets. The accuracy of the percentiles
+   * depends on the bucket ranges.
+   * Can not be combined with roll-ups (addRollup).
+   * </p>
+   */
+  public ElasticReporterConfig setBucketHistogram(boolean bucketHistogram) {
+    this.bucketHistogram = bucketHistogram;
+    return this;
+  }
+
+  /**
+   * Return true if BucketTimedMetric is written as one document with the buckets nested.
+   */
+  public boolean isBucketCompact() {
+    return bucketCompact;
+  }
+
+  /**
+   * Set to true to write each BucketTimedMetric as one document with the statistics of
+   * each bucket nested rather than a document per bucket.
+   * <p>
+   * The document has the statistics merged over all the buckets and a <code>buckets</code>
+   * field holding the statistics of each non-empty bucket keyed by bucket range, for
+   * example <code>"buckets":{"0-100":{"norm":{...}},"100-1000":{"norm":{...}}}</code>.
+   * This avoids repeating the bulk action, timestamp, tags and name for each bucket
+   * and indexes one document rather than one per bucket.
+   * Can not be combined with roll-ups (addRollup).
+   * </p>
+   */
+  public ElasticReporterConfig setBucketCompact(boolean bucketCompact) {
+    this.bucketCompact = bucketCompact;
+    return this;
+  }
+
+  /**
+   * Roll up the metrics whose name starts with the prefix over a number of reports.
+   * <p>
+   * Rather than a document per report one document is written every <code>reports</code>
+   * reports with the statistics merged (counts and sums added, the maximum max). For
+   * example, reporting every 10 seconds with <code>addRollup("", 6)</code> writes the
+   * metrics at 1 minute resolution. When a metric name matches multiple prefixes the
+   * longest prefix is used. Roll-ups can not be combined with bucketHistogram or
+   * bucketCompact (the reporter fails to build).
+   * </p>
+   *
+   * @param namePrefix the metric name prefix ("" for all metrics)
+   * @param reports    the number of reports rolled up into one document
+   */
+  public ElasticReporterConfig addRollup(String namePrefix, int reports) {
+    this.rollups.put(namePrefix, reports);
+    return this;
+  }
+
+  /**
+   * Return the roll-up rules of metric name prefix to number of reports.
+   */
+  public Map<String, Integer> getRollups() {
+    return rollups;
+  }
+
+  /**
+   * Set the roll-up rules of metric name prefix to number of reports.
+   */
+  public ElasticReporterConfig setRollups(Map<String, Integer> rollups) {
+    this.rollups = rollups;
+    return this;
+  }
+
+  /**
+   * Add a pattern of metric names to report (with '*' matching any characters).
+   * <p>
+   * When include patterns are defined only the metrics with a name matching one of
+   * them are reported.
+   * </p>
+   */
+  public ElasticReporterConfig addIncludeName(String pattern) {
+    this.includeNames.add(pattern);
+    return this;
+  }
+
+  /**
+   * Return the patterns of metric names to report.
+   */
+  public List<String> getIncludeNames() {
+    return includeNames;
+  }
+
+  /**
+   * Set the patterns of metric names to report.
+   */
+  public ElasticReporterConfig setIncludeNames(List<String> includeNames) {
+    this.includeNames = includeNames;
+    return this;
+  }
+
+  /**
+   * Add a pattern of metric names not to report (with '*' matching any characters).
+   * <p>
+   * The exclude patterns take precedence over the include patterns.
+   * </p>
+   */
+  public ElasticReporterConfig addExcludeName(String pattern) {
+    this.excludeNames.add(pattern);
+    return this;
+  }
+
+  /**
+   * Return the patterns of metric names not to report.
+   */
+  public List<String> getExcludeNames() {
+    return excludeNames;
+  }
+
+  /**
+   * Set the patterns of metric names not to report.
+   */
+  public ElasticReporterConfig setExcludeNames(List<String> excludeNames) {
+    this.excludeNames = excludeNames;
+    return this;
+  }
+
+  /**
+   * Add a metric name prefix that is always reported when included (not sampled or counted towards max names).
+   */
+  public ElasticReporterConfig addAllowedName(String namePrefix) {
+    this.allowedNames.add(namePrefix);
+    return this;
+  }
+
+  /**
+   * Return the metric name prefixes not sampled or counted towards the max names.
+   */
+  public List<String> getAllowedNames() {
+    return allowedNames;
+  }
+
+  /**
+   * Set the metric name prefixes not sampled or counted towards the max names.
+   */
+  public ElasticReporterConfig setAllowedNames(List<String> allowedNames) {
+    this.allowedNames = allowedNames;
+    return this;
+  }
+
+  /**
+   * Return the maximum number of distinct metric names reported (0 meaning no limit).
+   */
+  public int getMaxNames() {
+    return maxNames;
+  }
+
+  /**
+   * Set the maximum number of distinct metric names reported - default 0 (no limit).
+   * <p>
+   * This guards against a bug creating metrics with dynamic names (for example a timer
+   * per url) flooding Elastic with documents. The names reported are remembered such
+   * that the same metrics are reported each cycle and metrics with new names are dropped
+   * once the max is reached. Metrics matching an allowed name prefix do not count towards
+   * the max. The metrics dropped and the estimated number of distinct names are logged
+   * and included in the reporter metrics.
+   * </p>
+   */
+  public ElasticReporterConfig setMaxNames(int maxNames) {
+    this.maxNames = maxNames;
+    return this;
+  }
+
+  /**
+   * Add the fraction of metrics of a type to report.
+   * <p>
+   * The metrics are selected by a hash of the name so the same metrics are reported
+   * each cycle. For example, <code>addSampling("timed", 0.1)</code> reports about one
+   * in ten of the timed metrics.
+   * </p>
+   *
+   * @param type the metric type - timed, value, counter, gauge or gaugeLong
+   * @param rate the fraction reported from 0 to 1
+   */
+  public ElasticReporterConfig addSampling(String type, double rate) {
+    this.sampling.put(type, rate);
+    return this;
+  }
+
+  /**
+   * Return the metric type to fraction of metrics of that type reported.
+   */
+  public Map<String, Double> getSampling() {
+    return sampling;
+  }
+
+  /**
+   * Set the metric type to fraction of metrics of that type reported.
+   */
+  public ElasticReporterConfig setSampling(Map<String, Double> sampling) {
+    this.sampling = sampling;
     return this;
   }
 
@@ -253,6 +1534,10 @@ public class ElasticReporterConfig {
 
   /**
    * Set the client to use (If not set one will be created).
+   * <p>
+   * When set the timeouts, connection pool, dispatcher, protocol and TLS settings are
+   * not used as they configure the created client.
+   * </p>
    */
   public ElasticReporterConfig setClient(OkHttpClient client) {
     this.client = client;
@@ -0,0 +1,220 @@
+package org.avaje.metric.elastic;
+
+import okio.Buffer;
+import okio.ByteString;
+import org.avaje.metric.report.MetricReporter;
+import org.avaje.metric.report.ReportMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reporter that writes the metrics once and sends the same bulk content to multiple sinks.
+ * <p>
+ * The metrics are written with the configured format (JSON or SMILE) to an immutable
+ * ByteString that is shared by all the sinks. Each sink sends on its own thread such that
+ * adding a sink does not add to the cost of writing the metrics and a slow sink does not
+ * hold up the others. When a sink has sinkMaxPending reports waiting to be sent further
+ * reports are dropped for that sink.
+ * </p>
+ * <p>
+ * With a staging pool (stagingPoolMaxBytes) the content is written to a direct buffer
+ * taken from the pool and returned to it when all the sinks have sent it.
+ * </p>
+ * <pre>{@code
+ *
+ *   ElasticReporterConfig config = new ElasticReporterConfig().setUrl("http://localhost:9200");
+ *
+ *   MetricReporter reporter = new FanOutReporter(config,
+ *     new ElasticHttpReporter(config),
+ *     new NdjsonFileSink(new File("metrics/metrics.ndjson"), 10_000_000, 5));
+ *
+ * }</pre>
+ */
+public class FanOutReporter implements MetricReporter {
+
+  private static final Logger logger = LoggerFactory.getLogger(FanOutReporter.class);
+
+  private final ElasticReporterConfig config;
+
+  /**
+   * Writes the bulk content (reused by the reporting thread).
+   */
+  private final BulkJsonWriteVisitor bulkVisitor;
+
+  /**
+   * The index name suffix (used by the reporting thread).
+   */
+  private final IndexSuffix indexSuffix;
+
+  private final List<BulkSink> sinks;
+
+  /**
+   * A single thread executor per sink.
+   */
+  private final List<ThreadPoolExecutor> executors;
+
+  /**
+   * Metrics of this reporter (which do nothing unless enabled).
+   */
+  private final ReporterMetrics metrics;
+
+  /**
+   * Pool of direct buffers the bulk content is staged in (null when not used).
+   */
+  private final StagingPool staging;
+
+  public FanOutReporter(ElasticReporterConfig config, BulkSink... sinks) {
+    this(config, Arrays.asList(sinks));
+  }
+
+  public FanOutReporter(ElasticReporterConfig config, List<BulkSink> sinks) {
+    if (sinks.isEmpty()) {
+      throw new IllegalArgumentException("No sinks specified");
+    }
+    this.config = config;
+    this.indexSuffix = new IndexSuffix(config.getIndexPeriod(), config.getIndexPattern(), config.getIndexZone());
+    this.metrics = new ReporterMetrics(config);
+    this.bulkVisitor = new BulkJsonWriteVisitor(config, metrics);
+    this.staging = config.getStagingPoolMaxBytes() > 0 ? new StagingPool(config.getStagingPoolMaxBytes()) : null;
+    this.sinks = new ArrayList<>(sinks);
+    this.executors = new ArrayList<>(sinks.size());
+    int maxPending = Math.max(1, config.getSinkMaxPending());
+    for (int i = 0; i < sinks.size(); i++) {
+      String name = "metric-elastic-sink-" + (i + 1);
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(maxPending), runnable -> {
+          Thread thread = new Thread(runnable, name);
+          thread.setDaemon(true);
+          return thread;
+        });
+      executors.add(executor);
+    }
+  }
+
+  /**
+   * Write the metrics once and hand the bulk content to each sink.
+   */
+  @Override
+  public void report(ReportMetrics reportMetrics) {
+
+    if (reportMetrics.getMetrics().isEmpty()) {
+      return;
+    }
+    if (staging != null) {
+      reportStaged(reportMetrics);
+      return;
+    }
+    ByteString bulk;
+    try {
+      long start = metrics.start();
+      Buffer buffer = new Buffer();
+      bulkVisitor.write(buffer, reportMetrics, indexSuffix.suffix(reportMetrics.getCollectionTime()));
+      bulk = buffer.readByteString();
+      metrics.written(start, bulk.size());
+    } catch (IOException e) {
+      logger.error("Failed to write Bulk JSON for metrics", e);
+      return;
+    }
+    if (bulk.size() == 0) {
+      return;
+    }
+    for (int i = 0; i < sinks.size(); i++) {
+      BulkSink sink = sinks.get(i);
+      try {
+        executors.get(i).execute(() -> send(sink, bulk));
+      } catch (RejectedExecutionException e) {
+        logger.warn("Max pending reports reached for sink {}, metrics dropped", sink);
+      }
+    }
+  }
+
+  /**
+   * Write the metrics to a direct buffer from the staging pool released when all the sinks are done.
+   */
+  private void reportStaged(ReportMetrics reportMetrics) {
+    ByteBuffer bulk;
+    try {
+      BulkRequestBody body = new BulkRequestBody(bulkVisitor, reportMetrics, indexSuffix.suffix(reportMetrics.getCollectionTime()), metrics);
+      bulk = body.toStaged(staging);
+    } catch (IOException | RuntimeException e) {
+      logger.error("Failed to write Bulk JSON for metrics", e);
+      return;
+    }
+    if (!bulk.hasRemaining()) {
+      staging.release(bulk);
+      return;
+    }
+    AtomicInteger pending = new AtomicInteger(sinks.size());
+    Runnable done = () -> {
+      if (pending.decrementAndGet() == 0) {
+        staging.release(bulk);
+      }
+    };
+    for (int i = 0; i < sinks.size(); i++) {
+      BulkSink sink = sinks.get(i);
+      try {
+        executors.get(i).execute(() -> {
+          try {
+            send(sink, bulk);
+          } finally {
+            done.run();
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        logger.warn("Max pending reports reached for sink {}, metrics dropped", sink);
+        done.run();
+      }
+    }
+  }
+
+  private void send(BulkSink sink, ByteString bulk) {
+    try {
+      sink.send(bulk, bulkVisitor.contentType());
+    } catch (Exception e) {
+      logger.warn("Failed to send metrics to sink {}", sink, e);
+    }
+  }
+
+  private void send(BulkSink sink, ByteBuffer bulk) {
+    try {
+      sink.send(bulk, bulkVisitor.contentType());
+    } catch (Exception e) {
+      logger.warn("Failed to send metrics to sink {}", sink, e);
+    }
+  }
+
+  /**
+   * Wait for the pending reports to be sent and then cleanup each sink.
+   */
+  @Override
+  public void cleanup() {
+    for (int i = 0; i < sinks.size(); i++) {
+      BulkSink sink = sinks.get(i);
+      try {
+        // completes after the reports queued before it
+        Future<?> pending = executors.get(i).submit(() -> { });
+        pending.get(config.getReadTimeout(), TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (RejectedExecutionException | ExecutionException | TimeoutException e) {
+        logger.warn("Pending reports not sent to sink {} within the read timeout", sink);
+      }
+      sink.cleanup();
+    }
+  }
+}
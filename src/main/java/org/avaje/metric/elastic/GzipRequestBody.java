@@ -0,0 +1,55 @@
+package org.avaje.metric.elastic;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+import okio.Sink;
+
+import java.io.IOException;
+
+/**
+ * Request body that gzip compresses the content of another request body as it is written.
+ */
+class GzipRequestBody extends RequestBody {
+
+  private final RequestBody body;
+
+  private final int level;
+
+  GzipRequestBody(RequestBody body, int level) {
+    this.body = body;
+    this.level = level;
+  }
+
+  /**
+   * Return a sink that gzip compresses to the given sink using the compression level.
+   */
+  static Sink gzip(Sink sink, int level) {
+    GzipSink gzipSink = new GzipSink(sink);
+    gzipSink.deflater().setLevel(level);
+    return gzipSink;
+  }
+
+  @Override
+  public MediaType contentType() {
+    return body.contentType();
+  }
+
+  /**
+   * Return -1 as the compressed length is not known until it is written.
+   */
+  @Override
+  public long contentLength() {
+    return -1;
+  }
+
+  @Override
+  public void writeTo(BufferedSink sink) throws IOException {
+    BufferedSink gzipSink = Okio.buffer(gzip(sink, level));
+    body.writeTo(gzipSink);
+    // writes the gzip trailer
+    gzipSink.close();
+  }
+}
@@ -0,0 +1,94 @@
+package org.avaje.metric.elastic;
+
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.IsoFields;
+import java.time.temporal.TemporalAdjusters;
+
+/**
+ * The index name suffix for the period (day, hour or week) of the metrics collection time.
+ * <p>
+ * The suffix is only formatted when the period rolls over, otherwise the same String
+ * instance is returned such that the encoded bulk header is also reused.
+ * </p>
+ * <p>
+ * Not thread safe, expected to only be used by the reporting thread.
+ * </p>
+ */
+class IndexSuffix {
+
+  private final ElasticReporterConfig.IndexPeriod period;
+
+  private final DateTimeFormatter formatter;
+
+  private final ZoneId zone;
+
+  private long periodStart = Long.MAX_VALUE;
+
+  private long periodEnd = Long.MIN_VALUE;
+
+  private String suffix;
+
+  /**
+   * Create for the period and zone.
+   *
+   * @param pattern the DateTimeFormatter pattern or null for the default of the period
+   */
+  IndexSuffix(ElasticReporterConfig.IndexPeriod period, String pattern, ZoneId zone) {
+    this.period = period;
+    this.zone = zone;
+    this.formatter = (pattern == null) ? defaultFormatter(period) : DateTimeFormatter.ofPattern(pattern);
+  }
+
+  private static DateTimeFormatter defaultFormatter(ElasticReporterConfig.IndexPeriod period) {
+    switch (period) {
+      case HOURLY:
+        return DateTimeFormatter.ofPattern("yyyy.MM.dd.HH");
+      case WEEKLY:
+        // formatted from the ISO week based year and week, for example 2017.w01
+        return null;
+      default:
+        return DateTimeFormatter.ofPattern("yyyy.MM.dd");
+    }
+  }
+
+  /**
+   * Return the suffix for the period containing the time.
+   */
+  String suffix(long epochMillis) {
+    if (epochMillis < periodStart || epochMillis >= periodEnd) {
+      rollover(epochMillis);
+    }
+    return suffix;
+  }
+
+  private void rollover(long epochMillis) {
+    ZonedDateTime time = Instant.ofEpochMilli(epochMillis).atZone(zone);
+    ZonedDateTime start;
+    ZonedDateTime end;
+    switch (period) {
+      case HOURLY:
+        start = time.truncatedTo(ChronoUnit.HOURS);
+        end = start.plusHours(1);
+        break;
+      case WEEKLY:
+        start = time.toLocalDate().with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY)).atStartOfDay(zone);
+        end = start.plusWeeks(1);
+        break;
+      default:
+        start = time.toLocalDate().atStartOfDay(zone);
+        end = start.plusDays(1);
+    }
+    periodStart = start.toInstant().toEpochMilli();
+    periodEnd = end.toInstant().toEpochMilli();
+    if (formatter != null) {
+      suffix = formatter.format(start);
+    } else {
+      suffix = String.format("%d.w%02d", start.get(IsoFields.WEEK_BASED_YEAR), start.get(IsoFields.WEEK_OF_WEEK_BASED_YEAR));
+    }
+  }
+}
@@ -0,0 +1,213 @@
+package org.avaje.metric.elastic;
+
+import okhttp3.MediaType;
+import okio.ByteString;
+
+import java.io.IOException;
+
+/**
+ * Encodes the bulk documents as newline delimited JSON.
+ * <p>
+ * Keys are encoded with the quotes and colon and numbers are written as digits
+ * directly to the sink.
+ * </p>
+ */
+class JsonBulkEncoder extends BulkEncoder {
+
+  private static final long[] POWER_OF_TEN = {1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L};
+
+  private final int decimalPlaces;
+
+  private final long decimalFactor;
+
+  /**
+   * True when a comma is required before the next key or value.
+   */
+  private boolean comma;
+
+  private boolean markComma;
+
+  JsonBulkEncoder(int decimalPlaces) {
+    this.decimalPlaces = decimalPlaces;
+    this.decimalFactor = POWER_OF_TEN[decimalPlaces];
+  }
+
+  @Override
+  MediaType contentType() {
+    return BulkRequestBody.JSON;
+  }
+
+  @Override
+  Key newKey(String name) {
+    StringBuilder sb = new StringBuilder(name.length() + 3);
+    quote(sb, name);
+    sb.append(':');
+    return new Key(keyCount++, ByteString.encodeUtf8(sb.toString()));
+  }
+
+  @Override
+  ByteString string(String value) {
+    StringBuilder sb = new StringBuilder(value.length() + 2);
+    quote(sb, value);
+    return ByteString.encodeUtf8(sb.toString());
+  }
+
+  /**
+   * Append the value as a quoted and escaped JSON string.
+   */
+  private static void quote(StringBuilder sb, String value) {
+    sb.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char ch = value.charAt(i);
+      switch (ch) {
+        case '"':
+          sb.append("\\\"");
+          break;
+        case '\\':
+          sb.append("\\\\");
+          break;
+        case '\n':
+          sb.append("\\n");
+          break;
+        case '\r':
+          sb.append("\\r");
+          break;
+        case '\t':
+          sb.append("\\t");
+          break;
+        default:
+          if (ch < 0x20) {
+            sb.append(String.format("\\u%04x", (int) ch));
+          } else {
+            sb.append(ch);
+          }
+      }
+    }
+    sb.append('"');
+  }
+
+  @Override
+  void startDocument() {
+    comma = false;
+  }
+
+  @Override
+  void endDocument() throws IOException {
+    sink.writeByte('\n');
+  }
+
+  @Override
+  void startObject() throws IOException {
+    separator();
+    sink.writeByte('{');
+    comma = false;
+  }
+
+  @Override
+  void endObject() throws IOException {
+    sink.writeByte('}');
+    comma = true;
+  }
+
+  @Override
+  void startArray() throws IOException {
+    separator();
+    sink.writeByte('[');
+    comma = false;
+  }
+
+  @Override
+  void endArray() throws IOException {
+    sink.writeByte(']');
+    comma = true;
+  }
+
+  @Override
+  void key(Key key) throws IOException {
+    separator();
+    sink.write(key.bytes);
+  }
+
+  @Override
+  void key(String name) throws IOException {
+    separator();
+    sink.writeByte('"');
+    sink.writeUtf8(name);
+    sink.writeUtf8("\":");
+  }
+
+  @Override
+  void value(ByteString encoded) throws IOException {
+    separator();
+    sink.write(encoded);
+    comma = true;
+  }
+
+  @Override
+  void value(String value) throws IOException {
+    separator();
+    sink.writeByte('"');
+    sink.writeUtf8(value);
+    sink.writeByte('"');
+    comma = true;
+  }
+
+  @Override
+  void value(long value) throws IOException {
+    separator();
+    sink.writeDecimalLong(value);
+    comma = true;
+  }
+
+  /**
+   * Write the double value rounded to the decimal places as digits.
+   */
+  @Override
+  void decimal(double value) throws IOException {
+    separator();
+    comma = true;
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      // not representable in JSON
+      sink.writeUtf8("null");
+      return;
+    }
+    double abs = Math.abs(value);
+    if (abs >= Long.MAX_VALUE / decimalFactor) {
+      sink.writeDecimalLong(Math.round(value));
+      return;
+    }
+    long scaled = Math.round(abs * decimalFactor);
+    if (value < 0 && scaled != 0) {
+      sink.writeByte('-');
+    }
+    sink.writeDecimalLong(scaled / decimalFactor);
+    if (decimalPlaces > 0) {
+      sink.writeByte('.');
+      long fraction = scaled % decimalFactor;
+      for (int i = decimalPlaces - 1; i >= 0; i--) {
+        sink.writeByte('0' + (int) ((fraction / POWER_OF_TEN[i]) % 10));
+      }
+    }
+  }
+
+  /**
+   * Write the comma separating this key or value from the previous one.
+   */
+  private void separator() throws IOException {
+    if (comma) {
+      sink.writeByte(',');
+      comma = false;
+    }
+  }
+
+  @Override
+  void mark() {
+    markComma = comma;
+  }
+
+  @Override
+  void prefix(ByteString prefix) throws IOException {
+    sink.write(prefix);
+    comma = markComma;
+  }
+}
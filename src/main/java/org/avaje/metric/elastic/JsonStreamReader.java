@@ -0,0 +1,147 @@
+package org.avaje.metric.elastic;
+
+import okio.Buffer;
+import okio.BufferedSource;
+
+import java.io.IOException;
+
+/**
+ * Minimal streaming JSON reader (reading the values as they are needed rather than
+ * parsing into a tree) for the responses from Elastic.
+ */
+class JsonStreamReader {
+
+  final BufferedSource source;
+
+  JsonStreamReader(BufferedSource source) {
+    this.source = source;
+  }
+
+  void beginObject() throws IOException {
+    expect('{');
+  }
+
+  /**
+   * Return true if there is another element consuming the separating comma.
+   */
+  boolean hasNext(char end) throws IOException {
+    byte next = peek();
+    if (next == end) {
+      source.skip(1);
+      return false;
+    }
+    if (next == ',') {
+      source.skip(1);
+    }
+    return true;
+  }
+
+  byte peek() throws IOException {
+    while (true) {
+      source.require(1);
+      byte b = source.buffer().getByte(0);
+      if (b == ' ' || b == '\n' || b == '\r' || b == '\t') {
+        source.skip(1);
+      } else {
+        return b;
+      }
+    }
+  }
+
+  void expect(char expected) throws IOException {
+    byte b = peek();
+    if (b != expected) {
+      throw new IOException("Unexpected '" + (char) b + "' expecting '" + expected + "' in JSON");
+    }
+    source.skip(1);
+  }
+
+  boolean readBoolean() throws IOException {
+    return "true".equals(readScalar());
+  }
+
+  long readLong() throws IOException {
+    String value = readScalar();
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Read a string, number, boolean or null value.
+   */
+  String readScalar() throws IOException {
+    if (peek() == '"') {
+      return readString();
+    }
+    StringBuilder sb = new StringBuilder();
+    while (source.request(1)) {
+      byte b = source.buffer().getByte(0);
+      if (b == ',' || b == '}' || b == ']' || b == ' ' || b == '\n' || b == '\r' || b == '\t') {
+        break;
+      }
+      sb.append((char) b);
+      source.skip(1);
+    }
+    return sb.toString();
+  }
+
+  String readString() throws IOException {
+    expect('"');
+    Buffer value = new Buffer();
+    while (true) {
+      byte b = source.readByte();
+      if (b == '"') {
+        return value.readUtf8();
+      }
+      if (b != '\\') {
+        value.writeByte(b);
+      } else {
+        byte escaped = source.readByte();
+        switch (escaped) {
+          case 'n':
+            value.writeByte('\n');
+            break;
+          case 'r':
+            value.writeByte('\r');
+            break;
+          case 't':
+            value.writeByte('\t');
+            break;
+          case 'b':
+            value.writeByte('\b');
+            break;
+          case 'f':
+            value.writeByte('\f');
+            break;
+          case 'u':
+            value.writeUtf8CodePoint(Integer.parseInt(source.readUtf8(4), 16));
+            break;
+          default:
+            value.writeByte(escaped);
+        }
+      }
+    }
+  }
+
+  void skipValue() throws IOException {
+    byte next = peek();
+    if (next == '{') {
+      beginObject();
+      while (hasNext('}')) {
+        readString();
+        expect(':');
+        skipValue();
+      }
+    } else if (next == '[') {
+      expect('[');
+      while (hasNext(']')) {
+        skipValue();
+      }
+    } else {
+      readScalar();
+    }
+  }
+}
@@ -0,0 +1,175 @@
+package org.avaje.metric.elastic;
+
+/**
+ * The last value reported for each metric such that unchanged values can be suppressed.
+ * <p>
+ * Metrics are keyed by identity in an open addressing table holding primitive values
+ * (rather than a map of boxed values) such that checking each metric does not create
+ * garbage. A value is reported at least every heartbeat cycles even when unchanged.
+ * </p>
+ * <p>
+ * Metrics not seen for a number of cycles (removed or no longer reported) are expired
+ * such that the table does not grow without bound as metrics come and go.
+ * </p>
+ * <p>
+ * Not thread safe, expected to only be used by the reporting thread.
+ * </p>
+ */
+class LastValueCache {
+
+  /**
+   * Entries not seen for this many cycles (or twice the heartbeat when larger) are expired.
+   */
+  private static final int EXPIRE_CYCLES = 10;
+
+  private final int heartbeat;
+
+  private final int expireCycles;
+
+  private Object[] keys = new Object[64];
+
+  private long[] values = new long[64];
+
+  private int[] cycles = new int[64];
+
+  /**
+   * The cycle each entry was last seen (reported or suppressed).
+   */
+  private int[] seen = new int[64];
+
+  private int size;
+
+  private int cycle;
+
+  /**
+   * Create with the maximum number of cycles a value is suppressed for.
+   */
+  LastValueCache(int heartbeat) {
+    this.heartbeat = Math.max(1, heartbeat);
+    this.expireCycles = Math.max(EXPIRE_CYCLES, this.heartbeat * 2);
+  }
+
+  /**
+   * Start the next reporting cycle.
+   */
+  void nextCycle() {
+    cycle++;
+    if (cycle % expireCycles == 0) {
+      expire();
+    }
+  }
+
+  /**
+   * Return the number of metrics held.
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Return true if the value is unchanged since last reported and the heartbeat is not due.
+   * <p>
+   * When false is returned the value is recorded as reported.
+   * </p>
+   */
+  boolean unchanged(Object key, long value) {
+    int slot = slot(key);
+    if (keys[slot] == null) {
+      keys[slot] = key;
+      values[slot] = value;
+      cycles[slot] = cycle;
+      seen[slot] = cycle;
+      if (++size * 2 > keys.length) {
+        resize();
+      }
+      return false;
+    }
+    seen[slot] = cycle;
+    if (values[slot] == value && cycle - cycles[slot] < heartbeat) {
+      return true;
+    }
+    values[slot] = value;
+    cycles[slot] = cycle;
+    return false;
+  }
+
+  /**
+   * Return true if the count is zero and a zero count was last reported (and the heartbeat is not due).
+   */
+  boolean idle(Object key, long count) {
+    if (count != 0) {
+      int slot = slot(key);
+      if (keys[slot] != null) {
+        values[slot] = count;
+        cycles[slot] = cycle;
+        seen[slot] = cycle;
+        return false;
+      }
+    }
+    return unchanged(key, count);
+  }
+
+  private int slot(Object key) {
+    int mask = keys.length - 1;
+    int slot = mix(System.identityHashCode(key)) & mask;
+    while (keys[slot] != null && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private static int mix(int hash) {
+    int h = hash * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  private void resize() {
+    rehash(keys.length * 2, false);
+  }
+
+  /**
+   * Remove the entries not seen recently rehashing the remaining (open addressing
+   * does not allow entries to simply be cleared) and shrinking the table if sparse.
+   */
+  private void expire() {
+    int live = 0;
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != null && cycle - seen[i] < expireCycles) {
+        live++;
+      }
+    }
+    if (live == size) {
+      return;
+    }
+    int capacity = keys.length;
+    while (capacity > 64 && live * 8 < capacity) {
+      capacity /= 2;
+    }
+    rehash(capacity, true);
+  }
+
+  /**
+   * Rehash into a table of the given capacity (removing the entries not seen recently when expiring).
+   */
+  private void rehash(int capacity, boolean expiring) {
+    Object[] oldKeys = keys;
+    long[] oldValues = values;
+    int[] oldCycles = cycles;
+    int[] oldSeen = seen;
+    keys = new Object[capacity];
+    values = new long[capacity];
+    cycles = new int[capacity];
+    seen = new int[capacity];
+    size = 0;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != null && (!expiring || cycle - oldSeen[i] < expireCycles)) {
+        int slot = slot(oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        values[slot] = oldValues[i];
+        cycles[slot] = oldCycles[i];
+        seen[slot] = oldSeen[i];
+        size++;
+      }
+    }
+  }
+}
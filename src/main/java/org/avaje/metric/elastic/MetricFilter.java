@@ -0,0 +1,301 @@
+package org.avaje.metric.elastic;
+
+import org.avaje.metric.BucketTimedMetric;
+import org.avaje.metric.CounterMetric;
+import org.avaje.metric.GaugeDoubleMetric;
+import org.avaje.metric.GaugeLongMetric;
+import org.avaje.metric.Metric;
+import org.avaje.metric.TimedMetric;
+import org.avaje.metric.ValueMetric;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Filters the metrics before they are written guarding against a large number of metric names.
+ * <p>
+ * In order a metric is dropped when its name matches an exclude pattern or does not match
+ * any include pattern, when it is not in the sample of its type, or when the max number of
+ * names has been reached. Names matching an allowed prefix are not sampled and do not
+ * count towards the max names.
+ * </p>
+ * <p>
+ * The names admitted under the max names are remembered (and reported each cycle) until
+ * they are not seen for a number of cycles such that the same metrics are reported from
+ * cycle to cycle. Sampling is by a hash of the name so the same metrics are sampled each
+ * cycle. The number of distinct names offered each cycle is estimated using a HyperLogLog
+ * such that the cardinality is known even when most names are dropped.
+ * </p>
+ * <p>
+ * Not thread safe, expected to only be used by the reporting thread.
+ * </p>
+ */
+class MetricFilter {
+
+  static final int EXCLUDED = 0;
+  static final int SAMPLED = 1;
+  static final int OVER_MAX = 2;
+
+  /**
+   * Admitted names not seen for this many cycles are forgotten.
+   */
+  private static final int EXPIRE_CYCLES = 10;
+
+  private static final String[] TYPES = {"timed", "value", "counter", "gauge", "gaugeLong"};
+
+  private final Pattern[] includes;
+
+  private final Pattern[] excludes;
+
+  /**
+   * Allowed name prefixes sorted such that a binary search finds the candidates.
+   */
+  private final String[] allowed;
+
+  private final int maxNames;
+
+  /**
+   * Sample threshold per type (compared to the low 16 bits of the name hash).
+   */
+  private final int[] sampleThresholds = new int[TYPES.length];
+
+  /**
+   * Admitted names to the last cycle they were seen.
+   */
+  private final Map<String, int[]> admitted = new HashMap<>();
+
+  private final HyperLogLog names = new HyperLogLog();
+
+  private final int[] dropped = new int[3];
+
+  private int cycle;
+
+  MetricFilter(List<String> includes, List<String> excludes, List<String> allowed, int maxNames, Map<String, Double> sampling) {
+    this.includes = compile(includes);
+    this.excludes = compile(excludes);
+    this.allowed = allowed.toArray(new String[0]);
+    Arrays.sort(this.allowed);
+    this.maxNames = maxNames;
+    for (int i = 0; i < TYPES.length; i++) {
+      Double rate = sampling.get(TYPES[i]);
+      double value = (rate == null) ? 1d : Math.max(0d, Math.min(1d, rate));
+      sampleThresholds[i] = (int) Math.round(value * 0x10000);
+    }
+  }
+
+  /**
+   * Return true if any filtering is configured.
+   */
+  static boolean isConfigured(ElasticReporterConfig config) {
+    return !config.getIncludeNames().isEmpty() || !config.getExcludeNames().isEmpty()
+      || config.getMaxNames() > 0 || !config.getSampling().isEmpty();
+  }
+
+  /**
+   * Return the glob patterns ('*' matching any characters) compiled.
+   */
+  private static Pattern[] compile(List<String> globs) {
+    Pattern[] patterns = new Pattern[globs.size()];
+    for (int i = 0; i < patterns.length; i++) {
+      StringBuilder regex = new StringBuilder();
+      for (String part : globs.get(i).split("\\*", -1)) {
+        if (regex.length() > 0) {
+          regex.append(".*");
+        }
+        if (!part.isEmpty()) {
+          regex.append(Pattern.quote(part));
+        }
+      }
+      patterns[i] = Pattern.compile(regex.toString());
+    }
+    return patterns;
+  }
+
+  /**
+   * Start the next report cycle.
+   */
+  void nextCycle() {
+    cycle++;
+    Arrays.fill(dropped, 0);
+    names.clear();
+    if (cycle % EXPIRE_CYCLES == 0) {
+      Iterator<int[]> it = admitted.values().iterator();
+      while (it.hasNext()) {
+        if (cycle - it.next()[0] > EXPIRE_CYCLES) {
+          it.remove();
+        }
+      }
+    }
+  }
+
+  /**
+   * Return true if the metric should be written.
+   */
+  boolean accept(Metric metric) {
+    String name = metric.getName().getSimpleName();
+    long hash = hash(name);
+    names.add(hash);
+
+    if (!included(name)) {
+      dropped[EXCLUDED]++;
+      return false;
+    }
+    if (isAllowed(name)) {
+      return true;
+    }
+    int type = type(metric);
+    if (type >= 0 && (int) (hash & 0xFFFF) >= sampleThresholds[type]) {
+      dropped[SAMPLED]++;
+      return false;
+    }
+    if (maxNames <= 0) {
+      return true;
+    }
+    int[] lastSeen = admitted.get(name);
+    if (lastSeen == null) {
+      if (admitted.size() >= maxNames) {
+        dropped[OVER_MAX]++;
+        return false;
+      }
+      lastSeen = new int[1];
+      admitted.put(name, lastSeen);
+    }
+    lastSeen[0] = cycle;
+    return true;
+  }
+
+  private boolean included(String name) {
+    for (Pattern exclude : excludes) {
+      if (exclude.matcher(name).matches()) {
+        return false;
+      }
+    }
+    if (includes.length == 0) {
+      return true;
+    }
+    for (Pattern include : includes) {
+      if (include.matcher(name).matches()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Return true if the name starts with an allowed prefix.
+   */
+  boolean isAllowed(String name) {
+    if (allowed.length == 0) {
+      return false;
+    }
+    int pos = Arrays.binarySearch(allowed, name);
+    if (pos >= 0 || allowed[0].isEmpty()) {
+      return true;
+    }
+    // the prefixes of the name sort before it so check back from the insertion point
+    for (int i = -pos - 2; i >= 0; i--) {
+      String prefix = allowed[i];
+      if (name.startsWith(prefix)) {
+        return true;
+      }
+      if (name.isEmpty() || prefix.charAt(0) != name.charAt(0)) {
+        // no earlier prefix can match
+        return false;
+      }
+    }
+    return false;
+  }
+
+  private static int type(Metric metric) {
+    if (metric instanceof TimedMetric || metric instanceof BucketTimedMetric) {
+      return 0;
+    } else if (metric instanceof ValueMetric) {
+      return 1;
+    } else if (metric instanceof CounterMetric) {
+      return 2;
+    } else if (metric instanceof GaugeDoubleMetric) {
+      return 3;
+    } else if (metric instanceof GaugeLongMetric) {
+      return 4;
+    }
+    return -1;
+  }
+
+  /**
+   * Return the number of metrics dropped this cycle for the reason (EXCLUDED, SAMPLED or OVER_MAX).
+   */
+  int dropped(int reason) {
+    return dropped[reason];
+  }
+
+  /**
+   * Return the estimated number of distinct names offered this cycle.
+   */
+  long namesEstimate() {
+    return names.estimate();
+  }
+
+  /**
+   * 64 bit FNV-1a of the name with a final mix (for the HyperLogLog and sampling).
+   */
+  static long hash(String name) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < name.length(); i++) {
+      h ^= name.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /**
+   * HyperLogLog with 4096 registers (standard error around 1.6%).
+   */
+  static class HyperLogLog {
+
+    private static final int P = 12;
+
+    private static final int M = 1 << P;
+
+    private final byte[] registers = new byte[M];
+
+    void add(long hash) {
+      int index = (int) (hash >>> (64 - P));
+      // position of the first 1 bit of the remaining bits
+      int rank = Long.numberOfLeadingZeros((hash << P) | (1L << (P - 1))) + 1;
+      if (rank > registers[index]) {
+        registers[index] = (byte) rank;
+      }
+    }
+
+    void clear() {
+      Arrays.fill(registers, (byte) 0);
+    }
+
+    long estimate() {
+      double sum = 0;
+      int zeros = 0;
+      for (byte register : registers) {
+        sum += 1d / (1L << register);
+        if (register == 0) {
+          zeros++;
+        }
+      }
+      double alpha = 0.7213d / (1d + 1.079d / M);
+      double estimate = alpha * M * M / sum;
+      if (estimate <= 2.5d * M && zeros > 0) {
+        // linear counting for small cardinalities
+        estimate = M * Math.log((double) M / zeros);
+      }
+      return Math.round(estimate);
+    }
+  }
+}
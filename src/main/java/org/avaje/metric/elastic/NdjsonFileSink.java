@@ -0,0 +1,136 @@
+package org.avaje.metric.elastic;
+
+import okhttp3.MediaType;
+import okio.BufferedSink;
+import okio.ByteString;
+import okio.Okio;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Appends the bulk content to a local newline delimited JSON file rolled by size.
+ * <p>
+ * The file holds the bulk action and source lines as sent to Elastic so it can be
+ * loaded later using the bulk API. When the file would exceed the max file size it is
+ * renamed with the suffix .1 (existing rolled files moving up by one) keeping at most
+ * maxFiles rolled files.
+ * </p>
+ * <p>
+ * Only JSON content is written, SMILE content is skipped.
+ * </p>
+ */
+public class NdjsonFileSink implements BulkSink {
+
+  private static final Logger logger = LoggerFactory.getLogger(NdjsonFileSink.class);
+
+  private final File file;
+
+  private final long maxFileSize;
+
+  private final int maxFiles;
+
+  private boolean warnedSmile;
+
+  /**
+   * Create with the file, the size in bytes at which it is rolled and the number of rolled files kept.
+   */
+  public NdjsonFileSink(File file, long maxFileSize, int maxFiles) {
+    this.file = file;
+    this.maxFileSize = maxFileSize;
+    this.maxFiles = Math.max(0, maxFiles);
+    File dir = file.getAbsoluteFile().getParentFile();
+    if (!dir.exists() && !dir.mkdirs()) {
+      throw new IllegalStateException("Unable to access or create directory [" + dir + "]");
+    }
+  }
+
+  @Override
+  public synchronized void send(ByteString bulk, MediaType contentType) throws IOException {
+    if (skip(contentType)) {
+      return;
+    }
+    roll(bulk.size());
+    try (BufferedSink sink = Okio.buffer(Okio.appendingSink(file))) {
+      sink.write(bulk);
+    }
+  }
+
+  /**
+   * Append the staged content writing it directly from the buffer to the file.
+   */
+  @Override
+  public synchronized void send(ByteBuffer bulk, MediaType contentType) throws IOException {
+    if (skip(contentType)) {
+      return;
+    }
+    ByteBuffer content = bulk.duplicate();
+    roll(content.remaining());
+    try (FileChannel channel = new FileOutputStream(file, true).getChannel()) {
+      while (content.hasRemaining()) {
+        channel.write(content);
+      }
+    }
+  }
+
+  private boolean skip(MediaType contentType) {
+    if (BulkRequestBody.isSmile(contentType)) {
+      if (!warnedSmile) {
+        warnedSmile = true;
+        logger.warn("SMILE bulk content not written to {}", file);
+      }
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Roll the file if appending the given bytes would exceed the max file size.
+   */
+  private void roll(long byteCount) throws IOException {
+    long length = file.length();
+    if (length > 0 && length + byteCount > maxFileSize) {
+      roll();
+    }
+  }
+
+  /**
+   * Rename the file to .1 moving the existing rolled files up by one.
+   */
+  private void roll() throws IOException {
+    if (maxFiles == 0) {
+      delete(file);
+      return;
+    }
+    delete(rolled(maxFiles));
+    for (int i = maxFiles - 1; i >= 1; i--) {
+      File rolled = rolled(i);
+      if (rolled.exists() && !rolled.renameTo(rolled(i + 1))) {
+        throw new IOException("Unable to rename " + rolled);
+      }
+    }
+    if (!file.renameTo(rolled(1))) {
+      throw new IOException("Unable to rename " + file);
+    }
+  }
+
+  private File rolled(int index) {
+    return new File(file.getPath() + "." + index);
+  }
+
+  private static void delete(File file) throws IOException {
+    if (file.exists() && !file.delete()) {
+      throw new IOException("Unable to delete " + file);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return file.toString();
+  }
+}
@@ -0,0 +1,71 @@
+package org.avaje.metric.elastic;
+
+import okhttp3.MediaType;
+import okio.ByteString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes the bulk JSON to an output stream (typically stdout for debugging).
+ * <p>
+ * Only JSON content is written, SMILE content is skipped.
+ * </p>
+ */
+public class OutputStreamSink implements BulkSink {
+
+  private static final Logger logger = LoggerFactory.getLogger(OutputStreamSink.class);
+
+  private final OutputStream out;
+
+  private boolean warnedSmile;
+
+  /**
+   * Return a sink that writes to stdout.
+   */
+  public static OutputStreamSink stdout() {
+    return new OutputStreamSink(System.out);
+  }
+
+  public OutputStreamSink(OutputStream out) {
+    this.out = out;
+  }
+
+  @Override
+  public synchronized void send(ByteString bulk, MediaType contentType) throws IOException {
+    if (skip(contentType)) {
+      return;
+    }
+    bulk.write(out);
+    out.flush();
+  }
+
+  @Override
+  public synchronized void send(ByteBuffer bulk, MediaType contentType) throws IOException {
+    if (skip(contentType)) {
+      return;
+    }
+    ByteBuffer content = bulk.duplicate();
+    WritableByteChannel channel = Channels.newChannel(out);
+    while (content.hasRemaining()) {
+      channel.write(content);
+    }
+    out.flush();
+  }
+
+  private boolean skip(MediaType contentType) {
+    if (BulkRequestBody.isSmile(contentType)) {
+      if (!warnedSmile) {
+        warnedSmile = true;
+        logger.warn("SMILE bulk content not written to output stream");
+      }
+      return true;
+    }
+    return false;
+  }
+}
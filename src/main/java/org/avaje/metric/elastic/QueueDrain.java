@@ -0,0 +1,233 @@
+package org.avaje.metric.elastic;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Sends the queued metrics in the background such that a large backlog does not hold up reporting.
+ * <p>
+ * Each drain cycle sends the queued records oldest first, with up to parallelism records
+ * sent at the same time, until the queue is empty, a record fails to be sent or the
+ * budget for the cycle (records, bytes or time) is used up.
+ * </p>
+ * <p>
+ * Records are committed in order so when one of the records sent in parallel fails the
+ * later records are sent again in a later cycle (possibly duplicating those metrics).
+ * </p>
+ */
+class QueueDrain {
+
+  private static final Logger logger = LoggerFactory.getLogger(QueueDrain.class);
+
+  private final SegmentedQueue queue;
+
+  private final Predicate<SegmentedQueue.Record> sender;
+
+  private final int parallelism;
+
+  private final int maxRecords;
+
+  private final long maxBytes;
+
+  private final long maxNanos;
+
+  /**
+   * Runs the drain cycles.
+   */
+  private final ExecutorService drainExecutor;
+
+  /**
+   * Sends the records in parallel (null when parallelism is 1).
+   */
+  private final ExecutorService sendExecutor;
+
+  private final AtomicBoolean draining = new AtomicBoolean();
+
+  private final AtomicLong sentRecords = new AtomicLong();
+
+  private final AtomicLong sentBytes = new AtomicLong();
+
+  private volatile Future<?> cycle;
+
+  /**
+   * Create with the budget for each drain cycle.
+   *
+   * @param sender      sends the record returning true if it was sent
+   * @param parallelism the number of records to send at the same time
+   * @param maxRecords  maximum records per cycle (0 for no limit)
+   * @param maxBytes    maximum bytes per cycle (0 for no limit)
+   * @param maxMillis   maximum time in millis per cycle (0 for no limit)
+   */
+  QueueDrain(SegmentedQueue queue, Predicate<SegmentedQueue.Record> sender, int parallelism, int maxRecords, long maxBytes, long maxMillis) {
+    this.queue = queue;
+    this.sender = sender;
+    this.parallelism = Math.max(1, parallelism);
+    this.maxRecords = maxRecords > 0 ? maxRecords : Integer.MAX_VALUE;
+    this.maxBytes = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+    this.maxNanos = maxMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(maxMillis) : Long.MAX_VALUE;
+    this.drainExecutor = Executors.newSingleThreadExecutor(daemon("metric-elastic-drain"));
+    this.sendExecutor = this.parallelism > 1 ? Executors.newFixedThreadPool(this.parallelism, daemon("metric-elastic-drain-send")) : null;
+  }
+
+  private static ThreadFactory daemon(String name) {
+    AtomicInteger count = new AtomicInteger();
+    return runnable -> {
+      Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  /**
+   * Start a drain cycle unless one is already running.
+   */
+  void request() {
+    if (drainExecutor.isShutdown()) {
+      return;
+    }
+    if (draining.compareAndSet(false, true)) {
+      try {
+        cycle = drainExecutor.submit(this::drain);
+      } catch (RuntimeException e) {
+        draining.set(false);
+        logger.warn("Unable to start sending queued metrics", e);
+      }
+    }
+  }
+
+  /**
+   * Wait for the current drain cycle to complete.
+   */
+  void await(long timeout, TimeUnit unit) throws InterruptedException {
+    Future<?> current = cycle;
+    if (current != null) {
+      try {
+        current.get(timeout, unit);
+      } catch (ExecutionException e) {
+        logger.warn("Error sending queued metrics", e.getCause());
+      } catch (TimeoutException e) {
+        logger.warn("Timeout waiting for queued metrics to be sent");
+      }
+    }
+  }
+
+  /**
+   * Stop the drain threads once the current drain cycle completes (further requests are ignored).
+   */
+  void shutdown() {
+    if (sendExecutor != null) {
+      // after the current cycle which may still be sending
+      try {
+        drainExecutor.execute(sendExecutor::shutdown);
+      } catch (RuntimeException e) {
+        sendExecutor.shutdown();
+      }
+    }
+    drainExecutor.shutdown();
+  }
+
+  /**
+   * Return the total number of queued records sent.
+   */
+  long sentRecords() {
+    return sentRecords.get();
+  }
+
+  /**
+   * Return the total bytes of queued records sent.
+   */
+  long sentBytes() {
+    return sentBytes.get();
+  }
+
+  private void drain() {
+    long start = System.nanoTime();
+    int records = 0;
+    long bytes = 0;
+    try {
+      while (records < maxRecords && bytes < maxBytes && System.nanoTime() - start < maxNanos) {
+        List<SegmentedQueue.Record> batch = batch(maxRecords - records);
+        if (batch.isEmpty()) {
+          break;
+        }
+        int sent = send(batch);
+        for (int i = 0; i < sent; i++) {
+          SegmentedQueue.Record record = batch.get(i);
+          queue.commit(record);
+          records++;
+          bytes += record.length();
+        }
+        if (sent < batch.size()) {
+          // leave the remaining metrics to be sent later
+          logger.info("Failed to send queued metrics, {} bytes queued", queue.size());
+          break;
+        }
+      }
+    } catch (Exception e) {
+      logger.warn("Error sending queued metrics", e);
+    } finally {
+      draining.set(false);
+      sentRecords.addAndGet(records);
+      sentBytes.addAndGet(bytes);
+      if (records > 0) {
+        logger.info("Sent {} queued bulk payloads ({} bytes) in {} millis, {} bytes remain queued",
+          records, bytes, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), queue.size());
+      }
+    }
+  }
+
+  /**
+   * Return the next records to send (oldest first).
+   */
+  private List<SegmentedQueue.Record> batch(int remaining) throws Exception {
+    int size = Math.min(parallelism, remaining);
+    List<SegmentedQueue.Record> batch = new ArrayList<>(size);
+    SegmentedQueue.Record record = queue.next();
+    while (record != null) {
+      batch.add(record);
+      if (batch.size() == size) {
+        break;
+      }
+      record = queue.next(record);
+    }
+    return batch;
+  }
+
+  /**
+   * Send the records returning the number (from the first) that were sent.
+   */
+  private int send(List<SegmentedQueue.Record> batch) throws Exception {
+    if (sendExecutor == null || batch.size() == 1) {
+      return sender.test(batch.get(0)) ? 1 : 0;
+    }
+    List<Future<Boolean>> results = new ArrayList<>(batch.size());
+    for (SegmentedQueue.Record record : batch) {
+      results.add(sendExecutor.submit(() -> sender.test(record)));
+    }
+    int sent = 0;
+    boolean failed = false;
+    for (Future<Boolean> result : results) {
+      // wait for all the requests to complete
+      if (result.get() && !failed) {
+        sent++;
+      } else {
+        failed = true;
+      }
+    }
+    return sent;
+  }
+}
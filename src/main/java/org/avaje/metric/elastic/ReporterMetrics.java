@@ -0,0 +1,225 @@
+package org.avaje.metric.elastic;
+
+import org.avaje.metric.CounterMetric;
+import org.avaje.metric.MetricManager;
+import org.avaje.metric.TimedMetric;
+import org.avaje.metric.ValueMetric;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+/**
+ * Metrics of the reporter itself registered with avaje-metric such that they are
+ * reported along with the application metrics on the next cycle.
+ * <p>
+ * When disabled the methods do nothing and no metrics are registered.
+ * </p>
+ * <ul>
+ * <li>prefix.write - time to write the bulk content once per report, excluding the network (timed)</li>
+ * <li>prefix.bytes - bytes of bulk content per report (value)</li>
+ * <li>prefix.send - latency of the bulk requests, errors being failed requests (timed)</li>
+ * <li>prefix.failure.[cause] - failures by cause connect, timeout, unknownHost, status, rejected, circuitOpen and other (counters)</li>
+ * <li>prefix.drain.bytes - bytes of queued metrics sent (value)</li>
+ * <li>prefix.dropped.[reason] - metrics not reported by reason excluded, sampled and maxNames (counters)</li>
+ * <li>prefix.names - estimated distinct metric names per report when filtering (value)</li>
+ * <li>prefix.queue.bytes, prefix.queue.segments, prefix.queue.age - size, segment files and age in seconds of the oldest queued metrics (gauges)</li>
+ * </ul>
+ */
+class ReporterMetrics {
+
+  private static final Logger logger = LoggerFactory.getLogger(ReporterMetrics.class);
+
+  private final boolean enabled;
+
+  private final String prefix;
+
+  private final TimedMetric write;
+
+  private final ValueMetric bytes;
+
+  private final TimedMetric send;
+
+  private final CounterMetric failConnect;
+
+  private final CounterMetric failTimeout;
+
+  private final CounterMetric failUnknownHost;
+
+  private final CounterMetric failStatus;
+
+  private final CounterMetric failRejected;
+
+  private final CounterMetric failCircuitOpen;
+
+  private final CounterMetric failOther;
+
+  private final ValueMetric drainBytes;
+
+  private final CounterMetric droppedExcluded;
+
+  private final CounterMetric droppedSampled;
+
+  private final CounterMetric droppedMaxNames;
+
+  private final ValueMetric names;
+
+  ReporterMetrics(ElasticReporterConfig config) {
+    this.enabled = config.isReporterMetrics();
+    this.prefix = config.getReporterMetricsPrefix() + ".";
+    this.write = enabled ? MetricManager.getTimedMetric(prefix + "write") : null;
+    this.bytes = enabled ? MetricManager.getValueMetric(prefix + "bytes") : null;
+    this.send = enabled ? MetricManager.getTimedMetric(prefix + "send") : null;
+    this.failConnect = counter("failure.connect");
+    this.failTimeout = counter("failure.timeout");
+    this.failUnknownHost = counter("failure.unknownHost");
+    this.failStatus = counter("failure.status");
+    this.failRejected = counter("failure.rejected");
+    this.failCircuitOpen = counter("failure.circuitOpen");
+    this.failOther = counter("failure.other");
+    this.drainBytes = enabled ? MetricManager.getValueMetric(prefix + "drain.bytes") : null;
+    this.droppedExcluded = counter("dropped.excluded");
+    this.droppedSampled = counter("dropped.sampled");
+    this.droppedMaxNames = counter("dropped.maxNames");
+    this.names = enabled ? MetricManager.getValueMetric(prefix + "names") : null;
+  }
+
+  /**
+   * Return true if the metrics are enabled.
+   */
+  boolean isEnabled() {
+    return enabled;
+  }
+
+  private CounterMetric counter(String name) {
+    return enabled ? MetricManager.getCounterMetric(prefix + name) : null;
+  }
+
+  /**
+   * Register the gauges of the queued metrics.
+   */
+  void register(SegmentedQueue queue) {
+    if (!enabled) {
+      return;
+    }
+    MetricManager.register(MetricManager.name(prefix + "queue.bytes"), queue::size);
+    MetricManager.register(MetricManager.name(prefix + "queue.segments"), () -> (long) queue.segments());
+    MetricManager.register(MetricManager.name(prefix + "queue.age"), () -> age(queue));
+  }
+
+  /**
+   * Return the age in seconds of the oldest queued metrics.
+   */
+  private static long age(SegmentedQueue queue) {
+    try {
+      long oldest = queue.oldestTimestamp();
+      return oldest == 0 ? 0 : Math.max(0, (System.currentTimeMillis() - oldest) / 1000);
+    } catch (IOException e) {
+      logger.debug("Unable to read oldest queued metrics", e);
+      return 0;
+    }
+  }
+
+  /**
+   * Return the start time in nanos of an operation being measured.
+   */
+  long start() {
+    return enabled ? System.nanoTime() : 0;
+  }
+
+  /**
+   * The bulk content was written.
+   */
+  void written(long startNanos, long byteCount) {
+    if (enabled) {
+      write.addEventSince(true, startNanos);
+      if (byteCount >= 0) {
+        bytes.addEvent(byteCount);
+      }
+    }
+  }
+
+  /**
+   * A bulk request completed.
+   */
+  void sent(long startNanos, boolean success) {
+    if (enabled) {
+      send.addEventSince(success, startNanos);
+    }
+  }
+
+  /**
+   * A bulk request failed with the exception.
+   */
+  void failure(Exception e) {
+    if (!enabled) {
+      return;
+    }
+    if (e instanceof UnknownHostException) {
+      failUnknownHost.markEvent();
+    } else if (e instanceof ConnectException) {
+      failConnect.markEvent();
+    } else if (e instanceof SocketTimeoutException) {
+      failTimeout.markEvent();
+    } else {
+      failOther.markEvent();
+    }
+  }
+
+  /**
+   * A bulk request failed with an unsuccessful status.
+   */
+  void failureStatus() {
+    if (enabled) {
+      failStatus.markEvent();
+    }
+  }
+
+  /**
+   * Bulk items were rejected by Elastic.
+   */
+  void rejected(int items) {
+    if (enabled && items > 0) {
+      failRejected.markEvents(items);
+    }
+  }
+
+  /**
+   * The bulk request was not sent as the circuit breaker is open.
+   */
+  void circuitOpen() {
+    if (enabled) {
+      failCircuitOpen.markEvent();
+    }
+  }
+
+  /**
+   * Queued metrics were sent.
+   */
+  void drained(long byteCount) {
+    if (enabled) {
+      drainBytes.addEvent(byteCount);
+    }
+  }
+
+  /**
+   * Metrics were filtered with the number dropped by reason and the estimated distinct names.
+   */
+  void filtered(int excluded, int sampled, int overMax, long namesEstimate) {
+    if (enabled) {
+      if (excluded > 0) {
+        droppedExcluded.markEvents(excluded);
+      }
+      if (sampled > 0) {
+        droppedSampled.markEvents(sampled);
+      }
+      if (overMax > 0) {
+        droppedMaxNames.markEvents(overMax);
+      }
+      names.addEvent(namesEstimate);
+    }
+  }
+}
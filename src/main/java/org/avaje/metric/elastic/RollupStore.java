@@ -0,0 +1,321 @@
+package org.avaje.metric.elastic;
+
+import org.avaje.metric.Metric;
+import org.avaje.metric.ValueStatistics;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Accumulates the metric statistics over a number of report cycles such that one merged
+ * document is written per window rather than one per report.
+ * <p>
+ * The window (number of cycles) for each metric is the value of the longest rule whose
+ * name prefix matches the metric name, metrics not matching a rule have a window of 1
+ * and are written as normal. Count and sum are added, max is the maximum and the start
+ * time the earliest over the window. Gauges take the latest value.
+ * </p>
+ * <p>
+ * The statistics are held in primitive arrays keyed by metric identity such that
+ * accumulating does not create garbage. Only rolled up metrics are held and those not
+ * seen for a number of windows (with nothing pending) are expired. Not thread safe,
+ * expected to only be used by the reporting thread.
+ * </p>
+ */
+class RollupStore {
+
+  static final int TIMED = 0;
+  static final int VALUE = 1;
+  static final int COUNTER = 2;
+  static final int GAUGE_DOUBLE = 3;
+  static final int GAUGE_LONG = 4;
+
+  static final int NORM_COUNT = 0;
+  static final int NORM_SUM = 1;
+  static final int NORM_MAX = 2;
+  static final int NORM_START = 3;
+  static final int ERROR_COUNT = 4;
+  static final int ERROR_SUM = 5;
+  static final int ERROR_MAX = 6;
+  static final int ERROR_START = 7;
+
+  private static final int STRIDE = 8;
+
+  /**
+   * Slots not seen for this many cycles (or two windows when longer) are expired.
+   */
+  private static final int EXPIRE_CYCLES = 10;
+
+  /**
+   * Rule name prefixes, longest first.
+   */
+  private final String[] prefixes;
+
+  private final int[] prefixWindows;
+
+  private Metric[] keys = new Metric[64];
+
+  private int[] types = new int[64];
+
+  private int[] windows = new int[64];
+
+  /**
+   * True when there are accumulated statistics not yet written.
+   */
+  private boolean[] pending = new boolean[64];
+
+  /**
+   * The cycle each slot was last added to.
+   */
+  private int[] seen = new int[64];
+
+  private long[] data = new long[64 * STRIDE];
+
+  private int size;
+
+  private int cycle;
+
+  /**
+   * Create with the rules of metric name prefix to window (number of report cycles).
+   */
+  RollupStore(Map<String, Integer> rules) {
+    String[] sorted = rules.keySet().toArray(new String[0]);
+    Arrays.sort(sorted, (a, b) -> b.length() - a.length());
+    this.prefixes = sorted;
+    this.prefixWindows = new int[sorted.length];
+    for (int i = 0; i < sorted.length; i++) {
+      prefixWindows[i] = Math.max(1, rules.get(sorted[i]));
+    }
+  }
+
+  /**
+   * Start the next report cycle.
+   */
+  void nextCycle() {
+    cycle++;
+    if (cycle % EXPIRE_CYCLES == 0 && size > 0) {
+      expire();
+    }
+  }
+
+  /**
+   * Return the number of metrics held.
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Accumulate the timed statistics returning false if the metric is not rolled up.
+   */
+  boolean addTimed(Metric metric, ValueStatistics norm, ValueStatistics error) {
+    int slot = slot(metric, TIMED);
+    if (slot < 0) {
+      return false;
+    }
+    add(slot * STRIDE, norm);
+    add(slot * STRIDE + ERROR_COUNT, error);
+    pending[slot] = true;
+    return true;
+  }
+
+  /**
+   * Accumulate the value statistics returning false if the metric is not rolled up.
+   */
+  boolean addValue(Metric metric, ValueStatistics statistics) {
+    int slot = slot(metric, VALUE);
+    if (slot < 0) {
+      return false;
+    }
+    add(slot * STRIDE, statistics);
+    pending[slot] = true;
+    return true;
+  }
+
+  /**
+   * Accumulate the counter returning false if the metric is not rolled up.
+   */
+  boolean addCounter(Metric metric, long count, long startTime) {
+    int slot = slot(metric, COUNTER);
+    if (slot < 0) {
+      return false;
+    }
+    add(slot * STRIDE, count, count, count, startTime);
+    pending[slot] = true;
+    return true;
+  }
+
+  /**
+   * Set the latest gauge value (double as long bits) returning false if the metric is not rolled up.
+   */
+  boolean setGauge(Metric metric, int type, long value) {
+    int slot = slot(metric, type);
+    if (slot < 0) {
+      return false;
+    }
+    data[slot * STRIDE] = value;
+    pending[slot] = true;
+    return true;
+  }
+
+  private void add(int offset, ValueStatistics statistics) {
+    if (statistics != null && statistics.getCount() > 0) {
+      add(offset, statistics.getCount(), statistics.getTotal(), statistics.getMax(), statistics.getStartTime());
+    }
+  }
+
+  private void add(int offset, long count, long sum, long max, long startTime) {
+    if (data[offset] == 0) {
+      data[offset + NORM_MAX] = max;
+    } else {
+      data[offset + NORM_MAX] = Math.max(max, data[offset + NORM_MAX]);
+    }
+    // the first start time of the window (also when the count is still 0)
+    long start = data[offset + NORM_START];
+    data[offset + NORM_START] = (start == 0) ? startTime : Math.min(startTime, start);
+    data[offset] += count;
+    data[offset + NORM_SUM] += sum;
+  }
+
+  /**
+   * Return the slot for the metric or -1 if the metric is not rolled up.
+   */
+  private int slot(Metric metric, int type) {
+    int slot = find(metric);
+    if (keys[slot] == null) {
+      int window = window(metric.getName().getSimpleName());
+      if (window <= 1) {
+        return -1;
+      }
+      keys[slot] = metric;
+      types[slot] = type;
+      windows[slot] = window;
+      if (++size * 2 > keys.length) {
+        rehash(keys.length * 2, false);
+        slot = find(metric);
+      }
+    }
+    seen[slot] = cycle;
+    return slot;
+  }
+
+  private int window(String name) {
+    for (int i = 0; i < prefixes.length; i++) {
+      if (name.startsWith(prefixes[i])) {
+        return prefixWindows[i];
+      }
+    }
+    return 1;
+  }
+
+  private int find(Object key) {
+    int mask = keys.length - 1;
+    int h = System.identityHashCode(key) * 0x9E3779B9;
+    int slot = (h ^ (h >>> 16)) & mask;
+    while (keys[slot] != null && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  /**
+   * Return true if nothing is pending and the slot has not been seen for a while.
+   */
+  private boolean expired(boolean pending, int seen, int window) {
+    return !pending && cycle - seen >= Math.max(EXPIRE_CYCLES, window * 2);
+  }
+
+  /**
+   * Remove the expired slots rehashing the remaining and shrinking the table if sparse.
+   */
+  private void expire() {
+    int live = 0;
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != null && !expired(pending[i], seen[i], windows[i])) {
+        live++;
+      }
+    }
+    if (live == size) {
+      return;
+    }
+    int capacity = keys.length;
+    while (capacity > 64 && live * 8 < capacity) {
+      capacity /= 2;
+    }
+    rehash(capacity, true);
+  }
+
+  /**
+   * Rehash into a table of the given capacity (removing the expired slots when expiring).
+   */
+  private void rehash(int capacity, boolean expiring) {
+    Metric[] oldKeys = keys;
+    int[] oldTypes = types;
+    int[] oldWindows = windows;
+    boolean[] oldPending = pending;
+    int[] oldSeen = seen;
+    long[] oldData = data;
+    keys = new Metric[capacity];
+    types = new int[capacity];
+    windows = new int[capacity];
+    pending = new boolean[capacity];
+    seen = new int[capacity];
+    data = new long[capacity * STRIDE];
+    size = 0;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != null && !(expiring && expired(oldPending[i], oldSeen[i], oldWindows[i]))) {
+        int slot = find(oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        types[slot] = oldTypes[i];
+        windows[slot] = oldWindows[i];
+        pending[slot] = oldPending[i];
+        seen[slot] = oldSeen[i];
+        System.arraycopy(oldData, i * STRIDE, data, slot * STRIDE, STRIDE);
+        size++;
+      }
+    }
+  }
+
+  /**
+   * Return the number of slots (to iterate over).
+   */
+  int capacity() {
+    return keys.length;
+  }
+
+  /**
+   * Return true if the slot has accumulated statistics and its window ends this cycle.
+   */
+  boolean due(int slot) {
+    return pending[slot] && cycle % windows[slot] == 0;
+  }
+
+  /**
+   * Return the metric in the slot.
+   */
+  Metric metric(int slot) {
+    return keys[slot];
+  }
+
+  /**
+   * Return the type of metric in the slot.
+   */
+  int type(int slot) {
+    return types[slot];
+  }
+
+  /**
+   * Return the accumulated value of the field.
+   */
+  long get(int slot, int field) {
+    return data[slot * STRIDE + field];
+  }
+
+  /**
+   * Clear the accumulated statistics once written.
+   */
+  void reset(int slot) {
+    pending[slot] = false;
+    Arrays.fill(data, slot * STRIDE, (slot + 1) * STRIDE, 0L);
+  }
+}
@@ -0,0 +1,519 @@
+package org.avaje.metric.elastic;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.ForwardingSink;
+import okio.Okio;
+import okio.Sink;
+import okio.Source;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Append only queue of the bulk payloads that failed to be sent, stored in segment files.
+ * <p>
+ * Each payload is appended as a record (header and content) to the current segment file
+ * which is rolled when it reaches the segment size. The position of the next record to send
+ * is persisted in a checkpoint file. Segments are deleted once all their records have been
+ * sent and when the total size exceeds the maximum the oldest segments are deleted (dropping
+ * those metrics).
+ * </p>
+ * <p>
+ * Records are streamed to and from the segment files rather than loaded into memory.
+ * </p>
+ */
+class SegmentedQueue {
+
+  private static final Logger logger = LoggerFactory.getLogger(SegmentedQueue.class);
+
+  private static final String SEGMENT_PREFIX = "queue-";
+
+  private static final String SEGMENT_SUFFIX = ".seg";
+
+  private static final String CHECKPOINT = "queue.checkpoint";
+
+  /**
+   * Record header of content length, flags (gzip, smile) and time appended.
+   */
+  private static final int HEADER_SIZE = 16;
+
+  private static final int FLAG_GZIP = 1;
+
+  private static final int FLAG_SMILE = 2;
+
+  /**
+   * Content length of a record that has not been completely written.
+   */
+  private static final int INCOMPLETE = -1;
+
+  private final File directory;
+
+  private final long segmentSize;
+
+  private final long maxSize;
+
+  private final boolean compression;
+
+  private final int compressionLevel;
+
+  private final File checkpointFile;
+
+  /**
+   * Segment sequence numbers, oldest first.
+   */
+  private final ArrayDeque<Long> segments = new ArrayDeque<>();
+
+  private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+  private long totalSize;
+
+  private long writeSeq;
+
+  private FileChannel writeChannel;
+
+  private long readSeq;
+
+  private long readOffset;
+
+  /**
+   * Open the queue in the directory.
+   *
+   * @param segmentSize      the size at which segment files are rolled
+   * @param maxSize          the maximum total size of the segment files
+   * @param compression      true to gzip compress the content
+   * @param compressionLevel the gzip compression level
+   */
+  SegmentedQueue(File directory, long segmentSize, long maxSize, boolean compression, int compressionLevel) throws IOException {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.maxSize = maxSize;
+    this.compression = compression;
+    this.compressionLevel = compressionLevel;
+    this.checkpointFile = new File(directory, CHECKPOINT);
+    open();
+  }
+
+  private void open() throws IOException {
+    String[] names = directory.list((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+    if (names != null) {
+      Arrays.sort(names);
+      for (String name : names) {
+        long seq = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        segments.add(seq);
+        totalSize += segmentFile(seq).length();
+      }
+    }
+    if (segments.isEmpty()) {
+      segments.add(1L);
+    }
+    writeSeq = segments.peekLast();
+    writeChannel = openWrite(writeSeq);
+    recover();
+    readCheckpoint();
+  }
+
+  private FileChannel openWrite(long seq) throws IOException {
+    return FileChannel.open(segmentFile(seq).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+  }
+
+  /**
+   * Truncate an incomplete record at the end of the last segment (from a crash while appending).
+   */
+  private void recover() throws IOException {
+    long size = writeChannel.size();
+    long pos = 0;
+    while (pos + HEADER_SIZE <= size) {
+      int length = readHeader(writeChannel, pos);
+      if (length < 0 || pos + HEADER_SIZE + length > size) {
+        break;
+      }
+      pos += HEADER_SIZE + length;
+    }
+    if (pos < size) {
+      logger.warn("Truncating incomplete queued metrics in {} at {}", segmentFile(writeSeq), pos);
+      writeChannel.truncate(pos);
+      totalSize -= (size - pos);
+    }
+  }
+
+  private void readCheckpoint() throws IOException {
+    readSeq = segments.peekFirst();
+    readOffset = 0;
+    if (checkpointFile.exists()) {
+      String[] checkpoint = new String(Files.readAllBytes(checkpointFile.toPath()), StandardCharsets.UTF_8).trim().split(":");
+      try {
+        long seq = Long.parseLong(checkpoint[0]);
+        if (segments.contains(seq)) {
+          // segments before the checkpoint have been sent
+          while (segments.peekFirst() < seq) {
+            deleteSegment(segments.peekFirst());
+          }
+          readSeq = seq;
+          readOffset = Math.min(Long.parseLong(checkpoint[1]), segmentFile(seq).length());
+        }
+      } catch (RuntimeException e) {
+        logger.warn("Invalid queued metrics checkpoint {}", checkpointFile, e);
+      }
+    }
+  }
+
+  private void writeCheckpoint() throws IOException {
+    File tmp = new File(directory, CHECKPOINT + ".tmp");
+    Files.write(tmp.toPath(), (readSeq + ":" + readOffset).getBytes(StandardCharsets.UTF_8));
+    Files.move(tmp.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private File segmentFile(long seq) {
+    return new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, seq, SEGMENT_SUFFIX));
+  }
+
+  /**
+   * Append the bulk content to the queue (compressing it if configured).
+   */
+  void append(RequestBody body) throws IOException {
+    append(body, false);
+  }
+
+  /**
+   * Append the bulk content to the queue.
+   *
+   * @param gzipped true if the content is already gzip compressed
+   */
+  synchronized void append(RequestBody body, boolean gzipped) throws IOException {
+
+    if (writeChannel.size() >= segmentSize) {
+      roll();
+    }
+    long start = writeChannel.size();
+    boolean gzip = gzipped || compression;
+    int flags = (gzip ? FLAG_GZIP : 0) | (BulkRequestBody.isSmile(body.contentType()) ? FLAG_SMILE : 0);
+    writeHeader(start, INCOMPLETE, flags);
+    writeChannel.position(start + HEADER_SIZE);
+
+    try {
+      CountingSink fileSink = new CountingSink(channelSink(writeChannel));
+      Sink sink = (gzip && !gzipped) ? GzipRequestBody.gzip(fileSink, compressionLevel) : fileSink;
+      CountingSink content = new CountingSink(sink);
+      try (BufferedSink buffered = Okio.buffer(content)) {
+        body.writeTo(buffered);
+      }
+      if (content.count() == 0) {
+        writeChannel.truncate(start);
+        return;
+      }
+      long length = fileSink.count();
+      writeHeader(start, (int) length, flags);
+      writeChannel.force(false);
+      totalSize += HEADER_SIZE + length;
+
+    } catch (IOException | RuntimeException e) {
+      writeChannel.truncate(start);
+      throw e;
+    }
+    evict();
+  }
+
+  /**
+   * Return a sink writing to the channel that does not close the channel.
+   */
+  private static Sink channelSink(FileChannel channel) {
+    return new ForwardingSink(Okio.sink(Channels.newOutputStream(channel))) {
+      @Override
+      public void close() throws IOException {
+        flush();
+      }
+    };
+  }
+
+  private void writeHeader(long position, int length, int flags) throws IOException {
+    header.clear();
+    header.putInt(length).putInt(flags).putLong(System.currentTimeMillis()).flip();
+    while (header.hasRemaining()) {
+      writeChannel.write(header, position + header.position());
+    }
+  }
+
+  /**
+   * Read the header at the position returning the content length.
+   */
+  private int readHeader(FileChannel channel, long position) throws IOException {
+    header.clear();
+    while (header.hasRemaining()) {
+      if (channel.read(header, position + header.position()) < 0) {
+        return INCOMPLETE;
+      }
+    }
+    header.flip();
+    return header.getInt();
+  }
+
+  private void roll() throws IOException {
+    writeChannel.close();
+    writeSeq++;
+    segments.add(writeSeq);
+    writeChannel = openWrite(writeSeq);
+  }
+
+  /**
+   * Delete the oldest segments while the total size exceeds the maximum.
+   */
+  private void evict() throws IOException {
+    boolean evicted = false;
+    while (totalSize > maxSize && segments.size() > 1) {
+      long oldest = segments.peekFirst();
+      logger.warn("Queued metrics exceed max size {}, dropping oldest queued metrics {}", maxSize, segmentFile(oldest).getName());
+      deleteSegment(oldest);
+      if (readSeq == oldest) {
+        readSeq = segments.peekFirst();
+        readOffset = 0;
+        evicted = true;
+      }
+    }
+    if (evicted) {
+      writeCheckpoint();
+    }
+  }
+
+  private void deleteSegment(long seq) {
+    File file = segmentFile(seq);
+    long length = file.length();
+    if (!file.delete()) {
+      logger.error("Unable to delete queued metrics segment {}", file);
+    }
+    totalSize -= length;
+    segments.remove(seq);
+  }
+
+  /**
+   * Return the next record to send or null if there are none.
+   */
+  synchronized Record next() throws IOException {
+    while (true) {
+      Record record = read(readSeq, readOffset);
+      if (record != null || readSeq == writeSeq) {
+        return record;
+      }
+      // all records in the segment have been sent
+      deleteSegment(readSeq);
+      readSeq = segments.peekFirst();
+      readOffset = 0;
+      writeCheckpoint();
+    }
+  }
+
+  /**
+   * Return the record after the given record (not yet committed) or null if there are none.
+   * <p>
+   * This is used to read ahead and send a number of records in parallel.
+   * </p>
+   */
+  synchronized Record next(Record previous) throws IOException {
+    long seq = previous.seq;
+    long offset = previous.offset + HEADER_SIZE + previous.length;
+    while (segments.contains(seq)) {
+      Record record = read(seq, offset);
+      if (record != null || seq == writeSeq) {
+        return record;
+      }
+      seq = nextSegment(seq);
+      offset = 0;
+    }
+    // segment was dropped
+    return null;
+  }
+
+  private long nextSegment(long seq) {
+    for (long segment : segments) {
+      if (segment > seq) {
+        return segment;
+      }
+    }
+    return writeSeq;
+  }
+
+  /**
+   * Read the record at the offset in the segment returning null if there is no valid record.
+   */
+  private Record read(long seq, long offset) throws IOException {
+    File file = segmentFile(seq);
+    if (seq == writeSeq) {
+      return record(writeChannel, file, seq, offset);
+    }
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      return record(channel, file, seq, offset);
+    }
+  }
+
+  private Record record(FileChannel channel, File file, long seq, long offset) throws IOException {
+    long size = channel.size();
+    if (offset + HEADER_SIZE > size) {
+      return null;
+    }
+    int length = readHeader(channel, offset);
+    if (length < 0 || offset + HEADER_SIZE + length > size) {
+      logger.warn("Skipping invalid queued metrics in {} at {}", file, offset);
+      return null;
+    }
+    int flags = header.getInt();
+    long timestamp = header.getLong();
+    MediaType contentType = (flags & FLAG_SMILE) != 0 ? BulkRequestBody.SMILE : BulkRequestBody.JSON;
+    return new Record(seq, offset, file, length, (flags & FLAG_GZIP) != 0, contentType, timestamp);
+  }
+
+  /**
+   * The record has been sent so move past it.
+   * <p>
+   * Records must be committed in order (all the records before it have been sent).
+   * </p>
+   */
+  synchronized void commit(Record record) throws IOException {
+    if (!segments.contains(record.seq) || record.seq < readSeq || (record.seq == readSeq && record.offset < readOffset)) {
+      // segment was dropped while sending
+      return;
+    }
+    while (segments.peekFirst() < record.seq) {
+      // all records in the segment have been sent
+      deleteSegment(segments.peekFirst());
+    }
+    readSeq = record.seq;
+    readOffset = record.offset + HEADER_SIZE + record.length;
+    if (readSeq == writeSeq && readOffset == writeChannel.size()) {
+      // everything sent so reuse the segment
+      writeChannel.truncate(0);
+      totalSize -= readOffset;
+      readOffset = 0;
+    }
+    writeCheckpoint();
+  }
+
+  /**
+   * Return the total size in bytes of the queued metrics.
+   */
+  synchronized long size() {
+    return totalSize;
+  }
+
+  /**
+   * Return the number of segment files.
+   */
+  synchronized int segments() {
+    return segments.size();
+  }
+
+  /**
+   * Return the time the oldest record not yet sent was queued or 0 if there are none.
+   */
+  synchronized long oldestTimestamp() throws IOException {
+    long seq = readSeq;
+    long offset = readOffset;
+    while (segments.contains(seq)) {
+      Record record = read(seq, offset);
+      if (record != null) {
+        return record.timestamp;
+      }
+      if (seq == writeSeq) {
+        return 0;
+      }
+      seq = nextSegment(seq);
+      offset = 0;
+    }
+    return 0;
+  }
+
+  /**
+   * Close the queue.
+   */
+  synchronized void close() throws IOException {
+    writeChannel.close();
+  }
+
+  /**
+   * A queued bulk payload.
+   */
+  static class Record {
+
+    private final long seq;
+
+    private final long offset;
+
+    private final File file;
+
+    private final int length;
+
+    private final boolean gzipped;
+
+    private final MediaType contentType;
+
+    private final long timestamp;
+
+    Record(long seq, long offset, File file, int length, boolean gzipped, MediaType contentType, long timestamp) {
+      this.seq = seq;
+      this.offset = offset;
+      this.file = file;
+      this.length = length;
+      this.gzipped = gzipped;
+      this.contentType = contentType;
+      this.timestamp = timestamp;
+    }
+
+    /**
+     * Return true if the content is gzip compressed.
+     */
+    boolean isGzipped() {
+      return gzipped;
+    }
+
+    /**
+     * Return the time the record was queued.
+     */
+    long timestamp() {
+      return timestamp;
+    }
+
+    /**
+     * Return the content length in bytes.
+     */
+    int length() {
+      return length;
+    }
+
+    /**
+     * Return a request body that streams the content from the segment file.
+     */
+    RequestBody body() {
+      return new RequestBody() {
+        @Override
+        public MediaType contentType() {
+          return contentType;
+        }
+
+        @Override
+        public long contentLength() {
+          return length;
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+          try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+               Source source = Okio.source(Channels.newInputStream(channel))) {
+            channel.position(offset + HEADER_SIZE);
+            sink.write(source, length);
+          }
+        }
+      };
+    }
+  }
+}
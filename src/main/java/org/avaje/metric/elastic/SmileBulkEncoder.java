@@ -0,0 +1,303 @@
+package org.avaje.metric.elastic;
+
+import okhttp3.MediaType;
+import okio.Buffer;
+import okio.ByteString;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Encodes the bulk documents as SMILE (binary JSON) separated by the 0xFF stream separator.
+ * <p>
+ * Each action and source is a SMILE document with a header enabling shared names such
+ * that a field name repeated within the document (count, avg, max etc of norm and error)
+ * is written as a one byte back reference. Numbers are written as zigzag variable length
+ * integers rather than digits.
+ * </p>
+ */
+class SmileBulkEncoder extends BulkEncoder {
+
+  static final byte SEPARATOR = (byte) 0xFF;
+
+  private static final ByteString HEADER = ByteString.of((byte) ':', (byte) ')', (byte) '\n', (byte) 0x01);
+
+  private static final int START_ARRAY = 0xF8;
+  private static final int END_ARRAY = 0xF9;
+  private static final int START_OBJECT = 0xFA;
+  private static final int END_OBJECT = 0xFB;
+  private static final int END_STRING = 0xFC;
+  private static final int EMPTY_STRING = 0x20;
+  private static final int NULL = 0x21;
+  private static final int INT_32 = 0x24;
+  private static final int INT_64 = 0x25;
+  private static final int FLOAT_64 = 0x29;
+  private static final int SMALL_INT = 0xC0;
+
+  /**
+   * Shared names referenced by a single byte.
+   */
+  private static final int SHORT_SHARED = 64;
+
+  /**
+   * The parser resets the shared names when this many have been seen.
+   */
+  private static final int MAX_SHARED = 1024;
+
+  private final long decimalFactor;
+
+  /**
+   * Shared name index of each key in the current document (-1 when not yet written).
+   */
+  private int[] keyIndex = new int[16];
+
+  private int[] markKeyIndex = new int[16];
+
+  /**
+   * Number of names written in the current document.
+   */
+  private int names;
+
+  private int markNames;
+
+  SmileBulkEncoder(int decimalPlaces) {
+    long factor = 1;
+    for (int i = 0; i < decimalPlaces; i++) {
+      factor *= 10;
+    }
+    this.decimalFactor = factor;
+    Arrays.fill(keyIndex, -1);
+    Arrays.fill(markKeyIndex, -1);
+  }
+
+  @Override
+  MediaType contentType() {
+    return BulkRequestBody.SMILE;
+  }
+
+  @Override
+  Key newKey(String name) {
+    Buffer buffer = new Buffer();
+    int length = utf8Length(name);
+    if (length == 0) {
+      buffer.writeByte(EMPTY_STRING);
+    } else if (length == name.length() && length <= 64) {
+      buffer.writeByte(0x80 + length - 1).writeUtf8(name);
+    } else if (length != name.length() && length >= 2 && length <= 57) {
+      buffer.writeByte(0xC0 + length - 2).writeUtf8(name);
+    } else {
+      buffer.writeByte(0x34).writeUtf8(name).writeByte(END_STRING);
+    }
+    Key key = new Key(keyCount++, buffer.readByteString());
+    if (keyCount > keyIndex.length) {
+      int capacity = keyIndex.length;
+      keyIndex = Arrays.copyOf(keyIndex, capacity * 2);
+      markKeyIndex = Arrays.copyOf(markKeyIndex, capacity * 2);
+      Arrays.fill(keyIndex, capacity, capacity * 2, -1);
+      Arrays.fill(markKeyIndex, capacity, capacity * 2, -1);
+    }
+    return key;
+  }
+
+  @Override
+  ByteString string(String value) {
+    try {
+      return encode(encoder -> encoder.value(value));
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  void startDocument() throws IOException {
+    sink.write(HEADER);
+    names = 0;
+    Arrays.fill(keyIndex, -1);
+  }
+
+  @Override
+  void endDocument() throws IOException {
+    sink.writeByte(SEPARATOR);
+  }
+
+  @Override
+  void startObject() throws IOException {
+    sink.writeByte(START_OBJECT);
+  }
+
+  @Override
+  void endObject() throws IOException {
+    sink.writeByte(END_OBJECT);
+  }
+
+  @Override
+  void startArray() throws IOException {
+    sink.writeByte(START_ARRAY);
+  }
+
+  @Override
+  void endArray() throws IOException {
+    sink.writeByte(END_ARRAY);
+  }
+
+  @Override
+  void key(Key key) throws IOException {
+    int index = keyIndex[key.id];
+    if (index >= 0) {
+      // back reference to the name already written in this document
+      sink.writeByte(0x40 + index);
+      return;
+    }
+    sink.write(key.bytes);
+    if (key.bytes.size() > 1) {
+      if (names < SHORT_SHARED) {
+        keyIndex[key.id] = names;
+      }
+      seenName();
+    }
+  }
+
+  @Override
+  void key(String name) throws IOException {
+    int length = utf8Length(name);
+    if (length == 0) {
+      sink.writeByte(EMPTY_STRING);
+      return;
+    }
+    if (length == name.length() && length <= 64) {
+      sink.writeByte(0x80 + length - 1);
+      sink.writeUtf8(name);
+    } else if (length != name.length() && length >= 2 && length <= 57) {
+      sink.writeByte(0xC0 + length - 2);
+      sink.writeUtf8(name);
+    } else {
+      sink.writeByte(0x34);
+      sink.writeUtf8(name);
+      sink.writeByte(END_STRING);
+    }
+    seenName();
+  }
+
+  /**
+   * A name was written in full so added to the shared names by the parser.
+   */
+  private void seenName() {
+    if (++names == MAX_SHARED) {
+      names = 0;
+      Arrays.fill(keyIndex, -1);
+    }
+  }
+
+  @Override
+  void value(ByteString encoded) throws IOException {
+    sink.write(encoded);
+  }
+
+  @Override
+  void value(String value) throws IOException {
+    int length = utf8Length(value);
+    if (length == 0) {
+      sink.writeByte(EMPTY_STRING);
+      return;
+    }
+    boolean ascii = length == value.length();
+    if (ascii && length <= 32) {
+      sink.writeByte(0x40 + length - 1);
+    } else if (ascii && length <= 64) {
+      sink.writeByte(0x60 + length - 33);
+    } else if (!ascii && length <= 33) {
+      sink.writeByte(0x80 + length - 2);
+    } else if (!ascii && length <= 65) {
+      sink.writeByte(0xA0 + length - 34);
+    } else {
+      sink.writeByte(ascii ? 0xE0 : 0xE4);
+      sink.writeUtf8(value);
+      sink.writeByte(END_STRING);
+      return;
+    }
+    sink.writeUtf8(value);
+  }
+
+  @Override
+  void value(long value) throws IOException {
+    if (value == (int) value) {
+      int zigzag = ((int) value << 1) ^ ((int) value >> 31);
+      if (zigzag >= 0 && zigzag < 32) {
+        sink.writeByte(SMALL_INT + zigzag);
+      } else {
+        sink.writeByte(INT_32);
+        writeVInt(zigzag & 0xFFFFFFFFL);
+      }
+    } else {
+      sink.writeByte(INT_64);
+      writeVInt((value << 1) ^ (value >> 63));
+    }
+  }
+
+  /**
+   * Write the unsigned value big endian in 7 bit groups with the last byte holding 6 bits
+   * and the high bit set.
+   */
+  private void writeVInt(long value) throws IOException {
+    long rest = value >>> 6;
+    int groups = 0;
+    for (long r = rest; r != 0; r >>>= 7) {
+      groups++;
+    }
+    for (int i = groups - 1; i >= 0; i--) {
+      sink.writeByte((int) (rest >>> (7 * i)) & 0x7F);
+    }
+    sink.writeByte(0x80 | (int) (value & 0x3F));
+  }
+
+  @Override
+  void decimal(double value) throws IOException {
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      sink.writeByte(NULL);
+      return;
+    }
+    if (Math.abs(value) < Long.MAX_VALUE / decimalFactor) {
+      value = Math.round(value * decimalFactor) / (double) decimalFactor;
+    }
+    // the 64 bits in 10 bytes of 7 bits
+    long bits = Double.doubleToRawLongBits(value);
+    sink.writeByte(FLOAT_64);
+    for (int i = 9; i >= 0; i--) {
+      sink.writeByte((int) (bits >>> (7 * i)) & 0x7F);
+    }
+  }
+
+  @Override
+  void mark() {
+    markNames = names;
+    System.arraycopy(keyIndex, 0, markKeyIndex, 0, keyIndex.length);
+  }
+
+  @Override
+  void prefix(ByteString prefix) throws IOException {
+    sink.write(prefix);
+    names = markNames;
+    System.arraycopy(markKeyIndex, 0, keyIndex, 0, keyIndex.length);
+  }
+
+  /**
+   * Return the number of bytes of the string encoded as UTF-8.
+   */
+  static int utf8Length(String value) {
+    int length = 0;
+    for (int i = 0; i < value.length(); i++) {
+      char ch = value.charAt(i);
+      if (ch < 0x80) {
+        length++;
+      } else if (ch < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(ch) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+        length += 4;
+        i++;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+}
@@ -0,0 +1,133 @@
+package org.avaje.metric.elastic;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of direct (off heap) buffers the bulk content is staged in before it is sent.
+ * <p>
+ * The buffers are size classed by powers of two starting at 64KB. The total capacity of
+ * the direct buffers allocated (pooled and in use) is bounded by the max bytes such that
+ * released buffers are always kept for reuse rather than left to be freed by the garbage
+ * collector. When a buffer of the size needed can not be allocated within the bound (after
+ * discarding pooled buffers of other sizes) none is returned and the caller falls back
+ * to buffering on the heap. In the steady state the bulk content of each report is written
+ * into a buffer taken from the pool such that reporting does not allocate (potentially
+ * humongous) byte arrays on the heap.
+ * </p>
+ */
+class StagingPool {
+
+  private static final int MIN_SHIFT = 16;
+
+  private static final int MIN_SIZE = 1 << MIN_SHIFT;
+
+  private static final int MAX_SIZE = 1 << 30;
+
+  /**
+   * Scratch array per thread the content is copied to and from the direct buffers via
+   * (okio 1.13 has no ByteBuffer methods) such that copying does not allocate.
+   */
+  private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[8192]);
+
+  private final long maxBytes;
+
+  /**
+   * The free buffers by size class.
+   */
+  private final ArrayDeque<ByteBuffer>[] free;
+
+  /**
+   * The total capacity of the free buffers.
+   */
+  private long pooledBytes;
+
+  /**
+   * The total capacity of the buffers allocated (free and in use).
+   */
+  private long allocatedBytes;
+
+  @SuppressWarnings("unchecked")
+  StagingPool(long maxBytes) {
+    this.maxBytes = maxBytes;
+    this.free = new ArrayDeque[31 - MIN_SHIFT];
+    for (int i = 0; i < free.length; i++) {
+      free[i] = new ArrayDeque<>();
+    }
+  }
+
+  /**
+   * Return the scratch array of the current thread to copy via.
+   */
+  static byte[] scratch() {
+    return SCRATCH.get();
+  }
+
+  /**
+   * Return the size class of the given capacity.
+   */
+  static int sizeClass(long capacity) {
+    if (capacity <= MIN_SIZE) {
+      return 0;
+    }
+    if (capacity > MAX_SIZE) {
+      throw new IllegalArgumentException("Staging buffer capacity " + capacity + " too large");
+    }
+    return 64 - Long.numberOfLeadingZeros(capacity - 1) - MIN_SHIFT;
+  }
+
+  /**
+   * Return a cleared buffer with at least the given capacity or null if that would exceed the max bytes.
+   */
+  ByteBuffer acquire(long capacity) {
+    if (capacity > MAX_SIZE) {
+      return null;
+    }
+    int sizeClass = sizeClass(capacity);
+    int size = MIN_SIZE << sizeClass;
+    synchronized (this) {
+      ByteBuffer buffer = free[sizeClass].pollFirst();
+      if (buffer != null) {
+        pooledBytes -= buffer.capacity();
+        buffer.clear();
+        return buffer;
+      }
+      // make room discarding free buffers of other sizes, largest first
+      for (int i = free.length - 1; i >= 0 && allocatedBytes + size > maxBytes; i--) {
+        while (allocatedBytes + size > maxBytes && (buffer = free[i].pollFirst()) != null) {
+          pooledBytes -= buffer.capacity();
+          allocatedBytes -= buffer.capacity();
+        }
+      }
+      if (allocatedBytes + size > maxBytes) {
+        return null;
+      }
+      allocatedBytes += size;
+    }
+    return ByteBuffer.allocateDirect(size);
+  }
+
+  /**
+   * Return the buffer to the pool (heap buffers used as the fall back are ignored).
+   */
+  synchronized void release(ByteBuffer buffer) {
+    if (buffer.isDirect()) {
+      free[sizeClass(buffer.capacity())].addFirst(buffer);
+      pooledBytes += buffer.capacity();
+    }
+  }
+
+  /**
+   * Return the total capacity of the buffers held by the pool.
+   */
+  synchronized long pooledBytes() {
+    return pooledBytes;
+  }
+
+  /**
+   * Return the total capacity of the buffers allocated (held by the pool and in use).
+   */
+  synchronized long allocatedBytes() {
+    return allocatedBytes;
+  }
+}
@@ -0,0 +1,123 @@
+package org.avaje.metric.elastic;
+
+import okio.Buffer;
+import okio.Sink;
+import okio.Timeout;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Sink that writes to a direct buffer taken from the staging pool.
+ * <p>
+ * When the buffer is full the content is moved to a buffer of the next size class
+ * and the smaller buffer returned to the pool. When the pool can not provide a buffer
+ * (its max bytes are in use) the content is moved to a heap buffer instead.
+ * </p>
+ * <p>
+ * The content is copied via the scratch array of the thread as reading a Buffer into a
+ * ByteBuffer requires okio 1.14 or later.
+ * </p>
+ */
+class StagingSink implements Sink {
+
+  private final StagingPool pool;
+
+  private ByteBuffer buffer;
+
+  /**
+   * The heap buffer the content is written to when the pool is exhausted (otherwise null).
+   */
+  private Buffer heap;
+
+  StagingSink(StagingPool pool) {
+    this.pool = pool;
+    this.buffer = pool.acquire(0);
+    if (buffer == null) {
+      heap = new Buffer();
+    }
+  }
+
+  @Override
+  public void write(Buffer source, long byteCount) throws IOException {
+    byte[] copy = StagingPool.scratch();
+    if (heap == null && byteCount > buffer.remaining()) {
+      grow(buffer.position() + byteCount);
+    }
+    if (heap != null) {
+      heap.write(source, byteCount);
+      return;
+    }
+    while (byteCount > 0) {
+      int count = source.read(copy, 0, (int) Math.min(copy.length, byteCount));
+      if (count == -1) {
+        throw new IOException("Source exhausted");
+      }
+      buffer.put(copy, 0, count);
+      byteCount -= count;
+    }
+  }
+
+  private void grow(long capacity) {
+    byte[] copy = StagingPool.scratch();
+    ByteBuffer larger = pool.acquire(capacity);
+    buffer.flip();
+    if (larger == null) {
+      // pool exhausted so continue on the heap
+      heap = new Buffer();
+      while (buffer.hasRemaining()) {
+        int count = Math.min(copy.length, buffer.remaining());
+        buffer.get(copy, 0, count);
+        heap.write(copy, 0, count);
+      }
+    } else {
+      larger.put(buffer);
+    }
+    pool.release(buffer);
+    buffer = larger;
+  }
+
+  /**
+   * Return the buffer (flipped for reading) which the caller releases to the pool.
+   * <p>
+   * When the pool was exhausted this is a heap buffer (ignored when released).
+   * </p>
+   */
+  ByteBuffer finish() {
+    if (heap != null) {
+      ByteBuffer content = ByteBuffer.wrap(heap.readByteArray());
+      heap = null;
+      return content;
+    }
+    ByteBuffer content = buffer;
+    content.flip();
+    buffer = null;
+    return content;
+  }
+
+  /**
+   * Release the buffer to the pool when writing failed.
+   */
+  void release() {
+    if (buffer != null) {
+      pool.release(buffer);
+      buffer = null;
+    }
+    heap = null;
+  }
+
+  @Override
+  public void flush() {
+    // nothing to flush
+  }
+
+  @Override
+  public Timeout timeout() {
+    return Timeout.NONE;
+  }
+
+  @Override
+  public void close() {
+    // buffer taken by finish() or release()
+  }
+}
@@ -5,34 +5,97 @@ import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
+import okio.Buffer;
+import okio.BufferedSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.URL;
 import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
+import java.util.zip.CRC32;
 
+/**
+ * Puts the index template (and lifecycle policy for a data stream) to Elastic.
+ * <p>
+ * The template is put when it is missing or when the version of the template in Elastic
+ * is lower than the version of the template resource. When a marker directory is given
+ * a marker file records the url and checksum of the template last applied such that
+ * subsequent starts skip checking with Elastic while the template is unchanged.
+ * </p>
+ * <p>
+ * Using start() the template is applied in the background retrying with backoff until
+ * the template is in place such that an unavailable Elastic does not block startup.
+ * A 4xx response other than 404, 408 or 429 (for example a 403 without the template
+ * privilege) will not succeed when retried so the template is then given up on.
+ * </p>
+ */
 class TemplateApply {
 
   private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
 
   private static final Logger log = LoggerFactory.getLogger(TemplateApply.class);
 
+  /**
+   * Remote version when the template does not exist.
+   */
+  private static final int MISSING = -1;
+
+  /**
+   * Remote version when the check failed.
+   */
+  private static final int FAILED = -2;
+
   private final OkHttpClient client;
 
   private final String baseUrl;
 
   private final String templateName;
 
+  /**
+   * True for a composable index template (_index_template) rather than a legacy template.
+   */
+  private final boolean composable;
+
+  /**
+   * Directory of the marker file (or null for no marker).
+   */
+  private final File markerDirectory;
+
+  /**
+   * True when the template is in place (or there is no template to apply).
+   */
+  private volatile boolean done;
+
+  /**
+   * Retries applying the template (null when not started).
+   */
+  private volatile ScheduledExecutorService executor;
+
   TemplateApply(OkHttpClient client, String baseUrl, String templateName) {
+    this(client, baseUrl, templateName, false);
+  }
+
+  TemplateApply(OkHttpClient client, String baseUrl, String templateName, boolean composable) {
+    this(client, baseUrl, templateName, composable, null);
+  }
+
+  TemplateApply(OkHttpClient client, String baseUrl, String templateName, boolean composable, File markerDirectory) {
     this.client = client;
     this.baseUrl = normalise(baseUrl);
     this.templateName = templateName;
+    this.composable = composable;
+    this.markerDirectory = markerDirectory;
   }
 
   /**
@@ -46,46 +109,150 @@ class TemplateApply {
   }
 
   /**
-   * Return true if the template was added to ElasticSearch.
+   * Return true when the template is in place (or there is no template to apply).
    */
-  boolean run() {
-    return templateMissing() && putTemplate();
+  boolean isDone() {
+    return done;
+  }
+
+  /**
+   * Apply the template in a background thread retrying with backoff until it is in place.
+   */
+  void start(long backoffInitialMillis, long backoffMaxMillis) {
+    start(backoffInitialMillis, backoffMaxMillis, () -> {});
+  }
+
+  /**
+   * Apply the template in a background thread running the callback once it is in place.
+   *
+   * @param applied run once the template is in place (or when there is no template)
+   */
+  void start(long backoffInitialMillis, long backoffMaxMillis, Runnable applied) {
+    if (templateName == null) {
+      done = true;
+      applied.run();
+      return;
+    }
+    executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "metric-elastic-template");
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.execute(new Runnable() {
+      long backoff = Math.max(1000, backoffInitialMillis);
+
+      @Override
+      public void run() {
+        try {
+          TemplateApply.this.run();
+        } catch (RuntimeException e) {
+          log.error("Error applying template:{}", templateName, e);
+        }
+        if (done) {
+          executor.shutdown();
+          applied.run();
+        } else {
+          log.info("Template:{} not applied, retry in {} seconds", templateName, backoff / 1000);
+          executor.schedule(this, backoff, TimeUnit.MILLISECONDS);
+          backoff = Math.min(backoff * 2, Math.max(backoff, backoffMaxMillis));
+        }
+      }
+    });
   }
 
   /**
-   * Return if the template was PUT to ElasticSearch.
+   * Stop retrying to apply the template.
    */
-  private boolean putTemplate() {
+  void stop() {
+    ScheduledExecutorService current = executor;
+    if (current != null) {
+      current.shutdownNow();
+    }
+  }
 
+  /**
+   * Return true if the template was added to ElasticSearch.
+   */
+  boolean run() {
+
+    if (templateName == null) {
+      // means don't automatically PUT the template
+      done = true;
+      return false;
+    }
     String resourceName = "/elastic-template/" + templateName + ".json";
     URL resource = getClass().getResource(resourceName);
     if (resource == null) {
       log.warn("Could not find template resource {} to apply to ElasticSearch", resourceName);
+      done = true;
       return false;
     }
-
+    URL policy = composable ? getClass().getResource("/elastic-template/" + templateName + "-policy.json") : null;
+    String template;
+    String policyContent;
     try {
-      String template = read(resource.openStream());
+      template = read(resource.openStream());
+      policyContent = (policy == null) ? null : read(policy.openStream());
+    } catch (IOException e) {
+      log.error("Error reading template resource {}", resourceName, e);
+      done = true;
+      return false;
+    }
 
-      RequestBody body = RequestBody.create(JSON, template);
+    String marker = baseUrl + " " + checksum(template, policyContent);
+    if (marker.equals(readMarker())) {
+      log.debug("Template:{} unchanged since last applied", templateName);
+      done = true;
+      return false;
+    }
 
-      String url = baseUrl + "/_template/" + templateName;
-      Request request = new Request.Builder()
-          .url(url)
-          .put(body).build();
+    int remoteVersion = remoteVersion();
+    if (remoteVersion == FAILED) {
+      return false;
+    }
+    int version = version(template);
+    if (remoteVersion != MISSING && remoteVersion >= version) {
+      // already in place (with the same or a later version)
+      writeMarker(marker);
+      done = true;
+      return false;
+    }
+    if (policyContent != null && !put(policyContent, baseUrl + "/_ilm/policy/" + templateName, "policy")) {
+      return false;
+    }
+    if (!put(template, templateUrl(), "template")) {
+      return false;
+    }
+    writeMarker(marker);
+    done = true;
+    return true;
+  }
 
-      try (Response response = client.newCall(request).execute()) {
-        if (response.code() == 200) {
-          log.info("PUT template:{}", templateName);
-          return true;
-        } else {
-          log.warn("failed to PUT template:{} response:{}", templateName, response.body().string());
-          return false;
-        }
+  private String templateUrl() {
+    return baseUrl + (composable ? "/_index_template/" : "/_template/") + templateName;
+  }
+
+  private boolean put(String content, String url, String kind) {
+
+    RequestBody body = RequestBody.create(JSON, content);
+    Request request = new Request.Builder()
+        .url(url)
+        .put(body).build();
+
+    try (Response response = client.newCall(request).execute()) {
+      if (response.code() == 200) {
+        log.info("PUT {}:{}", kind, templateName);
+        return true;
+      } else if (isPermanent(response.code())) {
+        giveUp("PUT " + kind, response.code(), response.body().string());
+        return false;
+      } else {
+        log.warn("failed to PUT {}:{} response:{}", kind, templateName, response.body().string());
+        return false;
       }
 
     } catch (IOException e) {
-      log.error("Error trying to PUT template:{}", templateName, e);
+      log.error("Error trying to PUT {}:{}", kind, templateName, e);
       return false;
     }
   }
@@ -97,30 +264,193 @@ class TemplateApply {
   }
 
   /**
-   * Return true if the template is not defined in ElasticSearch.
+   * Return the version of the template (0 when it has no version).
    */
-  private boolean templateMissing() {
+  static int version(String template) {
+    try {
+      return new VersionReader(new Buffer().writeUtf8(template)).readVersion();
+    } catch (IOException e) {
+      throw new IllegalStateException("Invalid template " + e.getMessage(), e);
+    }
+  }
 
-    if (templateName == null) {
-      // means don't automatically PUT the template
-      return false;
+  /**
+   * Return the version of the named template in the GET template response (MISSING when not in the response).
+   * <p>
+   * The legacy response is keyed by the template name and the composable response has an
+   * index_templates array of name and index_template. Only the top level version of the
+   * template is read (not a version in its settings or _meta).
+   * </p>
+   */
+  static int remoteVersion(BufferedSource source, String templateName, boolean composable) throws IOException {
+    VersionReader reader = new VersionReader(source);
+    return composable ? reader.readComposable(templateName) : reader.readLegacy(templateName);
+  }
+
+  /**
+   * Return the checksum of the template and policy content.
+   */
+  static String checksum(String template, String policy) {
+    CRC32 crc = new CRC32();
+    crc.update(template.getBytes(StandardCharsets.UTF_8));
+    if (policy != null) {
+      crc.update(policy.getBytes(StandardCharsets.UTF_8));
     }
+    return Long.toHexString(crc.getValue());
+  }
 
-    String url = baseUrl + "/_template/" + templateName;
-    Request request = new Request.Builder().url(url).get().build();
+  private File markerFile() {
+    return new File(markerDirectory, templateName + ".template");
+  }
+
+  private String readMarker() {
+    if (markerDirectory == null) {
+      return null;
+    }
+    File file = markerFile();
+    if (!file.exists()) {
+      return null;
+    }
+    try {
+      return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+    } catch (IOException e) {
+      log.debug("Unable to read template marker {}", file, e);
+      return null;
+    }
+  }
+
+  private void writeMarker(String marker) {
+    if (markerDirectory != null) {
+      try {
+        Files.write(markerFile().toPath(), marker.getBytes(StandardCharsets.UTF_8));
+      } catch (IOException e) {
+        log.warn("Unable to write template marker {}", markerFile(), e);
+      }
+    }
+  }
+
+  /**
+   * Return true if the response status means retrying will not succeed.
+   */
+  static boolean isPermanent(int code) {
+    return code >= 400 && code < 500 && code != 404 && code != 408 && code != 429;
+  }
+
+  /**
+   * Give up on the template logging the error (metrics are sent without it).
+   */
+  private void giveUp(String action, int code, String body) {
+    log.error("Template:{} not applied and not retried, {} failed with status {} - {}", templateName, action, code, body);
+    done = true;
+  }
+
+  /**
+   * Return the version of the template in ElasticSearch, MISSING or FAILED.
+   */
+  private int remoteVersion() {
+
+    Request request = new Request.Builder().url(templateUrl()).get().build();
 
     try {
       try (Response response = client.newCall(request).execute()) {
-        return response.code() == 404;
+        if (response.code() == 404) {
+          return MISSING;
+        }
+        if (isPermanent(response.code())) {
+          giveUp("check", response.code(), response.body().string());
+          return FAILED;
+        }
+        if (!response.isSuccessful()) {
+          log.warn("failed to check template {} in elasticsearch, status {}", templateName, response.code());
+          return FAILED;
+        }
+        return remoteVersion(response.body().source(), templateName, composable);
       }
     } catch (UnknownHostException e) {
       log.warn("UnknownHostException checking for template: {}", e.getMessage());
-      return false;
+      return FAILED;
 
     } catch (IOException e) {
-      log.error("failed to check if template {} exists in elasticsearch", templateName, e);
-      return false;
+      // retried so logged without the stack trace
+      log.warn("failed to check template {} in elasticsearch: {}", templateName, e.toString());
+      return FAILED;
     }
   }
 
+  /**
+   * Reads the top level version of a template.
+   */
+  private static class VersionReader extends JsonStreamReader {
+
+    VersionReader(BufferedSource source) {
+      super(source);
+    }
+
+    /**
+     * Read the version of the template object (0 when it has no version).
+     */
+    int readVersion() throws IOException {
+      int version = 0;
+      beginObject();
+      while (hasNext('}')) {
+        String name = readString();
+        expect(':');
+        if ("version".equals(name)) {
+          version = (int) readLong();
+        } else {
+          skipValue();
+        }
+      }
+      return version;
+    }
+
+    int readLegacy(String templateName) throws IOException {
+      int version = MISSING;
+      beginObject();
+      while (hasNext('}')) {
+        String name = readString();
+        expect(':');
+        if (templateName.equals(name)) {
+          version = readVersion();
+        } else {
+          skipValue();
+        }
+      }
+      return version;
+    }
+
+    int readComposable(String templateName) throws IOException {
+      int version = MISSING;
+      beginObject();
+      while (hasNext('}')) {
+        String name = readString();
+        expect(':');
+        if (!"index_templates".equals(name)) {
+          skipValue();
+          continue;
+        }
+        expect('[');
+        while (hasNext(']')) {
+          String entryName = null;
+          int entryVersion = MISSING;
+          beginObject();
+          while (hasNext('}')) {
+            String field = readString();
+            expect(':');
+            if ("name".equals(field)) {
+              entryName = readScalar();
+            } else if ("index_template".equals(field)) {
+              entryVersion = readVersion();
+            } else {
+              skipValue();
+            }
+          }
+          if (templateName.equals(entryName)) {
+            version = entryVersion;
+          }
+        }
+      }
+      return version;
+    }
+  }
 }
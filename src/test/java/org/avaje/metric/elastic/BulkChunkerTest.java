@@ -0,0 +1,65 @@
+package org.avaje.metric.elastic;
+
+import okio.Buffer;
+import org.testng.annotations.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BulkChunkerTest {
+
+  private void document(BulkChunker chunker, String content) {
+    chunker.buffer().writeUtf8(content);
+    chunker.documentEnd();
+  }
+
+  @Test
+  public void noLimits_expect_singleChunk() {
+
+    BulkChunker chunker = new BulkChunker(0, 0);
+    document(chunker, "aa\n");
+    document(chunker, "bb\n");
+
+    List<Buffer> chunks = chunker.finish();
+    assertThat(chunks).hasSize(1);
+    assertThat(chunks.get(0).readUtf8()).isEqualTo("aa\nbb\n");
+  }
+
+  @Test
+  public void empty_expect_noChunks() {
+    assertThat(new BulkChunker(0, 0).finish()).isEmpty();
+  }
+
+  @Test
+  public void maxDocuments_expect_split() {
+
+    BulkChunker chunker = new BulkChunker(0, 2);
+    document(chunker, "a\n");
+    document(chunker, "b\n");
+    document(chunker, "c\n");
+
+    List<Buffer> chunks = chunker.finish();
+    assertThat(chunks).hasSize(2);
+    assertThat(chunks.get(0).readUtf8()).isEqualTo("a\nb\n");
+    assertThat(chunks.get(1).readUtf8()).isEqualTo("c\n");
+  }
+
+  @Test
+  public void maxBytes_expect_splitOnDocumentBoundary() {
+
+    BulkChunker chunker = new BulkChunker(10, 0);
+    document(chunker, "aaaa\n");
+    document(chunker, "bbbb\n");
+    document(chunker, "cccc\n");
+    document(chunker, "dddddddddddddd\n");
+    document(chunker, "e\n");
+
+    List<Buffer> chunks = chunker.finish();
+    assertThat(chunks).hasSize(4);
+    assertThat(chunks.get(0).readUtf8()).isEqualTo("aaaa\nbbbb\n");
+    assertThat(chunks.get(1).readUtf8()).isEqualTo("cccc\n");
+    assertThat(chunks.get(2).readUtf8()).isEqualTo("dddddddddddddd\n");
+    assertThat(chunks.get(3).readUtf8()).isEqualTo("e\n");
+  }
+}
@@ -1,16 +1,21 @@
 package org.avaje.metric.elastic;
 
+import okio.Buffer;
+import okio.ByteString;
+import org.avaje.metric.BucketTimedMetric;
 import org.avaje.metric.CounterMetric;
 import org.avaje.metric.Metric;
 import org.avaje.metric.MetricManager;
+import org.avaje.metric.ValueMetric;
 import org.avaje.metric.report.HeaderInfo;
 import org.avaje.metric.report.ReportMetrics;
 import org.testng.annotations.Test;
 
-import java.io.StringWriter;
-import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -33,11 +38,290 @@ public class BulkJsonWriteVisitorTest {
     String indexSuffix = "test.metric";
 
 
-    Writer writer = new StringWriter(1000);
-    BulkJsonWriteVisitor bulk = new BulkJsonWriteVisitor(writer, reportMetrics, config, indexSuffix);
-    bulk.write();
+    Buffer buffer = new Buffer();
+    BulkJsonWriteVisitor bulk = new BulkJsonWriteVisitor(config);
+    bulk.write(buffer, reportMetrics, indexSuffix);
 
-    assertThat(writer.toString()).contains("{\"index\":{\"_type\":\"metric\",\"_index\":\"metric-test.metric\"}}");
+    assertThat(buffer.readUtf8()).contains("{\"index\":{\"_type\":\"metric\",\"_index\":\"metric-test.metric\"}}");
   }
 
+  @Test
+  public void write_dataStream_expect_createWithoutType() throws Exception {
+
+    List<Metric> metrics = new ArrayList<>();
+    CounterMetric counter = MetricManager.getCounterMetric("org.one.Stream.count");
+    counter.markEvent();
+    counter.collectStatistics(metrics);
+    ReportMetrics reportMetrics = new ReportMetrics(new HeaderInfo(), 1000L, metrics);
+
+    String json = write(new BulkJsonWriteVisitor(new ElasticReporterConfig().setDataStream("metrics-avaje-test")), reportMetrics);
+    assertThat(json).startsWith("{\"create\":{\"_index\":\"metrics-avaje-test\"}}\n{\"@timestamp\":1000,");
+  }
+
+  @Test
+  public void write_nullIndexType_expect_noType() throws Exception {
+
+    List<Metric> metrics = new ArrayList<>();
+    CounterMetric counter = MetricManager.getCounterMetric("org.one.NoType.count");
+    counter.markEvent();
+    counter.collectStatistics(metrics);
+    ReportMetrics reportMetrics = new ReportMetrics(new HeaderInfo(), 1000L, metrics);
+
+    String json = write(new BulkJsonWriteVisitor(new ElasticReporterConfig().setIndexType(null)), reportMetrics);
+    assertThat(json).startsWith("{\"index\":{\"_index\":\"metric-test.metric\"}}\n{");
+  }
+
+  @Test
+  public void write_gaugeDouble_expect_decimalPlaces() throws Exception {
+
+    List<Metric> metrics = new ArrayList<>();
+    metrics.add(MetricManager.register(MetricManager.name("org.one.Foo.gaugeA"), () -> 12.345d));
+    metrics.add(MetricManager.register(MetricManager.name("org.one.Foo.gaugeB"), () -> -0.5d));
+    metrics.add(MetricManager.register(MetricManager.name("org.one.Foo.gaugeC"), () -> 7d));
+
+    ReportMetrics reportMetrics = new ReportMetrics(new HeaderInfo(), System.currentTimeMillis(), metrics);
+
+    Buffer buffer = new Buffer();
+    new BulkJsonWriteVisitor(new ElasticReporterConfig()).write(buffer, reportMetrics, "test.metric");
+
+    String json = buffer.readUtf8();
+    assertThat(json).contains("\"val\":12.35}");
+    assertThat(json).contains("\"val\":-0.50}");
+    assertThat(json).contains("\"val\":7.00}");
+  }
+
+  @Test
+  public void write_suppressUnchanged_expect_onlyChangesAndHeartbeat() throws Exception {
+
+    AtomicLong value = new AtomicLong(5);
+    List<Metric> metrics = new ArrayList<>();
+    metrics.add(MetricManager.register(MetricManager.name("org.one.Foo.suppressed"), value::get));
+    ReportMetrics reportMetrics = new ReportMetrics(new HeaderInfo(), System.currentTimeMillis(), metrics);
+
+    BulkJsonWriteVisitor visitor = new BulkJsonWriteVisitor(new ElasticReporterConfig()
+      .setSuppressUnchanged(true)
+      .setSuppressHeartbeat(3));
+
+    assertThat(write(visitor, reportMetrics)).contains("\"val\":5}");
+    assertThat(write(visitor, reportMetrics)).isEmpty();
+
+    value.set(6);
+    assertThat(write(visitor, reportMetrics)).contains("\"val\":6}");
+    assertThat(write(visitor, reportMetrics)).isEmpty();
+    assertThat(write(visitor, reportMetrics)).isEmpty();
+    // heartbeat
+    assertThat(write(visitor, reportMetrics)).contains("\"val\":6}");
+  }
+
+  @Test
+  public void write_rollup_expect_mergedDocumentPerWindow() throws Exception {
+
+    CounterMetric counter = MetricManager.getCounterMetric("org.one.Rollup.count");
+    BulkJsonWriteVisitor visitor = new BulkJsonWriteVisitor(new ElasticReporterConfig()
+      .addRollup("org.one", 1)
+      .addRollup("org.one.Rollup", 3));
+
+    for (int cycle = 1; cycle <= 3; cycle++) {
+      counter.markEvents(2);
+      List<Metric> metrics = new ArrayList<>();
+      counter.collectStatistics(metrics);
+      String json = write(visitor, new ReportMetrics(new HeaderInfo(), System.currentTimeMillis(), metrics));
+      if (cycle < 3) {
+        assertThat(json).isEmpty();
+      } else {
+        assertThat(json).contains("\"type\":\"counter\"");
+        assertThat(json).contains("\"count\":6,");
+      }
+    }
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void construct_rollupWithBucketHistogram_expect_rejected() {
+
+    new BulkJsonWriteVisitor(new ElasticReporterConfig()
+      .addRollup("org.one", 3)
+      .setBucketHistogram(true));
+  }
+
+  @Test
+  public void write_bucketHistogram_expect_singleDocument() throws Exception {
+
+    BucketTimedMetric metric = MetricManager.getTimedMetric("org.one.Hist.doStuff", 100, 1000);
+    metric.addEventDuration(true, 80 * 1000000L);
+    metric.addEventDuration(true, 225 * 1000000L);
+    metric.addEventDuration(true, 205 * 1000000L);
+    metric.addEventDuration(false, 300 * 1000000L);
+    List<Metric> metrics = new ArrayList<>();
+    metric.collectStatistics(metrics);
+
+    BulkJsonWriteVisitor visitor = new BulkJsonWriteVisitor(new ElasticReporterConfig().setBucketHistogram(true));
+    String json = write(visitor, new ReportMetrics(new HeaderInfo(), System.currentTimeMillis(), metrics));
+
+    assertThat(json.split("\n")).hasSize(2);
+    assertThat(json).doesNotContain("\"bucket\"");
+    assertThat(json).contains("\"norm\":{\"count\":3,");
+    assertThat(json).contains("\"error\":{\"count\":1,");
+    assertThat(json).contains("\"hist\":{\"values\":[");
+    assertThat(json).contains("\"counts\":[1,2]}");
+    assertThat(json).contains("\"pct\":{\"p50\":");
+  }
+
+  @Test
+  public void write_bucketCompact_expect_bucketsNested() throws Exception {
+
+    BucketTimedMetric metric = MetricManager.getTimedMetric("org.one.Compact.doStuff", 100, 1000);
+    metric.addEventDuration(true, 80 * 1000000L);
+    metric.addEventDuration(true, 225 * 1000000L);
+    List<Metric> metrics = new ArrayList<>();
+    metric.collectStatistics(metrics);
+
+    BulkJsonWriteVisitor visitor = new BulkJsonWriteVisitor(new ElasticReporterConfig().setBucketCompact(true));
+    String json = write(visitor, new ReportMetrics(new HeaderInfo(), System.currentTimeMillis(), metrics));
+
+    assertThat(json.split("\n")).hasSize(2);
+    assertThat(json).contains("\"norm\":{\"count\":2,");
+    assertThat(json).contains("\"buckets\":{\"");
+    assertThat(json).contains("\":{\"norm\":{\"count\":1,");
+    assertThat(json).doesNotContain("\"hist\"");
+    assertThat(json).endsWith("}}}\n");
+  }
+
+  @Test
+  public void percentile_expect_interpolatedWithinBucket() {
+
+    long[] lower = {0, 100};
+    long[] upper = {100, 1000};
+    long[] counts = {50, 50};
+
+    assertThat(BulkJsonWriteVisitor.percentile(0.25d, 2, lower, upper, counts, 100)).isEqualTo(50);
+    assertThat(BulkJsonWriteVisitor.percentile(0.5d, 2, lower, upper, counts, 100)).isEqualTo(100);
+    assertThat(BulkJsonWriteVisitor.percentile(0.9d, 2, lower, upper, counts, 100)).isEqualTo(820);
+    assertThat(BulkJsonWriteVisitor.percentile(0.5d, 0, lower, upper, counts, 0)).isEqualTo(0);
+  }
+
+  @Test
+  public void write_smile_expect_binaryDocuments() throws Exception {
+
+    List<Metric> metrics = new ArrayList<>();
+    CounterMetric counter = MetricManager.getCounterMetric("org.one.Smile.count");
+    counter.markEvent();
+    counter.collectStatistics(metrics);
+    ReportMetrics reportMetrics = new ReportMetrics(new HeaderInfo(), 1000L, metrics);
+
+    BulkJsonWriteVisitor visitor = new BulkJsonWriteVisitor(new ElasticReporterConfig().setBulkFormat(ElasticReporterConfig.BulkFormat.SMILE));
+    assertThat(visitor.contentType()).isEqualTo(BulkRequestBody.SMILE);
+
+    Buffer buffer = new Buffer();
+    visitor.write(buffer, reportMetrics, "test.metric");
+    ByteString smile = buffer.readByteString();
+
+    // header of the action document and the action and source each end with the separator
+    assertThat(smile.startsWith(ByteString.of((byte) ':', (byte) ')', (byte) '\n', (byte) 0x01))).isTrue();
+    assertThat(smile.getByte(smile.size() - 1)).isEqualTo((byte) 0xFF);
+    assertThat(BulkRequestBody.documents(new Buffer().write(smile), new int[]{0}, BulkRequestBody.SMILE).size()).isEqualTo(smile.size());
+    assertThat(smile.utf8()).contains("metric-test.metric").contains("org.one.Smile.count").doesNotContain("\"count\"");
+  }
+
+  private String write(BulkJsonWriteVisitor visitor, ReportMetrics reportMetrics) throws Exception {
+    Buffer buffer = new Buffer();
+    visitor.write(buffer, reportMetrics, "test.metric");
+    return buffer.readUtf8();
+  }
+
+  @Test
+  public void write_tags_expect_escaped() throws Exception {
+
+    List<Metric> metrics = new ArrayList<>();
+    CounterMetric counter = MetricManager.getCounterMetric("org.one.Foo.tagged");
+    counter.markEvent();
+    counter.collectStatistics(metrics);
+
+    ReportMetrics reportMetrics = new ReportMetrics(new HeaderInfo(), 42L, metrics);
+
+    ElasticReporterConfig config = new ElasticReporterConfig()
+      .addTag("app", "my \"app\"")
+      .addTag("env", "dev");
+
+    Buffer buffer = new Buffer();
+    BulkJsonWriteVisitor bulk = new BulkJsonWriteVisitor(config);
+    bulk.write(buffer, reportMetrics, "test.metric");
+
+    assertThat(buffer.readUtf8()).contains("{\"ts\":42,\"app\":\"my \\\"app\\\"\",\"env\":\"dev\",\"type\":\"counter\",");
+
+    // tags are a snapshot taken at construction
+    config.addTag("later", "ignored");
+    bulk.write(buffer, new ReportMetrics(new HeaderInfo(), 43L, metrics), "test.metric");
+    String json = buffer.readUtf8();
+    assertThat(json).contains("{\"ts\":43,\"app\":");
+    assertThat(json).doesNotContain("later");
+  }
+
+  @Test
+  public void write_expect_noSteadyStateAllocation() throws Exception {
+
+    ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    if (!(threadMXBean instanceof com.sun.management.ThreadMXBean)) {
+      return;
+    }
+    com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadMXBean;
+    if (!allocationBean.isThreadAllocatedMemorySupported() || !allocationBean.isThreadAllocatedMemoryEnabled()) {
+      return;
+    }
+
+    List<Metric> metrics = new ArrayList<>();
+    CounterMetric counter = MetricManager.getCounterMetric("org.one.Alloc.count");
+    counter.markEvent();
+    counter.collectStatistics(metrics);
+    ValueMetric value = MetricManager.getValueMetric("org.one.Alloc.value");
+    value.addEvent(42);
+    value.collectStatistics(metrics);
+    metrics.add(MetricManager.register(MetricManager.name("org.one.Alloc.gauge"), () -> 3.14d));
+
+    ReportMetrics reportMetrics = new ReportMetrics(new HeaderInfo(), System.currentTimeMillis(), metrics);
+    BulkJsonWriteVisitor bulk = new BulkJsonWriteVisitor(new ElasticReporterConfig().addTag("app", "test"));
+
+    // the buffer segments are recycled by clear()
+    Buffer buffer = new Buffer();
+    int iterations = 20000;
+    for (int i = 0; i < iterations; i++) {
+      bulk.write(buffer, reportMetrics, "test.metric");
+      buffer.clear();
+    }
+
+    long threadId = Thread.currentThread().getId();
+    long before = allocationBean.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < iterations; i++) {
+      bulk.write(buffer, reportMetrics, "test.metric");
+      buffer.clear();
+    }
+    long allocated = allocationBean.getThreadAllocatedBytes(threadId) - before;
+
+    assertThat(allocated / iterations).isLessThan(64);
+  }
+
+
+  @Test
+  public void write_maxNames_expect_limitedAndExcluded() throws Exception {
+
+    List<Metric> metrics = new ArrayList<>();
+    metrics.add(MetricManager.register(MetricManager.name("org.one.Guard.a"), () -> 1d));
+    metrics.add(MetricManager.register(MetricManager.name("org.one.Guard.b"), () -> 2d));
+    metrics.add(MetricManager.register(MetricManager.name("org.one.Guard.c"), () -> 3d));
+    metrics.add(MetricManager.register(MetricManager.name("org.one.Guard.debug"), () -> 4d));
+    ReportMetrics reportMetrics = new ReportMetrics(new HeaderInfo(), System.currentTimeMillis(), metrics);
+
+    ElasticReporterConfig config = new ElasticReporterConfig()
+      .addExcludeName("*.debug")
+      .setMaxNames(2);
+    BulkJsonWriteVisitor visitor = new BulkJsonWriteVisitor(config);
+
+    Buffer buffer = new Buffer();
+    visitor.write(buffer, reportMetrics, "2017.01.01");
+    String json = buffer.readUtf8();
+
+    assertThat(json).contains("org.one.Guard.a");
+    assertThat(json).contains("org.one.Guard.b");
+    assertThat(json).doesNotContain("org.one.Guard.c");
+    assertThat(json).doesNotContain("org.one.Guard.debug");
+  }
 }
@@ -0,0 +1,148 @@
+package org.avaje.metric.elastic;
+
+import okhttp3.RequestBody;
+import okio.Buffer;
+import org.avaje.metric.CounterMetric;
+import org.avaje.metric.Metric;
+import org.avaje.metric.MetricManager;
+import org.avaje.metric.report.HeaderInfo;
+import org.avaje.metric.report.ReportMetrics;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BulkRequestBodyTest {
+
+  private ReportMetrics reportMetrics() {
+
+    List<Metric> metrics = new ArrayList<>();
+    CounterMetric counter = MetricManager.getCounterMetric("org.one.BodyFoo.count");
+    counter.markEvent();
+    counter.collectStatistics(metrics);
+
+    return new ReportMetrics(new HeaderInfo(), System.currentTimeMillis(), metrics);
+  }
+
+  @Test
+  public void writeTo_expect_bulkJson() throws Exception {
+
+    BulkRequestBody body = new BulkRequestBody(new BulkJsonWriteVisitor(new ElasticReporterConfig()), reportMetrics(), "test.body");
+
+    Buffer buffer = new Buffer();
+    body.writeTo(buffer);
+
+    String json = buffer.readUtf8();
+    assertThat(json).startsWith("{\"index\":{\"_type\":\"metric\",\"_index\":\"metric-test.body\"}}\n{");
+    assertThat(json).contains("\"type\":\"counter\"");
+    assertThat(json).endsWith("}\n");
+  }
+
+  @Test
+  public void of_buffer_expect_repeatableWrites() throws Exception {
+
+    Buffer content = new BulkRequestBody(new BulkJsonWriteVisitor(new ElasticReporterConfig()), reportMetrics(), "test.body").toChunks(0, 0).get(0);
+    long size = content.size();
+
+    RequestBody body = BulkRequestBody.of(content);
+    assertThat(body.contentLength()).isEqualTo(size);
+
+    Buffer first = new Buffer();
+    body.writeTo(first);
+    Buffer second = new Buffer();
+    body.writeTo(second);
+
+    assertThat(first.size()).isEqualTo(size);
+    assertThat(second.readUtf8()).isEqualTo(first.readUtf8());
+    assertThat(content.size()).isEqualTo(size);
+  }
+
+  @Test
+  public void toStaged_expect_repeatableWritesAndReleased() throws Exception {
+
+    StagingPool pool = new StagingPool(1024 * 1024);
+    ByteBuffer staged = new BulkRequestBody(new BulkJsonWriteVisitor(new ElasticReporterConfig()), reportMetrics(), "test.body").toStaged(pool);
+    assertThat(staged.isDirect()).isTrue();
+
+    RequestBody body = BulkRequestBody.of(staged, BulkRequestBody.JSON);
+    assertThat(body.contentLength()).isEqualTo(staged.remaining());
+
+    Buffer first = new Buffer();
+    body.writeTo(first);
+    Buffer second = new Buffer();
+    body.writeTo(second);
+
+    assertThat(first.size()).isEqualTo(staged.remaining());
+    String json = first.readUtf8();
+    assertThat(json).contains("\"name\":\"org.one.BodyFoo.count\"");
+    assertThat(second.readUtf8()).isEqualTo(json);
+
+    pool.release(staged);
+    assertThat(pool.acquire(0)).isSameAs(staged);
+  }
+
+  @Test
+  public void documents_expect_selectedDocuments() {
+
+    Buffer bulk = new Buffer().writeUtf8("{\"index\":{}}\n{\"a\":0}\n{\"index\":{}}\n{\"a\":1}\n{\"index\":{}}\n{\"a\":2}\n");
+    long size = bulk.size();
+
+    Buffer documents = BulkRequestBody.documents(bulk, new int[]{0, 2});
+    assertThat(documents.readUtf8()).isEqualTo("{\"index\":{}}\n{\"a\":0}\n{\"index\":{}}\n{\"a\":2}\n");
+    assertThat(bulk.size()).isEqualTo(size);
+  }
+
+  @Test
+  public void split_expect_halvesByDocuments() {
+
+    Buffer bulk = new Buffer().writeUtf8("{\"index\":{}}\n{\"a\":0}\n{\"index\":{}}\n{\"a\":1}\n{\"index\":{}}\n{\"a\":2}\n");
+    long size = bulk.size();
+
+    List<Buffer> parts = BulkRequestBody.split(bulk, BulkRequestBody.JSON, 0);
+    assertThat(parts).hasSize(2);
+    assertThat(parts.get(0).readUtf8()).isEqualTo("{\"index\":{}}\n{\"a\":0}\n{\"index\":{}}\n{\"a\":1}\n");
+    assertThat(parts.get(1).readUtf8()).isEqualTo("{\"index\":{}}\n{\"a\":2}\n");
+    assertThat(bulk.size()).isEqualTo(size);
+  }
+
+  @Test
+  public void split_largerThanMaxBytes_expect_partsOfMaxBytes() {
+
+    Buffer bulk = new Buffer().writeUtf8("{\"index\":{}}\n{\"a\":0}\n{\"index\":{}}\n{\"a\":1}\n{\"index\":{}}\n{\"a\":2}\n");
+
+    List<Buffer> parts = BulkRequestBody.split(bulk, BulkRequestBody.JSON, 25);
+    assertThat(parts).hasSize(3);
+    assertThat(parts.get(2).readUtf8()).isEqualTo("{\"index\":{}}\n{\"a\":2}\n");
+  }
+
+  @Test
+  public void split_singleDocument_expect_onePart() {
+
+    Buffer bulk = new Buffer().writeUtf8("{\"index\":{}}\n{\"a\":0}\n");
+    assertThat(BulkRequestBody.split(bulk, BulkRequestBody.JSON, 0)).hasSize(1);
+  }
+
+  @Test
+  public void documents_smile_expect_splitOnSeparator() {
+
+    Buffer bulk = new Buffer().writeUtf8("a0").writeByte(0xFF).writeUtf8("s0").writeByte(0xFF)
+      .writeUtf8("a1").writeByte(0xFF).writeUtf8("s1").writeByte(0xFF);
+
+    Buffer documents = BulkRequestBody.documents(bulk, new int[]{1}, BulkRequestBody.SMILE);
+    assertThat(documents.readByteString()).isEqualTo(new Buffer().writeUtf8("a1").writeByte(0xFF).writeUtf8("s1").writeByte(0xFF).readByteString());
+  }
+
+  @Test
+  public void contentType_smile() {
+
+    ElasticReporterConfig config = new ElasticReporterConfig().setBulkFormat(ElasticReporterConfig.BulkFormat.SMILE);
+    BulkRequestBody body = new BulkRequestBody(new BulkJsonWriteVisitor(config), reportMetrics(), "test.body");
+
+    assertThat(body.contentType()).isEqualTo(BulkRequestBody.SMILE);
+    assertThat(BulkRequestBody.isSmile(body.contentType())).isTrue();
+    assertThat(BulkRequestBody.isSmile(BulkRequestBody.JSON)).isFalse();
+  }
+}
@@ -0,0 +1,45 @@
+package org.avaje.metric.elastic;
+
+import okio.Buffer;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BulkResponseTest {
+
+  private BulkResponse parse(String json) throws IOException {
+    return BulkResponse.parse(new Buffer().writeUtf8(json));
+  }
+
+  @Test
+  public void parse_noErrors() throws IOException {
+
+    BulkResponse response = parse("{\"took\":30,\"errors\":false,\"items\":[{\"index\":{\"_index\":\"metric-2017.01.01\",\"status\":201}}]}");
+    assertThat(response.hasErrors()).isFalse();
+    assertThat(response.retryItems()).isEmpty();
+  }
+
+  @Test
+  public void parse_empty() throws IOException {
+    assertThat(parse("").hasErrors()).isFalse();
+  }
+
+  @Test
+  public void parse_withErrors_expect_retryAndFailedItems() throws IOException {
+
+    String json = "{\"took\":30,\"errors\":true,\"items\":[" +
+      "{\"index\":{\"_index\":\"m\",\"_type\":\"metric\",\"_id\":\"a\",\"_version\":1,\"result\":\"created\",\"_shards\":{\"total\":2,\"successful\":1,\"failed\":0},\"status\":201}}," +
+      "{\"index\":{\"_index\":\"m\",\"_type\":\"metric\",\"_id\":\"b\",\"status\":429,\"error\":{\"type\":\"es_rejected_execution_exception\",\"reason\":\"rejected execution of \\\"bulk\\\"\"}}}," +
+      "{\"index\":{\"_index\":\"m\",\"_type\":\"metric\",\"_id\":\"c\",\"status\":400,\"error\":{\"type\":\"mapper_parsing_exception\",\"reason\":\"failed to parse\",\"caused_by\":{\"type\":\"x\",\"reason\":null}}}}," +
+      "{\"create\":{\"_index\":\"m\",\"_id\":\"d\",\"status\":503,\"error\":{\"type\":\"unavailable_shards_exception\",\"reason\":\"[m][0] primary shard is not active\"}}}" +
+      "]}";
+
+    BulkResponse response = parse(json);
+    assertThat(response.hasErrors()).isTrue();
+    assertThat(response.retryItems()).containsExactly(1, 3);
+    assertThat(response.failedCount()).isEqualTo(1);
+    assertThat(response.firstError()).isEqualTo("status:429 es_rejected_execution_exception rejected execution of \"bulk\"");
+  }
+}
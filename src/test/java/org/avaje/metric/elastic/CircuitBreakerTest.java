@@ -0,0 +1,66 @@
+package org.avaje.metric.elastic;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CircuitBreakerTest {
+
+  private final AtomicLong now = new AtomicLong(1000);
+
+  private CircuitBreaker breaker() {
+    return new CircuitBreaker(2, 1000, 4000, now::get);
+  }
+
+  @Test
+  public void failures_expect_openAfterThreshold() {
+
+    CircuitBreaker breaker = breaker();
+    assertThat(breaker.allowRequest()).isTrue();
+    breaker.record(false);
+    assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+    assertThat(breaker.allowRequest()).isTrue();
+    breaker.record(false);
+    assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.OPEN);
+    assertThat(breaker.allowRequest()).isFalse();
+  }
+
+  @Test
+  public void open_expect_singleProbeAfterBackoff() {
+
+    CircuitBreaker breaker = breaker();
+    breaker.record(false);
+    breaker.record(false);
+
+    // jittered between 500 and 1000 millis
+    now.addAndGet(1000);
+    assertThat(breaker.allowRequest()).isTrue();
+    assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+    assertThat(breaker.allowRequest()).isFalse();
+
+    breaker.record(true);
+    assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+    assertThat(breaker.allowRequest()).isTrue();
+  }
+
+  @Test
+  public void probeFails_expect_backoffDoubled() {
+
+    CircuitBreaker breaker = breaker();
+    breaker.record(false);
+    breaker.record(false);
+
+    now.addAndGet(1000);
+    assertThat(breaker.allowRequest()).isTrue();
+    breaker.record(false);
+    assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.OPEN);
+
+    // backoff now 2000 so jittered between 1000 and 2000 millis
+    now.addAndGet(999);
+    assertThat(breaker.allowRequest()).isFalse();
+    now.addAndGet(1001);
+    assertThat(breaker.allowRequest()).isTrue();
+  }
+}
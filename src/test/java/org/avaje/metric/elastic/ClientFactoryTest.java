@@ -0,0 +1,59 @@
+package org.avaje.metric.elastic;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ClientFactoryTest {
+
+  @Test
+  public void create_expect_configured() {
+
+    ElasticReporterConfig config = new ElasticReporterConfig()
+      .setConnectTimeout(3)
+      .setMaxRequestsPerHost(8)
+      .setHttpProtocol(ElasticReporterConfig.HttpProtocol.HTTP_1_1);
+
+    OkHttpClient client = ClientFactory.create(config);
+
+    assertThat(client.connectTimeoutMillis()).isEqualTo(3000);
+    assertThat(client.dispatcher().getMaxRequestsPerHost()).isEqualTo(8);
+    assertThat(client.protocols()).containsExactly(Protocol.HTTP_1_1);
+  }
+
+  @Test
+  public void create_maxRequestsPerHostAboveMaxRequests_expect_maxRequestsIncreased() {
+
+    OkHttpClient client = ClientFactory.create(new ElasticReporterConfig().setMaxRequestsPerHost(100));
+
+    assertThat(client.dispatcher().getMaxRequestsPerHost()).isEqualTo(100);
+    assertThat(client.dispatcher().getMaxRequests()).isEqualTo(100);
+  }
+
+  @Test
+  public void create_tlsSessionCache_expect_created() {
+
+    ElasticReporterConfig config = new ElasticReporterConfig()
+      .setTlsSessionCacheSize(100)
+      .setTlsSessionTimeout(3600);
+
+    assertThat(ClientFactory.create(config)).isNotNull();
+  }
+
+  @Test
+  public void create_clientSupplied_expect_used() {
+
+    OkHttpClient supplied = new OkHttpClient();
+
+    assertThat(ClientFactory.create(new ElasticReporterConfig().setClient(supplied))).isSameAs(supplied);
+  }
+
+  @Test
+  public void protocols_http2_expect_negotiatedWithFallback() {
+
+    assertThat(ClientFactory.protocols(ElasticReporterConfig.HttpProtocol.HTTP_2))
+      .containsExactly(Protocol.HTTP_2, Protocol.HTTP_1_1);
+  }
+}
@@ -24,4 +24,34 @@ public class ElasticReporterConfigTest {
     assertThat(config.getUrl()).isEqualTo("http://foo");
   }
 
-}
\ No newline at end of file
+  @Test
+  public void setDataStream_expect_composableTemplateAndTimestamp() {
+
+    ElasticReporterConfig config = new ElasticReporterConfig().setDataStream("metrics-avaje-default");
+
+    assertThat(config.getDataStream()).isEqualTo("metrics-avaje-default");
+    assertThat(config.getTemplateName()).isEqualTo("metrics-avaje");
+    assertThat(config.getTimestampField()).isEqualTo("@timestamp");
+  }
+
+  @Test
+  public void setDataStream_afterExplicitSettings_expect_settingsKept() {
+
+    ElasticReporterConfig config = new ElasticReporterConfig().setTimestampField("time");
+    config.setTemplateName(null);
+    config.setDataStream("metrics-avaje-default");
+
+    assertThat(config.getTemplateName()).isNull();
+    assertThat(config.getTimestampField()).isEqualTo("time");
+  }
+
+  @Test
+  public void defaults_expect_dailyIndexTemplateAndTimestamp() {
+
+    ElasticReporterConfig config = new ElasticReporterConfig();
+
+    assertThat(config.getTemplateName()).isEqualTo("metric-1");
+    assertThat(config.getTimestampField()).isEqualTo("ts");
+  }
+
+}
@@ -0,0 +1,105 @@
+package org.avaje.metric.elastic;
+
+import okhttp3.MediaType;
+import okio.ByteString;
+import org.avaje.metric.CounterMetric;
+import org.avaje.metric.Metric;
+import org.avaje.metric.MetricManager;
+import org.avaje.metric.report.HeaderInfo;
+import org.avaje.metric.report.ReportMetrics;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FanOutReporterTest {
+
+  private ReportMetrics reportMetrics() {
+    List<Metric> metrics = new ArrayList<>();
+    CounterMetric counter = MetricManager.getCounterMetric("org.one.FanOut.count");
+    counter.markEvent();
+    counter.collectStatistics(metrics);
+    return new ReportMetrics(new HeaderInfo(), System.currentTimeMillis(), metrics);
+  }
+
+  private static class RecordingSink implements BulkSink {
+
+    final List<ByteString> received = new CopyOnWriteArrayList<>();
+
+    final CountDownLatch release;
+
+    /**
+     * Permit per send started and per send completed.
+     */
+    final Semaphore started = new Semaphore(0);
+
+    final Semaphore sent = new Semaphore(0);
+
+    RecordingSink(CountDownLatch release) {
+      this.release = release;
+    }
+
+    @Override
+    public void send(ByteString bulk, MediaType contentType) {
+      started.release();
+      try {
+        release.await(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      received.add(bulk);
+      sent.release();
+    }
+  }
+
+  @Test
+  public void report_expect_sameContentToEachSink() {
+
+    RecordingSink one = new RecordingSink(new CountDownLatch(0));
+    RecordingSink two = new RecordingSink(new CountDownLatch(0));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    FanOutReporter reporter = new FanOutReporter(new ElasticReporterConfig(), one, two, new OutputStreamSink(out));
+    reporter.report(reportMetrics());
+    reporter.cleanup();
+
+    assertThat(one.received).hasSize(1);
+    assertThat(two.received).hasSize(1);
+    // written once and shared
+    assertThat(two.received.get(0)).isSameAs(one.received.get(0));
+    assertThat(new String(out.toByteArray(), StandardCharsets.UTF_8)).isEqualTo(one.received.get(0).utf8());
+  }
+
+  @Test
+  public void report_slowSink_expect_otherSinksNotBlocked() throws InterruptedException {
+
+    CountDownLatch release = new CountDownLatch(1);
+    RecordingSink slow = new RecordingSink(release);
+    RecordingSink fast = new RecordingSink(new CountDownLatch(0));
+
+    FanOutReporter reporter = new FanOutReporter(new ElasticReporterConfig().setSinkMaxPending(1), slow, fast);
+    reporter.report(reportMetrics());
+    // the slow sink is sending the first report before the next reports are made
+    assertThat(slow.started.tryAcquire(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(fast.sent.tryAcquire(5, TimeUnit.SECONDS)).isTrue();
+    for (int report = 2; report <= 3; report++) {
+      reporter.report(reportMetrics());
+      assertThat(fast.sent.tryAcquire(5, TimeUnit.SECONDS)).isTrue();
+    }
+    assertThat(fast.received).hasSize(3);
+    assertThat(slow.received).isEmpty();
+
+    release.countDown();
+    reporter.cleanup();
+    // one sending and one pending, the third report was dropped
+    assertThat(slow.received).hasSize(2);
+  }
+}
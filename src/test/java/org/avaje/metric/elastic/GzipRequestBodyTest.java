@@ -0,0 +1,32 @@
+package org.avaje.metric.elastic;
+
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.GzipSource;
+import okio.Okio;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class GzipRequestBodyTest {
+
+  @Test
+  public void writeTo_expect_gzipCompressed() throws Exception {
+
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      sb.append("{\"index\":{\"_type\":\"metric\",\"_index\":\"metric-2017.01.01\"}}\n{\"ts\":1,\"app\":\"test\"}\n");
+    }
+    String content = sb.toString();
+
+    RequestBody body = new GzipRequestBody(RequestBody.create(BulkRequestBody.JSON, content), 9);
+    assertThat(body.contentLength()).isEqualTo(-1L);
+
+    Buffer compressed = new Buffer();
+    body.writeTo(compressed);
+    assertThat(compressed.size()).isLessThan(content.length() / 10);
+
+    String uncompressed = Okio.buffer(new GzipSource(compressed)).readUtf8();
+    assertThat(uncompressed).isEqualTo(content);
+  }
+}
@@ -1,17 +1,32 @@
 package org.avaje.metric.elastic;
 
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.ByteString;
+import okio.GzipSource;
+import okio.Okio;
 import org.avaje.metric.BucketTimedMetric;
 import org.avaje.metric.Metric;
 import org.avaje.metric.MetricManager;
+import org.avaje.metric.ValueMetric;
 import org.avaje.metric.TimedMetric;
 import org.avaje.metric.core.DefaultTimedMetric;
 import org.avaje.metric.report.HeaderInfo;
 import org.avaje.metric.report.ReportMetrics;
 import org.testng.annotations.Test;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
 
 public class HttpElasticReporterTest {
 
@@ -30,6 +45,368 @@ public class HttpElasticReporterTest {
     reporter.report(metrics());
   }
 
+  @Test
+  public void report_sendAsync() throws IOException, InterruptedException {
+
+    MockWebServer server = new MockWebServer();
+    server.enqueue(new MockResponse().setResponseCode(200).setBody("{\"errors\":false}"));
+    server.start();
+
+    ElasticReporterConfig config = new ElasticReporterConfig()
+        .setUrl(server.url("").toString())
+        .setDirectory("target/queued-metrics-async")
+        .setSendAsync(true)
+        .addTag("app", "test-app");
+    config.setTemplateName(null);
+
+    ElasticHttpReporter reporter = new ElasticHttpReporter(config);
+    reporter.report(metrics());
+    reporter.cleanup();
+
+    RecordedRequest request = server.takeRequest(5, TimeUnit.SECONDS);
+    assertThat(request.getPath()).isEqualTo("/_bulk");
+    assertThat(request.getBody().readUtf8()).contains("\"type\":\"timed\"");
+
+    server.shutdown();
+  }
+
+
+  @Test
+  public void report_compression_expect_gzipBodyAndQueued() throws IOException, InterruptedException {
+
+    MockWebServer server = new MockWebServer();
+    server.enqueue(new MockResponse().setResponseCode(500));
+    server.enqueue(new MockResponse().setResponseCode(200).setBody("{\"errors\":false}"));
+    server.enqueue(new MockResponse().setResponseCode(200).setBody("{\"errors\":false}"));
+    server.start();
+
+    File directory = new File("target/queued-metrics-gzip");
+    deleteFiles(directory);
+    ElasticReporterConfig config = new ElasticReporterConfig()
+        .setUrl(server.url("").toString())
+        .setDirectory(directory.getPath())
+        .setCompression(true)
+        .addTag("app", "test-app");
+    config.setTemplateName(null);
+
+    ElasticHttpReporter reporter = new ElasticHttpReporter(config);
+
+    // fails so queued compressed
+    reporter.report(metrics());
+    File[] segments = directory.listFiles((dir, name) -> name.endsWith(".seg"));
+    assertThat(segments).hasSize(1);
+    assertThat(segments[0].length()).isGreaterThan(0);
+
+    // succeeds and then sends the queued metrics
+    reporter.report(metrics());
+
+    server.takeRequest(5, TimeUnit.SECONDS);
+    RecordedRequest request = server.takeRequest(5, TimeUnit.SECONDS);
+    assertThat(request.getHeader("Content-Encoding")).isEqualTo("gzip");
+    assertThat(Okio.buffer(new GzipSource(request.getBody())).readUtf8()).contains("\"type\":\"timed\"");
+
+    RecordedRequest queuedRequest = server.takeRequest(5, TimeUnit.SECONDS);
+    assertThat(queuedRequest.getHeader("Content-Encoding")).isEqualTo("gzip");
+    assertThat(Okio.buffer(new GzipSource(queuedRequest.getBody())).readUtf8()).contains("\"type\":\"timed\"");
+    reporter.cleanup();
+    assertThat(segments[0].length()).isEqualTo(0);
+
+    server.shutdown();
+  }
+
+  @Test
+  public void report_expect_previouslyQueuedFileSent() throws IOException, InterruptedException {
+
+    MockWebServer server = new MockWebServer();
+    server.enqueue(new MockResponse().setResponseCode(200).setBody("{\"errors\":false}"));
+    server.enqueue(new MockResponse().setResponseCode(200).setBody("{\"errors\":false}"));
+    server.start();
+
+    File directory = new File("target/queued-metrics-migrate");
+    deleteFiles(directory);
+    directory.mkdirs();
+    File legacy = new File(directory, "metrics-1.metric");
+    Files.write(legacy.toPath(), "{\"index\":{}}\n{\"legacy\":1}\n".getBytes(StandardCharsets.UTF_8));
+
+    ElasticReporterConfig config = new ElasticReporterConfig()
+        .setUrl(server.url("").toString())
+        .setDirectory(directory.getPath());
+    config.setTemplateName(null);
+
+    ElasticHttpReporter reporter = new ElasticHttpReporter(config);
+    assertThat(legacy.exists()).isFalse();
+
+    reporter.report(metrics());
+
+    server.takeRequest(5, TimeUnit.SECONDS);
+    RecordedRequest queuedRequest = server.takeRequest(5, TimeUnit.SECONDS);
+    assertThat(queuedRequest.getBody().readUtf8()).isEqualTo("{\"index\":{}}\n{\"legacy\":1}\n");
+
+    server.shutdown();
+  }
+
+  @Test
+  public void report_nodeDown_expect_sentToOtherNode() throws IOException, InterruptedException {
+
+    MockWebServer down = new MockWebServer();
+    down.start();
+    String downUrl = down.url("").toString();
+    down.shutdown();
+
+    MockWebServer server = new MockWebServer();
+    server.enqueue(new MockResponse().setResponseCode(200).setBody("{\"errors\":false}"));
+    server.start();
+
+    File directory = new File("target/queued-metrics-nodes");
+    deleteFiles(directory);
+    ElasticReporterConfig config = new ElasticReporterConfig()
+        .setUrls(Arrays.asList(downUrl, server.url("").toString()))
+        .setDirectory(directory.getPath());
+    config.setTemplateName(null);
+
+    ElasticHttpReporter reporter = new ElasticHttpReporter(config);
+    reporter.report(metrics());
+
+    RecordedRequest request = server.takeRequest(5, TimeUnit.SECONDS);
+    assertThat(request.getPath()).isEqualTo("/_bulk");
+    File[] segments = directory.listFiles((dir, name) -> name.endsWith(".seg"));
+    assertThat(segments[0].length()).isEqualTo(0);
+
+    server.shutdown();
+  }
+
+  @Test
+  public void report_suppressUnchanged_expect_queuedWithDocumentsAndEmptyNotSent() throws IOException, InterruptedException {
+
+    MockWebServer server = new MockWebServer();
+    server.enqueue(new MockResponse().setResponseCode(500));
+    server.start();
+
+    File directory = new File("target/queued-metrics-suppress");
+    deleteFiles(directory);
+    ElasticReporterConfig config = new ElasticReporterConfig()
+        .setUrl(server.url("").toString())
+        .setDirectory(directory.getPath())
+        .setSuppressUnchanged(true);
+    config.setTemplateName(null);
+
+    List<Metric> metrics = new ArrayList<>();
+    metrics.add(MetricManager.register(MetricManager.name("org.test.Suppress.gauge"), () -> 42d));
+    ReportMetrics reportMetrics = new ReportMetrics(new HeaderInfo(), System.currentTimeMillis(), metrics);
+
+    ElasticHttpReporter reporter = new ElasticHttpReporter(config);
+
+    // fails so queued with the same documents as sent
+    reporter.report(reportMetrics);
+    RecordedRequest request = server.takeRequest(5, TimeUnit.SECONDS);
+    assertThat(request.getBody().readUtf8()).contains("org.test.Suppress.gauge");
+    File[] segments = directory.listFiles((dir, name) -> name.endsWith(".seg"));
+    assertThat(new String(Files.readAllBytes(segments[0].toPath()), StandardCharsets.UTF_8)).contains("org.test.Suppress.gauge");
+
+    // unchanged so suppressed and nothing sent
+    reporter.report(reportMetrics);
+    assertThat(server.getRequestCount()).isEqualTo(1);
+
+    server.shutdown();
+  }
+
+  @Test
+  public void report_rollupWithNodeDown_expect_rollupSentToOtherNode() throws IOException, InterruptedException {
+
+    MockWebServer down = new MockWebServer();
+    down.start();
+    String downUrl = down.url("").toString();
+    down.shutdown();
+
+    MockWebServer server = new MockWebServer();
+    server.enqueue(new MockResponse().setResponseCode(200).setBody("{\"errors\":false}"));
+    server.start();
+
+    File directory = new File("target/queued-metrics-rollup");
+    deleteFiles(directory);
+    ElasticReporterConfig config = new ElasticReporterConfig()
+        .setUrls(Arrays.asList(downUrl, server.url("").toString()))
+        .setDirectory(directory.getPath())
+        .addRollup("org.test.Rollup", 2);
+    config.setTemplateName(null);
+
+    List<Metric> metrics = new ArrayList<>();
+    metrics.add(MetricManager.register(MetricManager.name("org.test.Rollup.gauge"), () -> 7d));
+    ReportMetrics reportMetrics = new ReportMetrics(new HeaderInfo(), System.currentTimeMillis(), metrics);
+
+    ElasticHttpReporter reporter = new ElasticHttpReporter(config);
+    // accumulated only so nothing sent
+    reporter.report(reportMetrics);
+    assertThat(server.getRequestCount()).isEqualTo(0);
+
+    // the rolled up document written once and sent to the other node
+    reporter.report(reportMetrics);
+    RecordedRequest request = server.takeRequest(5, TimeUnit.SECONDS);
+    assertThat(request.getBody().readUtf8()).contains("org.test.Rollup.gauge");
+
+    server.shutdown();
+  }
+
+  @Test
+  public void report_tooLarge_expect_splitAndQueuedPartsSent() throws IOException, InterruptedException {
+
+    MockWebServer server = new MockWebServer();
+    server.enqueue(new MockResponse().setResponseCode(413));
+    server.enqueue(new MockResponse().setResponseCode(200).setBody("{\"errors\":false}"));
+    server.enqueue(new MockResponse().setResponseCode(200).setBody("{\"errors\":false}"));
+    server.start();
+
+    File directory = new File("target/queued-metrics-split");
+    deleteFiles(directory);
+    ElasticReporterConfig config = new ElasticReporterConfig()
+        .setUrl(server.url("").toString())
+        .setDirectory(directory.getPath());
+    config.setTemplateName(null);
+
+    ElasticHttpReporter reporter = new ElasticHttpReporter(config);
+    reporter.report(metrics());
+
+    String whole = server.takeRequest(5, TimeUnit.SECONDS).getBody().readUtf8();
+    String first = server.takeRequest(5, TimeUnit.SECONDS).getBody().readUtf8();
+    String second = server.takeRequest(5, TimeUnit.SECONDS).getBody().readUtf8();
+    assertThat(first.length()).isLessThan(whole.length());
+    assertThat(first + second).isEqualTo(whole);
+
+    server.shutdown();
+  }
+
+  @Test
+  public void send_maxBulkDocumentsAsync_expect_splitAndSentAsync() throws IOException, InterruptedException {
+
+    MockWebServer server = new MockWebServer();
+    server.enqueue(new MockResponse().setResponseCode(200).setBody("{\"errors\":false}"));
+    server.enqueue(new MockResponse().setResponseCode(200).setBody("{\"errors\":false}"));
+    server.start();
+
+    ElasticReporterConfig config = new ElasticReporterConfig()
+        .setUrl(server.url("").toString())
+        .setDirectory("target/queued-metrics-send-split")
+        .setSendAsync(true)
+        .setMaxBulkDocuments(1);
+    config.setTemplateName(null);
+
+    String first = "{\"index\":{}}\n{\"val\":1}\n";
+    String second = "{\"index\":{}}\n{\"val\":2}\n";
+    ElasticHttpReporter reporter = new ElasticHttpReporter(config);
+    reporter.send(ByteString.encodeUtf8(first + second), BulkRequestBody.JSON);
+    reporter.cleanup();
+
+    List<String> bodies = new ArrayList<>();
+    bodies.add(server.takeRequest(5, TimeUnit.SECONDS).getBody().readUtf8());
+    bodies.add(server.takeRequest(5, TimeUnit.SECONDS).getBody().readUtf8());
+    assertThat(bodies).contains(first);
+    assertThat(bodies).contains(second);
+
+    server.shutdown();
+  }
+
+  @Test
+  public void report_templateNotApplied_expect_queuedAndSentOnceApplied() throws IOException, InterruptedException {
+
+    MockWebServer server = new MockWebServer();
+    server.enqueue(new MockResponse().setResponseCode(500));
+    server.enqueue(new MockResponse().setResponseCode(200).setBody("{\"metric-1\":{\"order\":1,\"version\":1}}"));
+    server.enqueue(new MockResponse().setResponseCode(200).setBody("{\"errors\":false}"));
+    server.start();
+
+    File directory = new File("target/queued-metrics-template");
+    deleteFiles(directory);
+    ElasticReporterConfig config = new ElasticReporterConfig()
+        .setUrl(server.url("").toString())
+        .setDirectory(directory.getPath())
+        .setBackoffInitial(1);
+
+    ElasticHttpReporter reporter = new ElasticHttpReporter(config);
+    reporter.report(metrics());
+
+    // held until the template is in place (retried after the 500)
+    File[] segments = directory.listFiles((dir, name) -> name.endsWith(".seg"));
+    assertThat(segments[0].length()).isGreaterThan(0);
+    assertThat(server.takeRequest(5, TimeUnit.SECONDS).getPath()).isEqualTo("/_template/metric-1");
+    assertThat(server.takeRequest(5, TimeUnit.SECONDS).getPath()).isEqualTo("/_template/metric-1");
+
+    RecordedRequest request = server.takeRequest(5, TimeUnit.SECONDS);
+    assertThat(request.getPath()).isEqualTo("/_bulk");
+    assertThat(request.getBody().readUtf8()).contains("org.test.BucketTimedFoo.doStuff");
+
+    server.shutdown();
+  }
+
+  @Test
+  public void report_templateForbidden_expect_bulkStillSent() throws IOException, InterruptedException {
+
+    MockWebServer server = new MockWebServer();
+    server.enqueue(new MockResponse().setResponseCode(404));
+    server.enqueue(new MockResponse().setResponseCode(403));
+    server.enqueue(new MockResponse().setResponseCode(200).setBody("{\"errors\":false}"));
+    server.start();
+
+    File directory = new File("target/queued-metrics-template-forbidden");
+    deleteFiles(directory);
+    ElasticReporterConfig config = new ElasticReporterConfig()
+        .setUrl(server.url("").toString())
+        .setDirectory(directory.getPath());
+
+    ElasticHttpReporter reporter = new ElasticHttpReporter(config);
+    reporter.report(metrics());
+
+    assertThat(server.takeRequest(5, TimeUnit.SECONDS).getMethod()).isEqualTo("GET");
+    assertThat(server.takeRequest(5, TimeUnit.SECONDS).getMethod()).isEqualTo("PUT");
+    // template given up on so the metrics are sent without it
+    RecordedRequest request = server.takeRequest(5, TimeUnit.SECONDS);
+    assertThat(request.getPath()).isEqualTo("/_bulk");
+    assertThat(request.getBody().readUtf8()).contains("org.test.BucketTimedFoo.doStuff");
+
+    server.shutdown();
+  }
+
+  @Test
+  public void report_reporterMetricsWithNodeDown_expect_writeMeasuredOnce() throws IOException, InterruptedException {
+
+    MockWebServer down = new MockWebServer();
+    down.start();
+    String downUrl = down.url("").toString();
+    down.shutdown();
+
+    MockWebServer server = new MockWebServer();
+    server.enqueue(new MockResponse().setResponseCode(200).setBody("{\"errors\":false}"));
+    server.start();
+
+    File directory = new File("target/queued-metrics-measured");
+    deleteFiles(directory);
+    ElasticReporterConfig config = new ElasticReporterConfig()
+        .setUrls(Arrays.asList(downUrl, server.url("").toString()))
+        .setDirectory(directory.getPath())
+        .setReporterMetrics(true)
+        .setReporterMetricsPrefix("test.measured");
+    config.setTemplateName(null);
+
+    ElasticHttpReporter reporter = new ElasticHttpReporter(config);
+    reporter.report(metrics());
+    server.takeRequest(5, TimeUnit.SECONDS);
+
+    // written once although sent to two nodes
+    ValueMetric bytes = MetricManager.getValueMetric("test.measured.bytes");
+    List<Metric> collected = new ArrayList<>();
+    bytes.collectStatistics(collected);
+    assertThat(bytes.getCollectedStatistics().getCount()).isEqualTo(1);
+
+    server.shutdown();
+  }
+
+  private void deleteFiles(File directory) {
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+  }
 
   private ReportMetrics metrics() {
 
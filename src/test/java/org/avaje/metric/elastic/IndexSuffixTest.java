@@ -0,0 +1,59 @@
+package org.avaje.metric.elastic;
+
+import org.testng.annotations.Test;
+
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class IndexSuffixTest {
+
+  private static long utc(int year, int month, int day, int hour, int minute) {
+    return ZonedDateTime.of(year, month, day, hour, minute, 0, 0, ZoneOffset.UTC).toInstant().toEpochMilli();
+  }
+
+  @Test
+  public void suffix_daily_expect_utcDay() {
+
+    IndexSuffix suffix = new IndexSuffix(ElasticReporterConfig.IndexPeriod.DAILY, null, ZoneOffset.UTC);
+
+    String first = suffix.suffix(utc(2017, 1, 31, 0, 0));
+    assertThat(first).isEqualTo("2017.01.31");
+    // same period so the same instance
+    assertThat(suffix.suffix(utc(2017, 1, 31, 23, 59))).isSameAs(first);
+    assertThat(suffix.suffix(utc(2017, 2, 1, 0, 0))).isEqualTo("2017.02.01");
+    // time going backwards
+    assertThat(suffix.suffix(utc(2017, 1, 31, 12, 0))).isEqualTo("2017.01.31");
+  }
+
+  @Test
+  public void suffix_hourly_expect_hour() {
+
+    IndexSuffix suffix = new IndexSuffix(ElasticReporterConfig.IndexPeriod.HOURLY, null, ZoneOffset.UTC);
+
+    assertThat(suffix.suffix(utc(2017, 1, 31, 23, 10))).isEqualTo("2017.01.31.23");
+    assertThat(suffix.suffix(utc(2017, 2, 1, 0, 10))).isEqualTo("2017.02.01.00");
+  }
+
+  @Test
+  public void suffix_weekly_expect_isoWeek() {
+
+    IndexSuffix suffix = new IndexSuffix(ElasticReporterConfig.IndexPeriod.WEEKLY, null, ZoneOffset.UTC);
+
+    // Sunday 1st Jan 2017 is in week 52 of 2016
+    assertThat(suffix.suffix(utc(2017, 1, 1, 12, 0))).isEqualTo("2016.w52");
+    assertThat(suffix.suffix(utc(2017, 1, 2, 0, 0))).isEqualTo("2017.w01");
+  }
+
+  @Test
+  public void suffix_zoneAndPattern_expect_applied() {
+
+    IndexSuffix suffix = new IndexSuffix(ElasticReporterConfig.IndexPeriod.DAILY, "yyyyMMdd", ZoneId.of("Pacific/Auckland"));
+
+    // 13:00 NZDT on the 1st February
+    assertThat(suffix.suffix(utc(2017, 2, 1, 0, 0))).isEqualTo("20170201");
+    assertThat(suffix.suffix(utc(2017, 1, 31, 10, 59))).isEqualTo("20170131");
+  }
+}
@@ -0,0 +1,84 @@
+package org.avaje.metric.elastic;
+
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LastValueCacheTest {
+
+  @Test
+  public void unchanged_expect_suppressedUntilHeartbeat() {
+
+    LastValueCache cache = new LastValueCache(2);
+    Object key = new Object();
+
+    cache.nextCycle();
+    assertThat(cache.unchanged(key, 10)).isFalse();
+    cache.nextCycle();
+    assertThat(cache.unchanged(key, 10)).isTrue();
+    cache.nextCycle();
+    assertThat(cache.unchanged(key, 10)).isFalse();
+    cache.nextCycle();
+    assertThat(cache.unchanged(key, 11)).isFalse();
+  }
+
+  @Test
+  public void idle_expect_nonZeroAlwaysReported() {
+
+    LastValueCache cache = new LastValueCache(10);
+    Object key = new Object();
+
+    cache.nextCycle();
+    assertThat(cache.idle(key, 3)).isFalse();
+    cache.nextCycle();
+    assertThat(cache.idle(key, 3)).isFalse();
+    // first zero reported, then suppressed
+    cache.nextCycle();
+    assertThat(cache.idle(key, 0)).isFalse();
+    cache.nextCycle();
+    assertThat(cache.idle(key, 0)).isTrue();
+  }
+
+  @Test
+  public void unchanged_manyKeys_expect_resized() {
+
+    LastValueCache cache = new LastValueCache(10);
+    Object[] keys = new Object[1000];
+    cache.nextCycle();
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = new Object();
+      assertThat(cache.unchanged(keys[i], i)).isFalse();
+    }
+    cache.nextCycle();
+    for (int i = 0; i < keys.length; i++) {
+      assertThat(cache.unchanged(keys[i], i)).isTrue();
+    }
+  }
+
+  @Test
+  public void nextCycle_notSeen_expect_expired() {
+
+    LastValueCache cache = new LastValueCache(2);
+    Object kept = new Object();
+    Object[] removed = new Object[1000];
+    cache.nextCycle();
+    for (int i = 0; i < removed.length; i++) {
+      removed[i] = new Object();
+      cache.unchanged(removed[i], i);
+    }
+    assertThat(cache.size()).isEqualTo(1000);
+
+    // only the kept metric is seen for the following cycles
+    for (int i = 0; i < 19; i++) {
+      cache.nextCycle();
+      cache.unchanged(kept, 1);
+    }
+    assertThat(cache.size()).isEqualTo(1);
+
+    // kept value still known so suppressed
+    cache.nextCycle();
+    assertThat(cache.unchanged(kept, 1)).isTrue();
+    // expired metric treated as new
+    assertThat(cache.unchanged(removed[0], 0)).isFalse();
+  }
+}
@@ -0,0 +1,107 @@
+package org.avaje.metric.elastic;
+
+import org.avaje.metric.Metric;
+import org.avaje.metric.MetricManager;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MetricFilterTest {
+
+  private static final List<String> NONE = Collections.emptyList();
+
+  private static Metric gauge(String name) {
+    return MetricManager.register(MetricManager.name(name), () -> 1d);
+  }
+
+  @Test
+  public void accept_includeExclude() {
+
+    MetricFilter filter = new MetricFilter(Arrays.asList("org.web.*", "org.db.*"), Arrays.asList("org.web.*.debug"), NONE, 0, new HashMap<>());
+    filter.nextCycle();
+
+    assertThat(filter.accept(gauge("org.web.Filter.one"))).isTrue();
+    assertThat(filter.accept(gauge("org.db.Filter.one"))).isTrue();
+    assertThat(filter.accept(gauge("org.web.Filter.debug"))).isFalse();
+    assertThat(filter.accept(gauge("org.other.Filter.one"))).isFalse();
+    assertThat(filter.dropped(MetricFilter.EXCLUDED)).isEqualTo(2);
+  }
+
+  @Test
+  public void accept_maxNames_expect_sameNamesEachCycleAndAllowedNotCounted() {
+
+    MetricFilter filter = new MetricFilter(NONE, NONE, Arrays.asList("org.keep."), 2, new HashMap<>());
+    List<Metric> metrics = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      metrics.add(gauge("org.max.Filter.g" + i));
+    }
+    for (int cycle = 0; cycle < 3; cycle++) {
+      filter.nextCycle();
+      assertThat(filter.accept(gauge("org.keep.Filter.g"))).isTrue();
+      assertThat(filter.accept(metrics.get(4))).isTrue();
+      assertThat(filter.accept(metrics.get(0))).isTrue();
+      assertThat(filter.accept(metrics.get(1))).isFalse();
+      assertThat(filter.accept(metrics.get(2))).isFalse();
+      assertThat(filter.dropped(MetricFilter.OVER_MAX)).isEqualTo(2);
+    }
+  }
+
+  @Test
+  public void accept_sampling_expect_fractionOfType() {
+
+    Map<String, Double> sampling = new HashMap<>();
+    sampling.put("gauge", 0.25d);
+    MetricFilter filter = new MetricFilter(NONE, NONE, NONE, 0, sampling);
+    filter.nextCycle();
+
+    int accepted = 0;
+    for (int i = 0; i < 1000; i++) {
+      if (filter.accept(gauge("org.sample.Filter.g" + i))) {
+        accepted++;
+      }
+    }
+    assertThat(accepted).isBetween(180, 320);
+    assertThat(filter.dropped(MetricFilter.SAMPLED)).isEqualTo(1000 - accepted);
+    // counters not sampled
+    assertThat(filter.accept(MetricManager.getCounterMetric("org.sample.Filter.count"))).isTrue();
+  }
+
+  @Test
+  public void isAllowed() {
+
+    MetricFilter filter = new MetricFilter(NONE, NONE, Arrays.asList("org.keep.", "app", "org.b"), 0, new HashMap<>());
+
+    assertThat(filter.isAllowed("org.keep.one")).isTrue();
+    assertThat(filter.isAllowed("org.keep.")).isTrue();
+    assertThat(filter.isAllowed("apple")).isTrue();
+    assertThat(filter.isAllowed("org.bar")).isTrue();
+    assertThat(filter.isAllowed("org.keeper")).isFalse();
+    assertThat(filter.isAllowed("org.a")).isFalse();
+    assertThat(filter.isAllowed("ap")).isFalse();
+  }
+
+  @Test
+  public void hyperLogLog_estimate() {
+
+    MetricFilter.HyperLogLog names = new MetricFilter.HyperLogLog();
+    for (int i = 0; i < 100_000; i++) {
+      names.add(MetricFilter.hash("org.url" + i + ".timer"));
+      // duplicates not counted
+      names.add(MetricFilter.hash("org.url" + i + ".timer"));
+    }
+    assertThat(names.estimate()).isBetween(95_000L, 105_000L);
+
+    names.clear();
+    for (int i = 0; i < 50; i++) {
+      names.add(MetricFilter.hash("n" + i));
+    }
+    assertThat(names.estimate()).isBetween(48L, 52L);
+  }
+}
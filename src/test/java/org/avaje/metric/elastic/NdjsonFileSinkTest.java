@@ -0,0 +1,77 @@
+package org.avaje.metric.elastic;
+
+import okio.ByteString;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NdjsonFileSinkTest {
+
+  private static String read(File file) throws IOException {
+    return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+  }
+
+  private static File file(String dir) {
+    File directory = new File(dir);
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    return new File(directory, "metrics.ndjson");
+  }
+
+  @Test
+  public void send_expect_appendedAndRolled() throws IOException {
+
+    File file = file("target/ndjson-sink");
+    NdjsonFileSink sink = new NdjsonFileSink(file, 20, 2);
+
+    sink.send(ByteString.encodeUtf8("{\"a\":1}\n"), BulkRequestBody.JSON);
+    sink.send(ByteString.encodeUtf8("{\"a\":2}\n"), BulkRequestBody.JSON);
+    assertThat(read(file)).isEqualTo("{\"a\":1}\n{\"a\":2}\n");
+
+    sink.send(ByteString.encodeUtf8("{\"a\":3}\n"), BulkRequestBody.JSON);
+    sink.send(ByteString.encodeUtf8("{\"a\":4}\n{\"a\":5}\n"), BulkRequestBody.JSON);
+    sink.send(ByteString.encodeUtf8("{\"a\":6}\n"), BulkRequestBody.JSON);
+
+    assertThat(read(file)).isEqualTo("{\"a\":6}\n");
+    assertThat(read(new File(file.getPath() + ".1"))).isEqualTo("{\"a\":4}\n{\"a\":5}\n");
+    assertThat(read(new File(file.getPath() + ".2"))).isEqualTo("{\"a\":3}\n");
+    assertThat(new File(file.getPath() + ".3")).doesNotExist();
+  }
+
+  @Test
+  public void send_smile_expect_skipped() throws IOException {
+
+    File file = file("target/ndjson-sink-smile");
+    NdjsonFileSink sink = new NdjsonFileSink(file, 1000, 1);
+    sink.send(ByteString.of((byte) ':', (byte) ')'), BulkRequestBody.SMILE);
+
+    assertThat(file).doesNotExist();
+  }
+
+  @Test
+  public void send_staged_expect_appended() throws IOException {
+
+    File file = file("target/ndjson-sink-staged");
+    NdjsonFileSink sink = new NdjsonFileSink(file, 1000, 1);
+
+    ByteBuffer staged = ByteBuffer.allocateDirect(64);
+    staged.put("{\"a\":1}\n".getBytes(StandardCharsets.UTF_8));
+    staged.flip();
+    sink.send(staged, BulkRequestBody.JSON);
+    sink.send(staged, BulkRequestBody.JSON);
+
+    assertThat(read(file)).isEqualTo("{\"a\":1}\n{\"a\":1}\n");
+    // not consumed
+    assertThat(staged.remaining()).isEqualTo(8);
+  }
+}
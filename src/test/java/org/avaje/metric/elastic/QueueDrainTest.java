@@ -0,0 +1,101 @@
+package org.avaje.metric.elastic;
+
+import okio.Buffer;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class QueueDrainTest {
+
+  private SegmentedQueue queue(String name, int records) throws IOException {
+    File directory = new File("target/queue-drain-" + name);
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.mkdirs();
+    SegmentedQueue queue = new SegmentedQueue(directory, 64, 1024 * 1024, false, 6);
+    for (int i = 0; i < records; i++) {
+      queue.append(BulkRequestBody.of(new Buffer().writeUtf8("record" + i + "\n")));
+    }
+    return queue;
+  }
+
+  private static String content(SegmentedQueue.Record record) {
+    try {
+      Buffer buffer = new Buffer();
+      record.body().writeTo(buffer);
+      return buffer.readUtf8();
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Test
+  public void request_expect_allSentInParallel() throws Exception {
+
+    SegmentedQueue queue = queue("all", 10);
+    List<String> sent = new CopyOnWriteArrayList<>();
+    QueueDrain drain = new QueueDrain(queue, record -> sent.add(content(record)), 3, 0, 0, 0);
+
+    drain.request();
+    drain.await(5, TimeUnit.SECONDS);
+
+    assertThat(sent).hasSize(10);
+    assertThat(drain.sentRecords()).isEqualTo(10);
+    assertThat(queue.next()).isNull();
+    queue.close();
+  }
+
+  @Test
+  public void shutdown_expect_furtherRequestsIgnored() throws Exception {
+
+    SegmentedQueue queue = queue("shutdown", 3);
+    List<String> sent = new CopyOnWriteArrayList<>();
+    QueueDrain drain = new QueueDrain(queue, record -> sent.add(content(record)), 2, 0, 0, 0);
+
+    drain.shutdown();
+    drain.request();
+    drain.await(5, TimeUnit.SECONDS);
+
+    assertThat(sent).isEmpty();
+    assertThat(queue.next()).isNotNull();
+    queue.close();
+  }
+
+  @Test
+  public void request_maxRecords_expect_remainingLeftQueued() throws Exception {
+
+    SegmentedQueue queue = queue("max", 5);
+    QueueDrain drain = new QueueDrain(queue, record -> true, 2, 3, 0, 0);
+
+    drain.request();
+    drain.await(5, TimeUnit.SECONDS);
+
+    assertThat(drain.sentRecords()).isEqualTo(3);
+    assertThat(content(queue.next())).isEqualTo("record3\n");
+    queue.close();
+  }
+
+  @Test
+  public void request_failure_expect_committedUpToFailure() throws Exception {
+
+    SegmentedQueue queue = queue("fail", 5);
+    QueueDrain drain = new QueueDrain(queue, record -> !content(record).equals("record1\n"), 3, 0, 0, 0);
+
+    drain.request();
+    drain.await(5, TimeUnit.SECONDS);
+
+    assertThat(drain.sentRecords()).isEqualTo(1);
+    assertThat(content(queue.next())).isEqualTo("record1\n");
+    queue.close();
+  }
+}
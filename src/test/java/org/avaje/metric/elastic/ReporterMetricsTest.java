@@ -0,0 +1,59 @@
+package org.avaje.metric.elastic;
+
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ReporterMetricsTest {
+
+  @Test
+  public void disabled_expect_noop() {
+
+    ReporterMetrics metrics = new ReporterMetrics(new ElasticReporterConfig());
+    assertThat(metrics.isEnabled()).isFalse();
+    assertThat(metrics.start()).isEqualTo(0);
+
+    metrics.written(0, 100);
+    metrics.sent(0, true);
+    metrics.failure(new ConnectException());
+    metrics.failureStatus();
+    metrics.rejected(2);
+    metrics.circuitOpen();
+    metrics.drained(100);
+  }
+
+  @Test
+  public void enabled_expect_recorded() throws IOException {
+
+    ElasticReporterConfig config = new ElasticReporterConfig()
+      .setReporterMetrics(true)
+      .setReporterMetricsPrefix("test.elastic");
+
+    ReporterMetrics metrics = new ReporterMetrics(config);
+    assertThat(metrics.isEnabled()).isTrue();
+
+    long start = metrics.start();
+    assertThat(start).isNotEqualTo(0);
+
+    metrics.written(start, 100);
+    metrics.sent(start, false);
+    metrics.failure(new ConnectException());
+    metrics.failure(new SocketTimeoutException());
+    metrics.failure(new IOException());
+    metrics.failureStatus();
+    metrics.rejected(2);
+    metrics.circuitOpen();
+    metrics.drained(100);
+
+    File directory = new File("target/reporter-metrics");
+    directory.mkdirs();
+    SegmentedQueue queue = new SegmentedQueue(directory, 1024, 1024 * 1024, false, 6);
+    metrics.register(queue);
+    queue.close();
+  }
+}
@@ -0,0 +1,112 @@
+package org.avaje.metric.elastic;
+
+import org.avaje.metric.CounterMetric;
+import org.avaje.metric.MetricManager;
+import org.testng.annotations.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RollupStoreTest {
+
+  private RollupStore store() {
+    Map<String, Integer> rules = new LinkedHashMap<>();
+    rules.put("org.rollup", 2);
+    rules.put("org.rollup.fast", 1);
+    return new RollupStore(rules);
+  }
+
+  private int slot(RollupStore store, Object metric) {
+    for (int slot = 0; slot < store.capacity(); slot++) {
+      if (store.metric(slot) == metric) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  @Test
+  public void addCounter_expect_accumulatedOverWindow() {
+
+    RollupStore store = store();
+    CounterMetric counter = MetricManager.getCounterMetric("org.rollup.Store.count");
+
+    store.nextCycle();
+    assertThat(store.addCounter(counter, 3, 2000)).isTrue();
+    int slot = slot(store, counter);
+    assertThat(store.due(slot)).isFalse();
+
+    store.nextCycle();
+    assertThat(store.addCounter(counter, 4, 1000)).isTrue();
+    assertThat(store.due(slot)).isTrue();
+    assertThat(store.type(slot)).isEqualTo(RollupStore.COUNTER);
+    assertThat(store.get(slot, RollupStore.NORM_COUNT)).isEqualTo(7);
+    assertThat(store.get(slot, RollupStore.NORM_MAX)).isEqualTo(4);
+    assertThat(store.get(slot, RollupStore.NORM_START)).isEqualTo(1000);
+
+    store.reset(slot);
+    assertThat(store.due(slot)).isFalse();
+    assertThat(store.get(slot, RollupStore.NORM_COUNT)).isEqualTo(0);
+  }
+
+  @Test
+  public void addCounter_zeroCountFirst_expect_firstStartKept() {
+
+    RollupStore store = store();
+    CounterMetric counter = MetricManager.getCounterMetric("org.rollup.Store.zero");
+
+    store.nextCycle();
+    store.addCounter(counter, 0, 1000);
+    store.nextCycle();
+    store.addCounter(counter, 4, 2000);
+
+    int slot = slot(store, counter);
+    assertThat(store.due(slot)).isTrue();
+    assertThat(store.get(slot, RollupStore.NORM_COUNT)).isEqualTo(4);
+    assertThat(store.get(slot, RollupStore.NORM_START)).isEqualTo(1000);
+  }
+
+  @Test
+  public void add_longestPrefixWindowOne_expect_notRolledUp() {
+
+    RollupStore store = store();
+    store.nextCycle();
+    assertThat(store.addCounter(MetricManager.getCounterMetric("org.rollup.fast.count"), 1, 1000)).isFalse();
+    assertThat(store.addCounter(MetricManager.getCounterMetric("org.other.count"), 1, 1000)).isFalse();
+  }
+
+  @Test
+  public void add_notRolledUp_expect_notHeld() {
+
+    RollupStore store = store();
+    store.nextCycle();
+    store.addCounter(MetricManager.getCounterMetric("org.rollup.fast.held"), 1, 1000);
+    store.addCounter(MetricManager.getCounterMetric("org.other.held"), 1, 1000);
+    assertThat(store.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void nextCycle_notSeen_expect_expiredOnceWritten() {
+
+    RollupStore store = store();
+    CounterMetric counter = MetricManager.getCounterMetric("org.rollup.Store.expire");
+
+    store.nextCycle();
+    store.addCounter(counter, 3, 1000);
+    assertThat(store.size()).isEqualTo(1);
+
+    // not written so pending and held
+    for (int i = 0; i < 20; i++) {
+      store.nextCycle();
+    }
+    assertThat(store.size()).isEqualTo(1);
+
+    store.reset(slot(store, counter));
+    for (int i = 0; i < 10; i++) {
+      store.nextCycle();
+    }
+    assertThat(store.size()).isEqualTo(0);
+  }
+}
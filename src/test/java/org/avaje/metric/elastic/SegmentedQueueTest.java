@@ -0,0 +1,152 @@
+package org.avaje.metric.elastic;
+
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.GzipSource;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SegmentedQueueTest {
+
+  private File directory(String name) {
+    File directory = new File("target/segmented-queue-" + name);
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.mkdirs();
+    return directory;
+  }
+
+  private RequestBody body(String content) {
+    return BulkRequestBody.of(new Buffer().writeUtf8(content));
+  }
+
+  private String content(SegmentedQueue.Record record) throws IOException {
+    Buffer buffer = new Buffer();
+    record.body().writeTo(buffer);
+    assertThat(buffer.size()).isEqualTo(record.length());
+    if (record.isGzipped()) {
+      Buffer uncompressed = new Buffer();
+      uncompressed.writeAll(new GzipSource(buffer));
+      return uncompressed.readUtf8();
+    }
+    return buffer.readUtf8();
+  }
+
+  @Test
+  public void append_next_commit_expect_inOrder() throws IOException {
+
+    SegmentedQueue queue = new SegmentedQueue(directory("order"), 1024, 1024 * 1024, false, 6);
+    assertThat(queue.next()).isNull();
+
+    queue.append(body("one\n"));
+    queue.append(body("two\n"));
+
+    SegmentedQueue.Record first = queue.next();
+    assertThat(content(first)).isEqualTo("one\n");
+    // not committed so the same record again
+    assertThat(content(queue.next())).isEqualTo("one\n");
+    queue.commit(first);
+
+    SegmentedQueue.Record second = queue.next();
+    assertThat(content(second)).isEqualTo("two\n");
+    queue.commit(second);
+
+    assertThat(queue.next()).isNull();
+    assertThat(queue.size()).isEqualTo(0);
+    queue.close();
+  }
+
+  @Test
+  public void append_empty_expect_ignored() throws IOException {
+
+    SegmentedQueue queue = new SegmentedQueue(directory("empty"), 1024, 1024 * 1024, false, 6);
+    queue.append(body(""));
+
+    assertThat(queue.next()).isNull();
+    assertThat(queue.size()).isEqualTo(0);
+    queue.close();
+  }
+
+  @Test
+  public void append_compression_expect_gzipped() throws IOException {
+
+    SegmentedQueue queue = new SegmentedQueue(directory("gzip"), 1024, 1024 * 1024, true, 6);
+    queue.append(body("compressed\n"));
+
+    SegmentedQueue.Record record = queue.next();
+    assertThat(record.isGzipped()).isTrue();
+    assertThat(content(record)).isEqualTo("compressed\n");
+    queue.close();
+  }
+
+  @Test
+  public void reopen_expect_checkpointRestored() throws IOException {
+
+    File directory = directory("reopen");
+    SegmentedQueue queue = new SegmentedQueue(directory, 1024, 1024 * 1024, false, 6);
+    queue.append(body("one\n"));
+    queue.append(body("two\n"));
+    queue.commit(queue.next());
+    queue.close();
+
+    SegmentedQueue reopened = new SegmentedQueue(directory, 1024, 1024 * 1024, false, 6);
+    assertThat(content(reopened.next())).isEqualTo("two\n");
+    reopened.close();
+  }
+
+  @Test
+  public void append_segmentFull_expect_rolledAndSentSegmentDeleted() throws IOException {
+
+    File directory = directory("roll");
+    SegmentedQueue queue = new SegmentedQueue(directory, 10, 1024 * 1024, false, 6);
+    queue.append(body("one\n"));
+    queue.append(body("two\n"));
+    queue.append(body("three\n"));
+    assertThat(directory.listFiles((dir, name) -> name.endsWith(".seg"))).hasSize(3);
+
+    queue.commit(queue.next());
+    assertThat(content(queue.next())).isEqualTo("two\n");
+    assertThat(directory.listFiles((dir, name) -> name.endsWith(".seg"))).hasSize(2);
+    queue.close();
+  }
+
+  @Test
+  public void append_maxSize_expect_oldestDropped() throws IOException {
+
+    File directory = directory("evict");
+    SegmentedQueue queue = new SegmentedQueue(directory, 10, 50, false, 6);
+    queue.append(body("one\n"));
+    queue.append(body("two\n"));
+    queue.append(body("three\n"));
+
+    assertThat(queue.size()).isLessThanOrEqualTo(50);
+    assertThat(content(queue.next())).isEqualTo("two\n");
+    queue.close();
+  }
+
+  @Test
+  public void segments_oldestTimestamp() throws IOException {
+
+    SegmentedQueue queue = new SegmentedQueue(directory("oldest"), 10, 1024 * 1024, false, 6);
+    assertThat(queue.oldestTimestamp()).isEqualTo(0);
+
+    long before = System.currentTimeMillis();
+    queue.append(body("one\n"));
+    queue.append(body("two\n"));
+    assertThat(queue.segments()).isEqualTo(2);
+    assertThat(queue.oldestTimestamp()).isBetween(before, System.currentTimeMillis());
+
+    queue.commit(queue.next());
+    queue.commit(queue.next());
+    assertThat(queue.oldestTimestamp()).isEqualTo(0);
+    queue.close();
+  }
+}
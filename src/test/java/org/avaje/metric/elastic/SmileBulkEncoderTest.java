@@ -0,0 +1,228 @@
+package org.avaje.metric.elastic;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import okio.Buffer;
+import okio.ByteString;
+import org.avaje.metric.CounterMetric;
+import org.avaje.metric.Metric;
+import org.avaje.metric.MetricManager;
+import org.avaje.metric.TimedMetric;
+import org.avaje.metric.ValueMetric;
+import org.avaje.metric.report.HeaderInfo;
+import org.avaje.metric.report.ReportMetrics;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SmileBulkEncoderTest {
+
+  private final SmileBulkEncoder encoder = new SmileBulkEncoder(2);
+
+  private final Buffer buffer = new Buffer();
+
+  private ByteString write(BulkEncoder.Writer writer) throws IOException {
+    encoder.sink(buffer);
+    writer.write(encoder);
+    return buffer.readByteString();
+  }
+
+  private static ByteString bytes(int... values) {
+    byte[] bytes = new byte[values.length];
+    for (int i = 0; i < values.length; i++) {
+      bytes[i] = (byte) values[i];
+    }
+    return ByteString.of(bytes);
+  }
+
+  @Test
+  public void value_smallInt_expect_singleByte() throws IOException {
+
+    assertThat(write(e -> e.value(0))).isEqualTo(bytes(0xC0));
+    assertThat(write(e -> e.value(-1))).isEqualTo(bytes(0xC1));
+    assertThat(write(e -> e.value(15))).isEqualTo(bytes(0xDE));
+    assertThat(write(e -> e.value(-16))).isEqualTo(bytes(0xDF));
+  }
+
+  @Test
+  public void value_int_expect_zigzagVInt() throws IOException {
+
+    // zigzag 32 fits in the last (6 bit) byte
+    assertThat(write(e -> e.value(16))).isEqualTo(bytes(0x24, 0xA0));
+    // zigzag 200 = 3 << 6 | 8
+    assertThat(write(e -> e.value(100))).isEqualTo(bytes(0x24, 0x03, 0x88));
+  }
+
+  @Test
+  public void value_long_expect_int64() throws IOException {
+
+    ByteString bytes = write(e -> e.value(1500000000000L));
+    assertThat(bytes.getByte(0)).isEqualTo((byte) 0x25);
+    assertThat(bytes.getByte(bytes.size() - 1) & 0x80).isEqualTo(0x80);
+    assertThat(bytes.size()).isEqualTo(8);
+  }
+
+  @Test
+  public void value_string_expect_tinyAscii() throws IOException {
+
+    assertThat(write(e -> e.value("ab"))).isEqualTo(bytes(0x41, 'a', 'b'));
+    assertThat(write(e -> e.value(""))).isEqualTo(bytes(0x20));
+  }
+
+  @Test
+  public void decimal_expect_roundedDouble() throws IOException {
+
+    ByteString bytes = write(e -> e.decimal(1.005d));
+    assertThat(bytes.size()).isEqualTo(11);
+    assertThat(bytes.getByte(0)).isEqualTo((byte) 0x29);
+    assertThat(write(e -> e.decimal(Double.NaN))).isEqualTo(bytes(0x21));
+  }
+
+  @Test
+  public void key_repeated_expect_sharedNameReference() throws IOException {
+
+    BulkEncoder.Key count = encoder.newKey("count");
+    BulkEncoder.Key max = encoder.newKey("max");
+
+    ByteString bytes = write(e -> {
+      e.startDocument();
+      e.startObject();
+      e.key(count);
+      e.value(1);
+      e.key(max);
+      e.value(1);
+      e.key(count);
+      e.value(1);
+      e.key(max);
+      e.value(1);
+      e.endObject();
+      e.endDocument();
+    });
+
+    assertThat(bytes).isEqualTo(bytes(':', ')', '\n', 0x01, 0xFA,
+      0x84, 'c', 'o', 'u', 'n', 't', 0xC2, 0x82, 'm', 'a', 'x', 0xC2,
+      0x40, 0xC2, 0x41, 0xC2,
+      0xFB, 0xFF));
+  }
+
+  @Test
+  public void prefix_expect_sharedNamesRestored() throws IOException {
+
+    BulkEncoder.Key ts = encoder.newKey("ts");
+    BulkEncoder.Key count = encoder.newKey("count");
+
+    ByteString prefix = encoder.encode(e -> {
+      e.startDocument();
+      e.startObject();
+      e.key(ts);
+      e.value(1);
+    });
+    encoder.mark();
+
+    BulkEncoder.Writer document = e -> {
+      e.prefix(prefix);
+      e.key(ts);
+      e.key(count);
+      e.key(count);
+      e.endObject();
+      e.endDocument();
+    };
+    ByteString first = write(document);
+    ByteString second = write(document);
+
+    assertThat(second).isEqualTo(first);
+    assertThat(first.substring(prefix.size(), first.size())).isEqualTo(bytes(0x40, 0x84, 'c', 'o', 'u', 'n', 't', 0x41, 0xFB, 0xFF));
+  }
+
+  @Test
+  public void bulk_expect_smileParserReadsSameDocumentsAsJson() throws Exception {
+
+    List<Metric> metrics = new ArrayList<>();
+    TimedMetric timed = MetricManager.getTimedMetric("org.one.SmileRound.doStuff");
+    timed.addEventDuration(true, 1_500_000);
+    timed.addEventDuration(false, 2_250_000);
+    timed.collectStatistics(metrics);
+    ValueMetric value = MetricManager.getValueMetric("org.one.SmileRound.bytes\u00e9");
+    value.addEvent(100);
+    value.addEvent(300000000000L);
+    value.collectStatistics(metrics);
+    CounterMetric counter = MetricManager.getCounterMetric("org.one.SmileRound.count");
+    counter.markEvent();
+    counter.collectStatistics(metrics);
+    ReportMetrics reportMetrics = new ReportMetrics(new HeaderInfo(), 1000L, metrics);
+
+    Buffer json = new Buffer();
+    new BulkJsonWriteVisitor(new ElasticReporterConfig()).write(json, reportMetrics, "test.metric");
+    Buffer smile = new Buffer();
+    new BulkJsonWriteVisitor(new ElasticReporterConfig().setBulkFormat(ElasticReporterConfig.BulkFormat.SMILE))
+      .write(smile, reportMetrics, "test.metric");
+
+    List<Map<String, Object>> expected = new ArrayList<>();
+    JsonFactory jsonFactory = new JsonFactory();
+    String line;
+    while ((line = json.readUtf8Line()) != null) {
+      expected.add(read(jsonFactory.createParser(line)));
+    }
+
+    // each action and source is a SMILE document ending with the 0xFF separator
+    List<Map<String, Object>> actual = new ArrayList<>();
+    SmileFactory smileFactory = new SmileFactory();
+    byte[] bytes = smile.readByteArray();
+    int start = 0;
+    for (int i = 0; i < bytes.length; i++) {
+      if (bytes[i] == SmileBulkEncoder.SEPARATOR) {
+        actual.add(read(smileFactory.createParser(bytes, start, i - start)));
+        start = i + 1;
+      }
+    }
+    assertThat(start).isEqualTo(bytes.length);
+    assertThat(expected.size()).isGreaterThan(3);
+    assertThat(actual.size()).isEqualTo(expected.size());
+    assertThat(actual).isEqualTo(expected);
+  }
+
+  /**
+   * Read the document flattened to paths of the field values (numbers as double).
+   */
+  private static Map<String, Object> read(JsonParser parser) throws IOException {
+    Map<String, Object> values = new LinkedHashMap<>();
+    List<String> path = new ArrayList<>();
+    JsonToken token;
+    while ((token = parser.nextToken()) != null) {
+      switch (token) {
+        case FIELD_NAME:
+          path.add(parser.getCurrentName());
+          break;
+        case START_OBJECT:
+          break;
+        case END_OBJECT:
+          if (!path.isEmpty()) {
+            path.remove(path.size() - 1);
+          }
+          break;
+        default:
+          values.put(String.join(".", path), token.isNumeric() ? (Object) parser.getDoubleValue() : parser.getText());
+          path.remove(path.size() - 1);
+      }
+    }
+    parser.close();
+    return values;
+  }
+
+  @Test
+  public void utf8Length() {
+
+    assertThat(SmileBulkEncoder.utf8Length("abc")).isEqualTo(3);
+    assertThat(SmileBulkEncoder.utf8Length("h\u00e9")).isEqualTo(3);
+    assertThat(SmileBulkEncoder.utf8Length("\u20ac")).isEqualTo(3);
+    assertThat(SmileBulkEncoder.utf8Length("\ud83d\ude00")).isEqualTo(4);
+  }
+}
@@ -0,0 +1,121 @@
+package org.avaje.metric.elastic;
+
+import okio.Buffer;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StagingPoolTest {
+
+  @Test
+  public void sizeClass() {
+
+    assertThat(StagingPool.sizeClass(0)).isEqualTo(0);
+    assertThat(StagingPool.sizeClass(64 * 1024)).isEqualTo(0);
+    assertThat(StagingPool.sizeClass(64 * 1024 + 1)).isEqualTo(1);
+    assertThat(StagingPool.sizeClass(128 * 1024)).isEqualTo(1);
+    assertThat(StagingPool.sizeClass(1024 * 1024 + 1)).isEqualTo(5);
+  }
+
+  @Test
+  public void acquire_release_expect_reused() {
+
+    StagingPool pool = new StagingPool(1024 * 1024);
+    ByteBuffer buffer = pool.acquire(100_000);
+    assertThat(buffer.isDirect()).isTrue();
+    assertThat(buffer.capacity()).isEqualTo(128 * 1024);
+
+    buffer.put((byte) 1);
+    pool.release(buffer);
+    assertThat(pool.pooledBytes()).isEqualTo(128 * 1024);
+
+    ByteBuffer again = pool.acquire(70_000);
+    assertThat(again).isSameAs(buffer);
+    assertThat(again.position()).isEqualTo(0);
+    assertThat(pool.pooledBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void acquire_overMaxBytes_expect_null() {
+
+    StagingPool pool = new StagingPool(100 * 1024);
+    ByteBuffer first = pool.acquire(0);
+    assertThat(pool.acquire(0)).isNull();
+    assertThat(pool.allocatedBytes()).isEqualTo(64 * 1024);
+
+    pool.release(first);
+    assertThat(pool.pooledBytes()).isEqualTo(64 * 1024);
+    assertThat(pool.acquire(0)).isSameAs(first);
+  }
+
+  @Test
+  public void acquire_otherSizePooled_expect_discardedToMakeRoom() {
+
+    StagingPool pool = new StagingPool(160 * 1024);
+    pool.release(pool.acquire(0));
+    ByteBuffer larger = pool.acquire(100_000);
+
+    assertThat(larger.capacity()).isEqualTo(128 * 1024);
+    assertThat(pool.pooledBytes()).isEqualTo(0);
+    assertThat(pool.allocatedBytes()).isEqualTo(128 * 1024);
+    assertThat(pool.acquire(150_000)).isNull();
+    assertThat(pool.acquire(Integer.MAX_VALUE)).isNull();
+  }
+
+  @Test
+  public void sink_poolExhausted_expect_contentOnHeap() throws IOException {
+
+    StagingPool pool = new StagingPool(128 * 1024);
+    StagingSink sink = new StagingSink(pool);
+
+    StringBuilder content = new StringBuilder();
+    for (int i = 0; i < 20_000; i++) {
+      content.append("line").append(i).append('\n');
+    }
+    Buffer source = new Buffer().writeUtf8(content.toString());
+    while (source.size() > 0) {
+      sink.write(source, Math.min(5000, source.size()));
+    }
+
+    ByteBuffer staged = sink.finish();
+    assertThat(staged.isDirect()).isFalse();
+    assertThat(pool.allocatedBytes()).isEqualTo(64 * 1024);
+    assertThat(pool.pooledBytes()).isEqualTo(64 * 1024);
+    byte[] bytes = new byte[staged.remaining()];
+    staged.duplicate().get(bytes);
+    assertThat(new String(bytes, "UTF-8")).isEqualTo(content.toString());
+
+    pool.release(staged);
+    assertThat(pool.pooledBytes()).isEqualTo(64 * 1024);
+  }
+
+  @Test
+  public void sink_grow_expect_contentMovedAndSmallerReleased() throws IOException {
+
+    StagingPool pool = new StagingPool(1024 * 1024);
+    StagingSink sink = new StagingSink(pool);
+
+    StringBuilder content = new StringBuilder();
+    for (int i = 0; i < 20_000; i++) {
+      content.append("line").append(i).append('\n');
+    }
+    Buffer source = new Buffer().writeUtf8(content.toString());
+    long size = source.size();
+    while (source.size() > 0) {
+      sink.write(source, Math.min(5000, source.size()));
+    }
+
+    ByteBuffer staged = sink.finish();
+    assertThat(staged.remaining()).isEqualTo(size);
+    assertThat(staged.capacity()).isEqualTo(256 * 1024);
+    // the 64KB and 128KB buffers released when growing
+    assertThat(pool.pooledBytes()).isEqualTo(192 * 1024);
+
+    byte[] bytes = new byte[staged.remaining()];
+    staged.duplicate().get(bytes);
+    assertThat(new String(bytes, "UTF-8")).isEqualTo(content.toString());
+  }
+}
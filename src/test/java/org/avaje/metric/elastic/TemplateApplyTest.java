@@ -4,9 +4,12 @@ import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
 import org.junit.Ignore;
 import org.testng.annotations.Test;
 
+import java.io.File;
 import java.io.IOException;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -68,7 +71,7 @@ public class TemplateApplyTest {
   public void when_http200_expect_alreadyExistsSoNotAdded() throws IOException {
 
     MockWebServer server = new MockWebServer();
-    server.enqueue(new MockResponse().setResponseCode(200));
+    server.enqueue(new MockResponse().setResponseCode(200).setBody("{\"metric-1\":{\"order\":1,\"version\":1}}"));
     server.start();
     HttpUrl baseUrl = server.url("");
 
@@ -93,4 +96,142 @@ public class TemplateApplyTest {
     server.shutdown();
   }
 
-}
\ No newline at end of file
+  @Test
+  public void when_composable_http404_expect_policyAndIndexTemplateAdded() throws IOException, InterruptedException {
+
+    MockWebServer server = new MockWebServer();
+    server.enqueue(new MockResponse().setResponseCode(404));
+    server.enqueue(new MockResponse().setResponseCode(200));
+    server.enqueue(new MockResponse().setResponseCode(200));
+    server.start();
+    HttpUrl baseUrl = server.url("");
+
+    TemplateApply apply = new TemplateApply(client, baseUrl.toString(), "metrics-avaje", true);
+    assertThat(apply.run()).isTrue();
+
+    assertThat(server.takeRequest().getPath()).isEqualTo("/_index_template/metrics-avaje");
+    assertThat(server.takeRequest().getPath()).isEqualTo("/_ilm/policy/metrics-avaje");
+    RecordedRequest template = server.takeRequest();
+    assertThat(template.getMethod()).isEqualTo("PUT");
+    assertThat(template.getPath()).isEqualTo("/_index_template/metrics-avaje");
+
+    server.shutdown();
+  }
+
+  @Test
+  public void when_http200_lowerVersion_expect_updated() throws IOException, InterruptedException {
+
+    MockWebServer server = new MockWebServer();
+    server.enqueue(new MockResponse().setResponseCode(200).setBody("{\"metric-1\":{\"order\":1}}"));
+    server.enqueue(new MockResponse().setResponseCode(200));
+    server.start();
+
+    TemplateApply apply = new TemplateApply(client, server.url("").toString(), templateName);
+    assertThat(apply.run()).isTrue();
+
+    server.takeRequest();
+    assertThat(server.takeRequest().getMethod()).isEqualTo("PUT");
+    server.shutdown();
+  }
+
+  @Test
+  public void when_markerMatches_expect_notChecked() throws IOException {
+
+    File directory = new File("target/template-marker");
+    directory.mkdirs();
+    new File(directory, templateName + ".template").delete();
+
+    MockWebServer server = new MockWebServer();
+    server.enqueue(new MockResponse().setResponseCode(404));
+    server.enqueue(new MockResponse().setResponseCode(200));
+    server.start();
+    String baseUrl = server.url("").toString();
+
+    TemplateApply apply = new TemplateApply(client, baseUrl, templateName, false, directory);
+    assertThat(apply.run()).isTrue();
+    assertThat(new File(directory, templateName + ".template")).exists();
+
+    TemplateApply again = new TemplateApply(client, baseUrl, templateName, false, directory);
+    assertThat(again.run()).isFalse();
+    assertThat(again.isDone()).isTrue();
+    assertThat(server.getRequestCount()).isEqualTo(2);
+
+    server.shutdown();
+  }
+
+  @Test
+  public void start_http500_expect_retriedUntilApplied() throws IOException, InterruptedException {
+
+    MockWebServer server = new MockWebServer();
+    server.enqueue(new MockResponse().setResponseCode(500));
+    server.enqueue(new MockResponse().setResponseCode(404));
+    server.enqueue(new MockResponse().setResponseCode(200));
+    server.start();
+
+    TemplateApply apply = new TemplateApply(client, server.url("").toString(), templateName);
+    apply.start(1000, 1000);
+    for (int i = 0; i < 50 && !apply.isDone(); i++) {
+      Thread.sleep(100);
+    }
+    assertThat(apply.isDone()).isTrue();
+    assertThat(server.getRequestCount()).isEqualTo(3);
+
+    server.shutdown();
+  }
+
+  @Test
+  public void start_http403_expect_givenUpWithoutRetry() throws IOException, InterruptedException {
+
+    MockWebServer server = new MockWebServer();
+    server.enqueue(new MockResponse().setResponseCode(404));
+    server.enqueue(new MockResponse().setResponseCode(403));
+    server.start();
+
+    TemplateApply apply = new TemplateApply(client, server.url("").toString(), templateName);
+    apply.start(1000, 1000);
+    for (int i = 0; i < 50 && !apply.isDone(); i++) {
+      Thread.sleep(100);
+    }
+    assertThat(apply.isDone()).isTrue();
+    Thread.sleep(1500);
+    assertThat(server.getRequestCount()).isEqualTo(2);
+
+    server.shutdown();
+  }
+
+  @Test
+  public void isPermanent() {
+
+    assertThat(TemplateApply.isPermanent(403)).isTrue();
+    assertThat(TemplateApply.isPermanent(400)).isTrue();
+    assertThat(TemplateApply.isPermanent(404)).isFalse();
+    assertThat(TemplateApply.isPermanent(408)).isFalse();
+    assertThat(TemplateApply.isPermanent(429)).isFalse();
+    assertThat(TemplateApply.isPermanent(500)).isFalse();
+  }
+
+  @Test
+  public void remoteVersion_legacy_expect_topLevelVersionOfNamedTemplate() throws IOException {
+
+    String body = "{\"other\":{\"version\":9},\"metric-1\":{\"order\":1,\"settings\":{\"index\":{\"version\":{\"created\":7}}},\"version\":3}}";
+    assertThat(TemplateApply.remoteVersion(new Buffer().writeUtf8(body), "metric-1", false)).isEqualTo(3);
+    assertThat(TemplateApply.remoteVersion(new Buffer().writeUtf8("{}"), "metric-1", false)).isEqualTo(-1);
+  }
+
+  @Test
+  public void remoteVersion_composable_expect_topLevelVersionOfNamedTemplate() throws IOException {
+
+    String body = "{\"index_templates\":[{\"name\":\"other\",\"index_template\":{\"version\":9}},"
+      + "{\"name\":\"metrics-avaje\",\"index_template\":{\"_meta\":{\"version\":8},\"template\":{\"settings\":{\"version\":7}},\"version\":2}}]}";
+    assertThat(TemplateApply.remoteVersion(new Buffer().writeUtf8(body), "metrics-avaje", true)).isEqualTo(2);
+    assertThat(TemplateApply.remoteVersion(new Buffer().writeUtf8("{\"index_templates\":[]}"), "metrics-avaje", true)).isEqualTo(-1);
+  }
+
+  @Test
+  public void version() {
+
+    assertThat(TemplateApply.version("{\"order\":1, \"version\" : 12}")).isEqualTo(12);
+    assertThat(TemplateApply.version("{\"order\":1}")).isEqualTo(0);
+    assertThat(TemplateApply.version("{\"settings\":{\"version\":5}, \"version\":2}")).isEqualTo(2);
+  }
+}